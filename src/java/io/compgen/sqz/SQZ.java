@@ -1,5 +1,8 @@
 package io.compgen.sqz;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 public class SQZ {
     final public static byte A = 0; 
     final public static byte C = 1; 
@@ -8,10 +11,24 @@ public class SQZ {
 
     public static final int HAS_COMMENTS        = 0x1;
     public static final int COLORSPACE          = 0x2;
+    public static final int COLUMNAR            = 0x4;
+    public static final int PACKED_SEQ          = 0x8;
+    public static final int QUAL_BINNED         = 0x10;
+    public static final int TOKENIZED_NAMES     = 0x20;
+    public static final int CHUNK_CODECS        = 0x40;
+    public static final int DEFLATE_DICT        = 0x80;
+    public static final int CHUNK_CHECKSUM      = 0x100; // chunk checksum type in the header (SQZChecksum)
+    public static final int DIGEST_CHUNKS       = 0x200; // file SHA-1 skips chunk payloads
+    public static final int KEY_FILE            = 0x400; // encrypted with a key file, not a password (SQZKey)
+
+    // flags that this version can read
+    public static final int KNOWN_FLAGS = HAS_COMMENTS | COLORSPACE | COLUMNAR | PACKED_SEQ | QUAL_BINNED | TOKENIZED_NAMES | CHUNK_CODECS | DEFLATE_DICT
+            | CHUNK_CHECKSUM | DIGEST_CHUNKS | KEY_FILE;
 
     public static final int COMPRESS_NONE   = 0;
     public static final int COMPRESS_DEFLATE   = 1;
     public static final int COMPRESS_BZIP2     = 2;
+    public static final int COMPRESS_LZ        = 3;
     
     // used to mark a valid SQZ file
     public static final byte[] MAGIC = new byte[] { 'S', 'Q', 'Z', 0x1 };
@@ -25,251 +42,674 @@ public class SQZ {
     // used to mark the start of a SQZ text chunk (comments)
     public static final byte[] MAGIC_TEXT_CHUNK = new byte[] { 'S', 'Q', 'Z', 0x04 };
 
+    // used to mark the start (and end) of the chunk index footer (v1.2+)
+    public static final byte[] MAGIC_INDEX = new byte[] { 'S', 'Q', 'Z', 0x05 };
+
+    // used to mark the first chunk of a large (or binary) annotation block (v1.2+)
+    public static final byte[] MAGIC_BLOCK_CHUNK = new byte[] { 'S', 'Q', 'Z', 0x06 };
+
+    // used to mark the rest of the chunks of an annotation block (v1.2+)
+    public static final byte[] MAGIC_BLOCK_PART_CHUNK = new byte[] { 'S', 'Q', 'Z', 0x07 };
+
+    // chunk types (for the chunk index)
+    public static final int CHUNK_DATA = 0;
+    public static final int CHUNK_TEXT = 1;
+    public static final int CHUNK_BLOCK = 2;
+    public static final int CHUNK_BLOCK_PART = 3;
+
+    // annotation block flags (stored in each block chunk)
+    public static final int BLOCK_LAST   = 0x01;  // last chunk of the block
+    public static final int BLOCK_BINARY = 0x02;  // binary data (not text)
+
+    // columns (sub-streams) in a columnar data chunk
+    public static final int COLUMN_NAMES    = 0;  // per record: name (varint length + bytes, or tokens)
+    public static final int COLUMN_COMMENTS = 1;  // per read: comment (varint length + bytes)
+    public static final int COLUMN_LENGTHS  = 2;  // per read: length of seq/qual (varint)
+    public static final int COLUMN_SEQQUAL  = 3;  // per read: combined seq/qual bytes
+    public static final int COLUMN_SEQ      = 4;  // per read: 2-bit packed sequence (PACKED_SEQ)
+    public static final int COLUMN_QUAL     = 5;  // per read: quality values (PACKED_SEQ)
+    public static final int COLUMN_WILDCARDS = 6; // per read: sequence exceptions (PACKED_SEQ)
+    public static final int COLUMN_COUNT    = 7;
+
+    public static final int ALL_COLUMNS = 0xFFFFFFFF;
+
+    public static int columnMask(int... columns) {
+        int mask = 0;
+        for (int col: columns) {
+            mask |= 1 << col;
+        }
+        return mask;
+    }
+
+    /**
+     * @return the chunk type (SQZ.CHUNK_*) for a chunk magic, or -1 if this isn't a chunk
+     */
+    public static int chunkType(byte[] magic) {
+        if (Arrays.equals(magic, MAGIC_CHUNK)) {
+            return CHUNK_DATA;
+        } else if (Arrays.equals(magic, MAGIC_TEXT_CHUNK)) {
+            return CHUNK_TEXT;
+        } else if (Arrays.equals(magic, MAGIC_BLOCK_CHUNK)) {
+            return CHUNK_BLOCK;
+        } else if (Arrays.equals(magic, MAGIC_BLOCK_PART_CHUNK)) {
+            return CHUNK_BLOCK_PART;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the magic for a chunk type (SQZ.CHUNK_*)
+     */
+    public static byte[] chunkMagic(int type) {
+        switch (type) {
+        case CHUNK_TEXT:
+            return MAGIC_TEXT_CHUNK;
+        case CHUNK_BLOCK:
+            return MAGIC_BLOCK_CHUNK;
+        case CHUNK_BLOCK_PART:
+            return MAGIC_BLOCK_PART_CHUNK;
+        default:
+            return MAGIC_CHUNK;
+        }
+    }
+
     private static boolean qualErrorPrinted = false;
     private static boolean wildcardQualErrorPrinted = false;
+    private static boolean negativeQualErrorPrinted = false;
 
-    
-    public static byte[] combineSeqQual(String seq, String qual) throws SQZException {
-        if (seq.length() != qual.length()) {
-            throw new SQZException("Seq and qual should be the same length!");
-        };
-        byte[] out = new byte[seq.length()];
-        
-        for (int i=0; i<seq.length(); i++) {
-            char base = seq.charAt(i);
-            char qualbase = qual.charAt(i);
-            int qualval = qualbase - 33;
-            
-            if (qualval > 62) {
-                if (!qualErrorPrinted) {
-                    System.err.println("WARNING: Quality values altered to be between 0-62.");
-                    qualErrorPrinted = true;
-                }
-                
-                qualval = 62;
+    /*
+     * Lookup tables for the seq/qual codec. Each stored byte is (qual << 2 | base), where
+     * qual is 0-62. A qual of 63 marks a wildcard (N), and the base bits then hold the
+     * wildcard's quality (0-3). In colorspace, 0xFF marks a wildcard color (.,4,5,6),
+     * and the first byte is the base-space prefix (no quality).
+     *
+     * Encoding errors/warnings are accumulated as flags and checked once per read.
+     */
+    private static final int FLAG_INVALID_BASE      = 0x1;
+    private static final int FLAG_QUAL_CLAMPED      = 0x2;
+    private static final int FLAG_WILDCARD_QUAL     = 0x4;
+    private static final int FLAG_QUAL_NEGATIVE     = 0x8;
+
+    private static final byte[] ENC_BASE = new byte[256];        // base bits (A/C/G/T)
+    private static final byte[] ENC_WILDCARD = new byte[256];    // 0xFF mask for N
+    private static final byte[] ENC_BASE_FLAGS = new byte[256];  // invalid bases
+    private static final byte[] ENC_QUAL = new byte[256];        // qual << 2 (clamped)
+    private static final byte[] ENC_WILDCARD_QUAL = new byte[256]; // 0xFC | wildcard qual
+    private static final byte[] ENC_QUAL_FLAGS = new byte[256];  // qual warnings (normal bases)
+    private static final byte[] ENC_WILDCARD_QUAL_FLAGS = new byte[256]; // qual warnings (wildcards)
+
+    private static final byte[] ENC_COLOR = new byte[256];       // color bits, or 0xFF for wildcards
+    private static final byte[] ENC_COLOR_WILDCARD = new byte[256]; // 0xFF mask for wildcard colors
+    private static final byte[] ENC_COLOR_FLAGS = new byte[256]; // invalid colors
+
+    private static final byte[] DEC_SEQ = new byte[256];
+    private static final byte[] DEC_QUAL = new byte[256];
+    private static final byte[] DEC_COLOR = new byte[256];
+    private static final byte[] DEC_COLOR_QUAL = new byte[256];
+    private static final byte[] DEC_PREFIX = new byte[256];
+
+    /*
+     * Tables for the packed sequence codec (PACKED_SEQ). Sequences are stored 2 bits per
+     * base (A,C,G,T or 0,1,2,3), four to a byte, with the first base in the low bits. Any
+     * other symbol (N, or .,4,5,6 in colorspace) is packed as 0 and listed separately as
+     * a wildcard. Quality values are stored in their own stream as Phred scores (ASCII-33).
+     *
+     * In colorspace, the base-space prefix is stored in its own byte before the packed colors.
+     */
+    private static final byte[] PACK_COLOR = new byte[256];
+    private static final byte[] PACK_BASE_WILDCARD = new byte[256];   // 1 for anything but A,C,G,T
+    private static final byte[] PACK_COLOR_WILDCARD = new byte[256];  // 1 for anything but 0,1,2,3
+    private static final byte[] UNPACK_BASE = new byte[] { 'A', 'C', 'G', 'T' };
+    private static final byte[] UNPACK_COLOR = new byte[] { '0', '1', '2', '3' };
+    private static final byte[] PACK_QUAL = new byte[256];        // Phred score (ASCII-33, min 0)
+    private static final byte[] PACK_QUAL_FLAGS = new byte[256];  // qual warnings
+
+    static {
+        fillQualTables(null, ENC_QUAL, ENC_QUAL_FLAGS, PACK_QUAL);
+
+        for (int i=0; i<256; i++) {
+            ENC_BASE_FLAGS[i] = FLAG_INVALID_BASE;
+            ENC_COLOR_FLAGS[i] = FLAG_INVALID_BASE;
+
+            int qualval = i - 33;
+            if (qualval < 0) {
+                PACK_QUAL_FLAGS[i] = FLAG_QUAL_NEGATIVE;
+            }
+
+            // an "N" is set to a qual of 63. However, the actual quality in the FASTQ
+            // file might not be '0', (it's probably '2'). So we'll encode the quality in
+            // the base bits.
+            if (qualval > 3) {
+                ENC_WILDCARD_QUAL[i] = (byte) 0xFC;
+                ENC_WILDCARD_QUAL_FLAGS[i] = (byte) (FLAG_WILDCARD_QUAL | (qualval > 62 ? FLAG_QUAL_CLAMPED : 0));
             } else if (qualval < 0) {
-                if (!qualErrorPrinted) {
-                    System.err.println("WARNING: Quality values altered to be between 0-62.");
-                    qualErrorPrinted = true;
-                }
-                qualval = 0;
+                ENC_WILDCARD_QUAL[i] = (byte) 0xFC;
+                ENC_WILDCARD_QUAL_FLAGS[i] = FLAG_QUAL_CLAMPED;
+            } else {
+                ENC_WILDCARD_QUAL[i] = (byte) (0xFC | qualval);
             }
-            
-
-            byte buf = (byte) (qualval << 2);
-            
-            switch (base) {
-            case 'A':
-            case 'a':
-                break;
-            case 'C':
-            case 'c':
-                buf |= C;
-                break;
-            case 'G':
-            case 'g':
-                buf |= G;
-                break;
-            case 'T':
-            case 't':
-                buf |= T;
-                break;
-            case 'N':
-            case 'n':
-                // an "N" is set to a qual of 63. However, the actual quality in the FASTQ
-                // file might not be '0', (it's probably '2'). So we'll encode the quality in
-                // the base bits.
-                
-                buf = (byte) 0xFC;
-                
-                if (qualval > 3) {
-                    if (!wildcardQualErrorPrinted) {
-                        System.err.println("WARNING: Wildcard quality values will be set to 0.");
-                        wildcardQualErrorPrinted = true;
-                    }
-                    qualval = 0;
-                }
 
-                buf = (byte) (buf | (qualval & 0x3));
+            int base = i & 0x03;
+            int q = (i >> 2) & 0x3F;
+            if (q == 63) {
+                DEC_SEQ[i] = 'N';
+                DEC_QUAL[i] = (byte) (base + 33);
+            } else {
+                DEC_SEQ[i] = (byte) "ACGT".charAt(base);
+                DEC_QUAL[i] = (byte) (q + 33);
+            }
 
-                break;
-            default:
-                throw new SQZException("Sequence not valid! Expected: A,C,G,T or N. Got: " + base);
+            if (i == 0xFF) {
+                DEC_COLOR[i] = '.';
+                DEC_COLOR_QUAL[i] = '!'; // Phred 0 (+33 in ASCII)
+            } else {
+                DEC_COLOR[i] = (byte) ('0' + base);
+                DEC_COLOR_QUAL[i] = (byte) (q + 33);
             }
+            DEC_PREFIX[i] = (byte) "ACGT".charAt(base);
+        }
 
-            out[i] = buf;            
+        String bases = "ACGT";
+        for (int i=0; i<bases.length(); i++) {
+            char upper = bases.charAt(i);
+            char lower = Character.toLowerCase(upper);
+            ENC_BASE[upper] = (byte) i;
+            ENC_BASE[lower] = (byte) i;
+            ENC_BASE_FLAGS[upper] = 0;
+            ENC_BASE_FLAGS[lower] = 0;
         }
-        
-        return out;
-    }
+        ENC_WILDCARD['N'] = (byte) 0xFF;
+        ENC_WILDCARD['n'] = (byte) 0xFF;
+        ENC_BASE_FLAGS['N'] = 0;
+        ENC_BASE_FLAGS['n'] = 0;
 
-    public static String[] splitSeqQual(byte[] seqquals) {
-        String seq = "";
-        String qual = "";
-        if (seqquals == null) {
-            return new String[]{"",""};
+        for (char c='0'; c<='3'; c++) {
+            ENC_COLOR[c] = (byte) (c - '0');
+            ENC_COLOR_FLAGS[c] = 0;
+        }
+        // a 4, 5, 6 is set to a qual of 63. In colorspace files, the quality score for .,4,5,6
+        // is always 0
+        for (char c: new char[] {'4', '5', '6', '.'}) {
+            ENC_COLOR[c] = (byte) 0xFF;
+            ENC_COLOR_WILDCARD[c] = (byte) 0xFF;
+            ENC_COLOR_FLAGS[c] = 0;
         }
-        for (int i=0; i<seqquals.length; i++) {
-            byte base = (byte) (seqquals[i] & 0x03);
-            byte qualval = (byte) (seqquals[i] >> 2 & 0x3F);
-            
-            if (qualval == 63) {
-                seq += 'N';
-                qual += (char)(base + 33);
+
+        for (int i=0; i<256; i++) {
+            PACK_BASE_WILDCARD[i] = 1;
+            PACK_COLOR_WILDCARD[i] = 1;
+        }
+        for (int i=0; i<bases.length(); i++) {
+            PACK_BASE_WILDCARD[bases.charAt(i)] = 0;
+            PACK_BASE_WILDCARD[Character.toLowerCase(bases.charAt(i))] = 0;
+        }
+        for (char c='0'; c<='3'; c++) {
+            PACK_COLOR[c] = (byte) (c - '0');
+            PACK_COLOR_WILDCARD[c] = 0;
+        }
+    }
+
+    /**
+     * Fills the quality encoding tables. If [map] is given (see SQZQualityBins), each ASCII
+     * quality value is mapped before it is encoded, so binning doesn't add any work per base.
+     * Wildcard (N) quality values are never mapped.
+     *
+     * @param map - ASCII to ASCII quality map, or null
+     * @param encQual - (qual << 2) for the seq/qual codec
+     * @param encQualFlags - warnings for the seq/qual codec
+     * @param packQual - Phred score for the packed codec (PACKED_SEQ)
+     */
+    static void fillQualTables(byte[] map, byte[] encQual, byte[] encQualFlags, byte[] packQual) {
+        for (int i=0; i<256; i++) {
+            int qualval = (map == null ? i : map[i] & 0xFF) - 33;
+            if (qualval > 62) {
+                encQual[i] = (byte) (62 << 2);
+                encQualFlags[i] = FLAG_QUAL_CLAMPED;
+            } else if (qualval < 0) {
+                encQual[i] = 0;
+                encQualFlags[i] = FLAG_QUAL_CLAMPED;
             } else {
-                switch (base) {
-                case A:
-                    seq += 'A';
-                    break;
-                case C:
-                    seq += 'C';
-                    break;
-                case G:
-                    seq += 'G';
-                    break;
-                case T:
-                    seq += 'T';
-                    break;
-                }
+                encQual[i] = (byte) (qualval << 2);
+                encQualFlags[i] = 0;
+            }
+            packQual[i] = (byte) Math.max(qualval, 0);
+        }
+    }
+
+    /**
+     * Encodes a read's sequence and quality values (ASCII, Phred+33) into [out].
+     *
+     * @param seq
+     * @param seqOff
+     * @param qual
+     * @param qualOff
+     * @param len - the length of the read
+     * @param out - must have at least [len] bytes available after [outOff]
+     * @param outOff
+     * @throws SQZException if the sequence contains something other than A,C,G,T or N.
+     */
+    public static void encodeSeqQual(byte[] seq, int seqOff, byte[] qual, int qualOff, int len, byte[] out, int outOff) throws SQZException {
+        encodeSeqQual(seq, seqOff, qual, qualOff, len, out, outOff, null);
+    }
+
+    /**
+     * Encodes a read's sequence and quality values, binning the quality values.
+     *
+     * @param bins - quality bins, or null to keep the quality values as-is
+     * @throws SQZException
+     */
+    public static void encodeSeqQual(byte[] seq, int seqOff, byte[] qual, int qualOff, int len, byte[] out, int outOff, SQZQualityBins bins) throws SQZException {
+        byte[] encQual = (bins == null) ? ENC_QUAL : bins.encQual;
+        byte[] encQualFlags = (bins == null) ? ENC_QUAL_FLAGS : bins.encQualFlags;
+
+        int flags = 0;
+        for (int i=0; i<len; i++) {
+            int base = seq[seqOff + i] & 0xFF;
+            int q = qual[qualOff + i] & 0xFF;
+            int wildcard = ENC_WILDCARD[base];
+
+            out[outOff + i] = (byte) (((encQual[q] | ENC_BASE[base]) & ~wildcard) | (ENC_WILDCARD_QUAL[q] & wildcard));
+            flags |= ENC_BASE_FLAGS[base] | (encQualFlags[q] & ~wildcard) | (ENC_WILDCARD_QUAL_FLAGS[q] & wildcard);
+        }
+        if (flags != 0) {
+            checkFlags(flags, seq, seqOff, len, ENC_BASE_FLAGS);
+        }
+    }
+
+    /**
+     * Encodes a read's sequence and quality values into [out].
+     *
+     * @return the number of bytes written (the length of the read)
+     * @throws SQZException if the sequence contains something other than A,C,G,T or N, or
+     *                      seq and qual are different lengths.
+     */
+    public static int encodeSeqQual(CharSequence seq, CharSequence qual, byte[] out, int outOff) throws SQZException {
+        return encodeSeqQual(seq, qual, out, outOff, null);
+    }
+
+    public static int encodeSeqQual(CharSequence seq, CharSequence qual, byte[] out, int outOff, SQZQualityBins bins) throws SQZException {
+        byte[] encQual = (bins == null) ? ENC_QUAL : bins.encQual;
+        byte[] encQualFlags = (bins == null) ? ENC_QUAL_FLAGS : bins.encQualFlags;
 
-                qual += (char)(qualval + 33);
+        int len = seq.length();
+        if (len != qual.length()) {
+            throw new SQZException("Seq and qual should be the same length!");
+        }
+
+        int flags = 0;
+        int highbits = 0;
+        for (int i=0; i<len; i++) {
+            char sc = seq.charAt(i);
+            char qc = qual.charAt(i);
+            highbits |= sc | qc;
+
+            int base = sc & 0xFF;
+            int q = qc & 0xFF;
+            int wildcard = ENC_WILDCARD[base];
+
+            out[outOff + i] = (byte) (((encQual[q] | ENC_BASE[base]) & ~wildcard) | (ENC_WILDCARD_QUAL[q] & wildcard));
+            flags |= ENC_BASE_FLAGS[base] | (encQualFlags[q] & ~wildcard) | (ENC_WILDCARD_QUAL_FLAGS[q] & wildcard);
+        }
+        if (flags != 0 || (highbits & 0xFF00) != 0) {
+            checkFlags(flags, seq, len, ENC_BASE_FLAGS, (highbits & 0xFF00) != 0);
+        }
+        return len;
+    }
+
+    /**
+     * Encodes a colorspace read. [seq] includes the base-space prefix, so [qual]
+     * has one less value than [seq].
+     *
+     * @param len - the length of [seq] (including the prefix)
+     * @throws SQZException
+     */
+    public static void encodeSeqQualColorspace(byte[] seq, int seqOff, byte[] qual, int qualOff, int len, byte[] out, int outOff) throws SQZException {
+        encodeSeqQualColorspace(seq, seqOff, qual, qualOff, len, out, outOff, null);
+    }
+
+    public static void encodeSeqQualColorspace(byte[] seq, int seqOff, byte[] qual, int qualOff, int len, byte[] out, int outOff, SQZQualityBins bins) throws SQZException {
+        byte[] encQual = (bins == null) ? ENC_QUAL : bins.encQual;
+        byte[] encQualFlags = (bins == null) ? ENC_QUAL_FLAGS : bins.encQualFlags;
+
+        // pull out the prefix base. prefix is stored w/o quality value.
+        int prefix = seq[seqOff] & 0xFF;
+        if (ENC_BASE_FLAGS[prefix] != 0 || ENC_WILDCARD[prefix] != 0) {
+            // this must be an error...
+            throw new SQZException("Colorspace reads must include a one base-space prefix");
+        }
+        out[outOff] = ENC_BASE[prefix];
+
+        int flags = 0;
+        for (int i=1; i<len; i++) {
+            int color = seq[seqOff + i] & 0xFF;
+            int q = qual[qualOff + i - 1] & 0xFF;
+            int wildcard = ENC_COLOR_WILDCARD[color];
+
+            out[outOff + i] = (byte) ((encQual[q] & ~wildcard) | ENC_COLOR[color]);
+            flags |= ENC_COLOR_FLAGS[color] | encQualFlags[q];
+        }
+        if (flags != 0) {
+            if ((flags & FLAG_INVALID_BASE) != 0) {
+                throw new SQZException("Sequence not valid colorspace.");
             }
+            checkFlags(flags, seq, seqOff, len, ENC_COLOR_FLAGS);
         }
+    }
 
-        return new String[]{seq, qual};
+    public static int encodeSeqQualColorspace(CharSequence seq, CharSequence qual, byte[] out, int outOff) throws SQZException {
+        return encodeSeqQualColorspace(seq, qual, out, outOff, null);
     }
 
-    public static byte[] combineSeqQualColorspace(String seq, String qual) throws SQZException {
-        if (seq.length() != qual.length() + 1) {
+    public static int encodeSeqQualColorspace(CharSequence seq, CharSequence qual, byte[] out, int outOff, SQZQualityBins bins) throws SQZException {
+        byte[] encQual = (bins == null) ? ENC_QUAL : bins.encQual;
+        byte[] encQualFlags = (bins == null) ? ENC_QUAL_FLAGS : bins.encQualFlags;
+
+        int len = seq.length();
+        if (len != qual.length() + 1) {
             throw new SQZException("Colorspace seq should include one base prefix not in qual.");
-        };
-        
-        byte[] out = new byte[seq.length()];
-        
-        // pull out the prefix base. prefix is stored w/o quality value.
-        switch (seq.charAt(0)) {
-        case 'A':
-        case 'a':
-            out[0] = A;
-            break;
-        case 'C':
-        case 'c':
-            out[0] = C;
-            break;
-        case 'G':
-        case 'g':
-            out[0] = G;
-            break;
-        case 'T':
-        case 't':
-            out[0] = T;
-            break;
-        default:
+        }
+
+        char prefix = seq.charAt(0);
+        if (prefix > 0xFF || ENC_BASE_FLAGS[prefix] != 0 || ENC_WILDCARD[prefix] != 0) {
             // this must be an error...
             throw new SQZException("Colorspace reads must include a one base-space prefix");
         }
-        
-        
-        for (int i=1; i<seq.length(); i++) {
-            char base = seq.charAt(i);
-            char qualbase = qual.charAt(i-1);
-            int qualval = qualbase - 33;
-            
-            if (qualval > 62) {
-                if (!qualErrorPrinted) {
-                    System.err.println("WARNING: Quality values altered to be between 0-62.");
-                    qualErrorPrinted = true;
-                }
-                
-                qualval = 62;
-            } else if (qualval < 0) {
-                if (!qualErrorPrinted) {
-                    System.err.println("WARNING: Quality values altered to be between 0-62.");
-                    qualErrorPrinted = true;
+        out[outOff] = ENC_BASE[prefix];
+
+        int flags = 0;
+        int highbits = 0;
+        for (int i=1; i<len; i++) {
+            char sc = seq.charAt(i);
+            char qc = qual.charAt(i - 1);
+            highbits |= sc | qc;
+
+            int color = sc & 0xFF;
+            int q = qc & 0xFF;
+            int wildcard = ENC_COLOR_WILDCARD[color];
+
+            out[outOff + i] = (byte) ((encQual[q] & ~wildcard) | ENC_COLOR[color]);
+            flags |= ENC_COLOR_FLAGS[color] | encQualFlags[q];
+        }
+        if ((flags & FLAG_INVALID_BASE) != 0 || (highbits & 0xFF00) != 0) {
+            throw new SQZException("Sequence not valid colorspace.");
+        }
+        if (flags != 0) {
+            printWarnings(flags);
+        }
+        return len;
+    }
+
+    /**
+     * Decodes [len] bytes from [in] into ASCII sequence and quality (Phred+33) values.
+     * [seq] and [qual] must each have [len] bytes available.
+     */
+    public static void decodeSeqQual(byte[] in, int off, int len, byte[] seq, int seqOff, byte[] qual, int qualOff) {
+        for (int i=0; i<len; i++) {
+            int b = in[off + i] & 0xFF;
+            seq[seqOff + i] = DEC_SEQ[b];
+            qual[qualOff + i] = DEC_QUAL[b];
+        }
+    }
+
+    /**
+     * Decodes a colorspace read. [seq] must have [len] bytes available (including the
+     * base-space prefix), and [qual] must have [len-1].
+     */
+    public static void decodeSeqQualColorspace(byte[] in, int off, int len, byte[] seq, int seqOff, byte[] qual, int qualOff) {
+        if (len == 0) {
+            return;
+        }
+        // This is the base-space prefix. No qual is stored here.
+        seq[seqOff] = DEC_PREFIX[in[off] & 0xFF];
+        for (int i=1; i<len; i++) {
+            int b = in[off + i] & 0xFF;
+            seq[seqOff + i] = DEC_COLOR[b];
+            qual[qualOff + i - 1] = DEC_COLOR_QUAL[b];
+        }
+    }
+
+    private static void checkFlags(int flags, byte[] seq, int seqOff, int len, byte[] validTable) throws SQZException {
+        if ((flags & FLAG_INVALID_BASE) != 0) {
+            for (int i=0; i<len; i++) {
+                if (validTable[seq[seqOff + i] & 0xFF] != 0) {
+                    throw new SQZException("Sequence not valid! Expected: A,C,G,T or N. Got: " + (char) (seq[seqOff + i] & 0xFF));
                 }
-                qualval = 0;
             }
-            
-            byte buf = (byte) (qualval << 2);
-            
-            switch (base) {
-            case '0':
-                break;
-            case '1':
-            	buf = (byte) (buf | 0x1);
-                break;
-            case '2':
-            	buf = (byte) (buf | 0x2);
-                break;
-            case '3':
-            	buf = (byte) (buf | 0x3);
-                break;
-            case '4':
-            case '5':
-            case '6':
-            case '.':
-                // a 4, 5, 6 is set to a qual of 63. In colorspace files, the quality score for .,4,5,6
-                // is always 0
-                buf = (byte) 0xFF;
-                break;
-            default:
-                throw new SQZException("Sequence not valid colorspace.");
+        }
+        printWarnings(flags);
+    }
+
+    private static void checkFlags(int flags, CharSequence seq, int len, byte[] validTable, boolean highbits) throws SQZException {
+        if ((flags & FLAG_INVALID_BASE) != 0 || highbits) {
+            for (int i=0; i<len; i++) {
+                char c = seq.charAt(i);
+                if (c > 0xFF || validTable[c] != 0) {
+                    throw new SQZException("Sequence not valid! Expected: A,C,G,T or N. Got: " + c);
+                }
             }
+        }
+        printWarnings(flags);
+    }
 
-            out[i] = buf;            
+    private static void printWarnings(int flags) {
+        if ((flags & FLAG_QUAL_CLAMPED) != 0 && !qualErrorPrinted) {
+            System.err.println("WARNING: Quality values altered to be between 0-62.");
+            qualErrorPrinted = true;
+        }
+        if ((flags & FLAG_WILDCARD_QUAL) != 0 && !wildcardQualErrorPrinted) {
+            System.err.println("WARNING: Wildcard quality values will be set to 0.");
+            wildcardQualErrorPrinted = true;
+        }
+        if ((flags & FLAG_QUAL_NEGATIVE) != 0 && !negativeQualErrorPrinted) {
+            System.err.println("WARNING: Quality values below 0 set to 0.");
+            negativeQualErrorPrinted = true;
         }
-        
-        return out;
     }
 
-    public static String[] splitSeqQualColorspace(byte[] seqquals) {
-        String seq = "";
-        String qual = "";
+    /**
+     * @return the number of bytes needed to store a packed sequence of [len] bases
+     */
+    public static int packedLength(int len, boolean colorspace) {
+        if (colorspace) {
+            return len == 0 ? 0 : 1 + ((len + 2) >>> 2);
+        }
+        return (len + 3) >>> 2;
+    }
 
-        // This is the base-space prefix. No qual is stored here.
-        switch (seqquals[0]) {
-        case A:
-            seq += 'A';
-            break;
-        case C:
-            seq += 'C';
-            break;
-        case G:
-            seq += 'G';
-            break;
-        case T:
-            seq += 'T';
-            break;
-        }
-        
-        for (int i=1; i<seqquals.length; i++) {
-            if (seqquals[i] == (byte) 0xFF) {
-                seq += '.';
-                qual += '!'; // Phred 0 (+33 in ASCII)
+    /**
+     * Packs a sequence 2 bits per base into [out]. [out] must have packedLength(len, colorspace)
+     * bytes available after [outOff]. Wildcards (N) are packed as 'A', and must be
+     * stored separately (see findWildcards()).
+     *
+     * @return true if the sequence has wildcards or invalid bases, in which case
+     *         findWildcards() should be called.
+     * @throws SQZException for colorspace reads without a base-space prefix
+     */
+    public static boolean packSeq(byte[] seq, int seqOff, int len, boolean colorspace, byte[] out, int outOff) throws SQZException {
+        if (!colorspace) {
+            return packSymbols(seq, seqOff, len, ENC_BASE, PACK_BASE_WILDCARD, out, outOff);
+        }
+        if (len == 0) {
+            return false;
+        }
+        int prefix = seq[seqOff] & 0xFF;
+        if (PACK_BASE_WILDCARD[prefix] != 0) {
+            throw new SQZException("Colorspace reads must include a one base-space prefix");
+        }
+        out[outOff] = ENC_BASE[prefix];
+        return packSymbols(seq, seqOff + 1, len - 1, PACK_COLOR, PACK_COLOR_WILDCARD, out, outOff + 1);
+    }
+
+    /**
+     * Packs symbols a word (32 symbols) at a time. Wildcards are accumulated as a flag
+     * and checked once per read.
+     */
+    private static boolean packSymbols(byte[] seq, int seqOff, int len, byte[] codes, byte[] wildcards, byte[] out, int outOff) {
+        int wild = 0;
+        int i = 0;
+        int o = outOff;
+        for (; i + 32 <= len; i += 32) {
+            long word = 0;
+            for (int j=0; j<32; j++) {
+                int c = seq[seqOff + i + j] & 0xFF;
+                word |= (long) codes[c] << (j << 1);
+                wild |= wildcards[c];
+            }
+            for (int j=0; j<8; j++) {
+                out[o++] = (byte) (word >>> (j << 3));
+            }
+        }
+        if (i < len) {
+            long word = 0;
+            for (int j=0; i + j < len; j++) {
+                int c = seq[seqOff + i + j] & 0xFF;
+                word |= (long) codes[c] << (j << 1);
+                wild |= wildcards[c];
+            }
+            int bytes = (len - i + 3) >>> 2;
+            for (int j=0; j<bytes; j++) {
+                out[o++] = (byte) (word >>> (j << 3));
+            }
+        }
+        return wild != 0;
+    }
+
+    /**
+     * Finds the wildcards in a sequence (N in base-space, or .,4,5,6 in colorspace).
+     * Positions are from the start of the read (including any colorspace prefix). Wildcards
+     * are returned in upper case.
+     *
+     * @param positions - must have [len] values available
+     * @param symbols - must have [len] values available
+     * @return the number of wildcards
+     * @throws SQZException if the sequence has an invalid base
+     */
+    public static int findWildcards(byte[] seq, int seqOff, int len, boolean colorspace, int[] positions, byte[] symbols) throws SQZException {
+        int count = 0;
+        for (int i=(colorspace ? 1 : 0); i<len; i++) {
+            int c = seq[seqOff + i] & 0xFF;
+            if (colorspace) {
+                if (PACK_COLOR_WILDCARD[c] == 0) {
+                    continue;
+                }
+                if (ENC_COLOR_WILDCARD[c] == 0) {
+                    throw new SQZException("Sequence not valid colorspace.");
+                }
             } else {
-                byte base = (byte) (seqquals[i] & 0x03);
-                byte qualval = (byte) (seqquals[i] >> 2 & 0x3F);
-
-                switch (base) {
-                case 0:
-                    seq += '0';
-                    break;
-                case 1:
-                    seq += '1';
-                    break;
-                case 2:
-                    seq += '2';
-                    break;
-                case 3:
-                    seq += '3';
-                    break;
+                if (PACK_BASE_WILDCARD[c] == 0) {
+                    continue;
+                }
+                if (ENC_WILDCARD[c] == 0) {
+                    throw new SQZException("Sequence not valid! Expected: A,C,G,T or N. Got: " + (char) c);
                 }
+                c = 'N';
+            }
+            positions[count] = i;
+            symbols[count] = (byte) c;
+            count++;
+        }
+        return count;
+    }
 
-                qual += (char)(qualval + 33);
+    /**
+     * Unpacks a 2-bit packed sequence of [len] bases, a word at a time. Wildcards are
+     * returned as 'A' (or '0') and must be restored by the caller.
+     * [seq] must have [len] bytes available.
+     */
+    public static void unpackSeq(byte[] in, int inOff, int len, boolean colorspace, byte[] seq, int seqOff) {
+        if (!colorspace) {
+            unpackSymbols(in, inOff, len, UNPACK_BASE, seq, seqOff);
+        } else if (len > 0) {
+            seq[seqOff] = UNPACK_BASE[in[inOff] & 0x3];
+            unpackSymbols(in, inOff + 1, len - 1, UNPACK_COLOR, seq, seqOff + 1);
+        }
+    }
+
+    private static void unpackSymbols(byte[] in, int inOff, int len, byte[] alphabet, byte[] seq, int seqOff) {
+        int i = 0;
+        int o = inOff;
+        for (; i + 32 <= len; i += 32) {
+            long word = 0;
+            for (int j=0; j<8; j++) {
+                word |= (long) (in[o++] & 0xFF) << (j << 3);
+            }
+            for (int j=0; j<32; j++) {
+                seq[seqOff + i + j] = alphabet[(int) (word >>> (j << 1)) & 0x3];
+            }
+        }
+        if (i < len) {
+            long word = 0;
+            int bytes = (len - i + 3) >>> 2;
+            for (int j=0; j<bytes; j++) {
+                word |= (long) (in[o++] & 0xFF) << (j << 3);
             }
+            for (int j=0; i + j < len; j++) {
+                seq[seqOff + i + j] = alphabet[(int) (word >>> (j << 1)) & 0x3];
+            }
+        }
+    }
+
+    /**
+     * Converts ASCII (Phred+33) quality values to Phred scores. Values below 0 are set to 0.
+     */
+    public static void packQual(byte[] qual, int qualOff, int len, byte[] out, int outOff) {
+        packQual(qual, qualOff, len, out, outOff, null);
+    }
+
+    /**
+     * Converts ASCII (Phred+33) quality values to binned Phred scores.
+     *
+     * @param bins - quality bins, or null to keep the quality values as-is
+     */
+    public static void packQual(byte[] qual, int qualOff, int len, byte[] out, int outOff, SQZQualityBins bins) {
+        byte[] packQual = (bins == null) ? PACK_QUAL : bins.packQual;
+        int flags = 0;
+        for (int i=0; i<len; i++) {
+            int q = qual[qualOff + i] & 0xFF;
+            out[outOff + i] = packQual[q];
+            flags |= PACK_QUAL_FLAGS[q];
+        }
+        if (flags != 0) {
+            printWarnings(flags);
+        }
+    }
+
+    /**
+     * Converts Phred scores back to ASCII (Phred+33) quality values.
+     */
+    public static void unpackQual(byte[] in, int inOff, int len, byte[] qual, int qualOff) {
+        for (int i=0; i<len; i++) {
+            qual[qualOff + i] = (byte) (in[inOff + i] + 33);
         }
+    }
 
-        return new String[]{seq, qual};
+    public static byte[] combineSeqQual(String seq, String qual) throws SQZException {
+        byte[] out = new byte[seq.length()];
+        encodeSeqQual(seq, qual, out, 0);
+        return out;
+    }
+
+    public static String[] splitSeqQual(byte[] seqquals) {
+        if (seqquals == null) {
+            return new String[]{"",""};
+        }
+        byte[] seq = new byte[seqquals.length];
+        byte[] qual = new byte[seqquals.length];
+        decodeSeqQual(seqquals, 0, seqquals.length, seq, 0, qual, 0);
+        return new String[]{new String(seq, StandardCharsets.ISO_8859_1), new String(qual, StandardCharsets.ISO_8859_1)};
+    }
+
+    public static byte[] combineSeqQualColorspace(String seq, String qual) throws SQZException {
+        byte[] out = new byte[seq.length()];
+        encodeSeqQualColorspace(seq, qual, out, 0);
+        return out;
+    }
+
+    public static String[] splitSeqQualColorspace(byte[] seqquals) {
+        byte[] seq = new byte[seqquals.length];
+        byte[] qual = new byte[Math.max(0, seqquals.length - 1)];
+        decodeSeqQualColorspace(seqquals, 0, seqquals.length, seq, 0, qual, 0);
+        return new String[]{new String(seq, StandardCharsets.ISO_8859_1), new String(qual, StandardCharsets.ISO_8859_1)};
     }
 
 }
@@ -0,0 +1,99 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a range of bytes from a FileChannel using positional reads. This doesn't
+ * change the position of the channel, so it can be used alongside another stream
+ * reading the same file.
+ *
+ */
+public class SQZChannelInputStream extends InputStream {
+    public static final int DEFAULT_BUFFERSIZE = 64*1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private final ByteBuffer buffer;
+    private long pos;
+
+    public SQZChannelInputStream(FileChannel channel, long start, long end, int bufferSize) {
+        this.channel = channel;
+        this.pos = start;
+        this.end = end;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+    }
+
+    public SQZChannelInputStream(FileChannel channel, long start, long end) {
+        this(channel, start, end, DEFAULT_BUFFERSIZE);
+    }
+
+    private boolean fill() throws IOException {
+        if (pos >= end) {
+            return false;
+        }
+        buffer.clear();
+        if (end - pos < buffer.capacity()) {
+            buffer.limit((int) (end - pos));
+        }
+        int count = channel.read(buffer, pos);
+        buffer.flip();
+        if (count < 1) {
+            return false;
+        }
+        pos += count;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (n <= buffer.remaining()) {
+            buffer.position(buffer.position() + (int) n);
+            return n;
+        }
+        long skipped = buffer.remaining();
+        long count = Math.min(n - skipped, end - pos);
+        buffer.position(buffer.limit());
+        pos += count;
+        return skipped + count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * @return the position in the channel of the next byte to be read
+     */
+    public long position() {
+        return pos - buffer.remaining();
+    }
+}
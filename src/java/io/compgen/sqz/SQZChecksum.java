@@ -0,0 +1,312 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+/**
+ * Chunk checksums (SQZ.CHUNK_CHECKSUM). By default, each chunk is validated with a SHA-1
+ * of its raw data. A file can instead declare a faster checksum in its header:
+ *
+ *   CHECKSUM_SHA1     - SHA-1 (20 bytes, default)
+ *   CHECKSUM_CRC32C   - CRC-32C (4 bytes)
+ *   CHECKSUM_XXHASH64 - xxHash64, seed 0 (8 bytes)
+ *   CHECKSUM_SHA256   - SHA-256 (32 bytes)
+ *
+ * All of these are returned as MessageDigests, so they can be used with Digest*Streams.
+ * Values are stored big-endian.
+ *
+ */
+public class SQZChecksum {
+    public static final int CHECKSUM_SHA1     = 0;
+    public static final int CHECKSUM_CRC32C   = 1;
+    public static final int CHECKSUM_XXHASH64 = 2;
+    public static final int CHECKSUM_SHA256   = 3;
+
+    private static final String[] NAMES = new String[] { "sha1", "crc32c", "xxhash64", "sha256" };
+
+    /**
+     * @return a new digest for the checksum type
+     * @throws IOException if the type isn't known
+     */
+    public static MessageDigest newDigest(int type) throws IOException {
+        try {
+            switch (type) {
+            case CHECKSUM_SHA1:
+                return MessageDigest.getInstance("SHA-1");
+            case CHECKSUM_CRC32C:
+                return new CRC32CDigest();
+            case CHECKSUM_XXHASH64:
+                return new XXHash64Digest();
+            case CHECKSUM_SHA256:
+                return MessageDigest.getInstance("SHA-256");
+            default:
+                throw new IOException("Unknown checksum type: "+type);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static String getName(int type) {
+        if (type >= 0 && type < NAMES.length) {
+            return NAMES[type];
+        }
+        return "unknown";
+    }
+
+    /**
+     * @param name - sha1, crc32c, xxhash64, or sha256
+     * @return the checksum type
+     * @throws SQZException if the name isn't known
+     */
+    public static int parse(String name) throws SQZException {
+        String n = name.toLowerCase().replace("-", "");
+        for (int i=0; i<NAMES.length; i++) {
+            if (NAMES[i].equals(n)) {
+                return i;
+            }
+        }
+        throw new SQZException("Unknown checksum: "+name+" (valid: sha1, crc32c, xxhash64, sha256)");
+    }
+
+    /**
+     * CRC-32C, using java.util.zip.CRC32C (Java 9+, hardware accelerated) if available.
+     */
+    public static class CRC32CDigest extends MessageDigest {
+        private static final int[] TABLE = new int[256];
+        private static final Class<?> JDK_CRC32C;
+
+        static {
+            for (int i=0; i<256; i++) {
+                int crc = i;
+                for (int j=0; j<8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+            Class<?> clazz = null;
+            try {
+                clazz = Class.forName("java.util.zip.CRC32C");
+            } catch (ClassNotFoundException e) {
+                // Java 7/8 -- use the table
+            }
+            JDK_CRC32C = clazz;
+        }
+
+        private final Checksum jdk;
+        private int crc = 0xFFFFFFFF;
+
+        public CRC32CDigest() {
+            super("CRC32C");
+            Checksum c = null;
+            if (JDK_CRC32C != null) {
+                try {
+                    c = (Checksum) JDK_CRC32C.getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    // use the table
+                }
+            }
+            this.jdk = c;
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 4;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            if (jdk != null) {
+                jdk.update(input);
+            } else {
+                crc = (crc >>> 8) ^ TABLE[(crc ^ input) & 0xFF];
+            }
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            if (jdk != null) {
+                jdk.update(input, offset, len);
+                return;
+            }
+            int c = crc;
+            for (int i=offset; i<offset+len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ input[i]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            int val = (jdk != null) ? (int) jdk.getValue() : ~crc;
+            engineReset();
+            return new byte[] { (byte) (val >>> 24), (byte) (val >>> 16), (byte) (val >>> 8), (byte) val };
+        }
+
+        @Override
+        protected void engineReset() {
+            if (jdk != null) {
+                jdk.reset();
+            }
+            crc = 0xFFFFFFFF;
+        }
+    }
+
+    /**
+     * xxHash64 (seed 0)
+     */
+    public static class XXHash64Digest extends MessageDigest {
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+        private long total;
+        private final byte[] buf = new byte[32];
+        private int bufLen;
+
+        public XXHash64Digest() {
+            super("XXHASH64");
+            engineReset();
+        }
+
+        private static long readLong(byte[] b, int i) {
+            return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+                    | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+        }
+
+        private static int readInt(byte[] b, int i) {
+            return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * PRIME2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * PRIME1;
+        }
+
+        private static long mergeRound(long acc, long val) {
+            acc ^= round(0, val);
+            return acc * PRIME1 + PRIME4;
+        }
+
+        /**
+         * Processes 32 byte stripes from b[off..off+len)
+         * @return the number of bytes processed
+         */
+        private int stripes(byte[] b, int off, int len) {
+            long a1 = v1;
+            long a2 = v2;
+            long a3 = v3;
+            long a4 = v4;
+            int i = off;
+            int end = off + len - 32;
+            while (i <= end) {
+                a1 = round(a1, readLong(b, i));
+                a2 = round(a2, readLong(b, i + 8));
+                a3 = round(a3, readLong(b, i + 16));
+                a4 = round(a4, readLong(b, i + 24));
+                i += 32;
+            }
+            v1 = a1;
+            v2 = a2;
+            v3 = a3;
+            v4 = a4;
+            return i - off;
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 8;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            engineUpdate(new byte[] { input }, 0, 1);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            total += len;
+            if (bufLen > 0) {
+                int n = Math.min(len, 32 - bufLen);
+                System.arraycopy(input, offset, buf, bufLen, n);
+                bufLen += n;
+                offset += n;
+                len -= n;
+                if (bufLen < 32) {
+                    return;
+                }
+                stripes(buf, 0, 32);
+                bufLen = 0;
+            }
+            int n = stripes(input, offset, len);
+            offset += n;
+            len -= n;
+            System.arraycopy(input, offset, buf, 0, len);
+            bufLen = len;
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            long h;
+            if (total >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = v3 + PRIME5;
+            }
+            h += total;
+
+            int i = 0;
+            while (i + 8 <= bufLen) {
+                h ^= round(0, readLong(buf, i));
+                h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+                i += 8;
+            }
+            if (i + 4 <= bufLen) {
+                h ^= (readInt(buf, i) & 0xFFFFFFFFL) * PRIME1;
+                h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+                i += 4;
+            }
+            while (i < bufLen) {
+                h ^= (buf[i] & 0xFF) * PRIME5;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+                i++;
+            }
+
+            h ^= h >>> 33;
+            h *= PRIME2;
+            h ^= h >>> 29;
+            h *= PRIME3;
+            h ^= h >>> 32;
+
+            engineReset();
+            byte[] out = new byte[8];
+            for (int j=0; j<8; j++) {
+                out[j] = (byte) (h >>> (56 - j * 8));
+            }
+            return out;
+        }
+
+        @Override
+        protected void engineReset() {
+            v1 = PRIME1 + PRIME2;
+            v2 = PRIME2;
+            v3 = 0;
+            v4 = -PRIME1;
+            total = 0;
+            bufLen = 0;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package io.compgen.sqz;
+
+import io.compgen.common.StringUtils;
+import io.compgen.common.io.DataIO;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table of contents for an SQZ file (v1.2+). This is written as a footer after the
+ * last chunk, but before the file SHA-1.
+ *
+ * +-------------+-------+=========+--------------+-------------+------+
+ * | MAGIC_INDEX | count | entries | index_offset | MAGIC_INDEX | sha1 |
+ * +-------------+-------+=========+--------------+-------------+------+
+ *
+ * Each entry:
+ * +------+--------+--------+------------+------------+
+ * | type | offset | length | read_count | first_read |
+ * +------+--------+--------+------------+------------+
+ *
+ * [count], [offset], [length], [read_count], and [first_read] are varints. [type] is
+ * one byte (SQZ.CHUNK_DATA, SQZ.CHUNK_TEXT, SQZ.CHUNK_BLOCK, or SQZ.CHUNK_BLOCK_PART).
+ * [offset] is the position of the chunk from the start of the file, and [length] is the
+ * size of the (compressed) chunk on disk.
+ * [index_offset] is a uint64 pointing to the first MAGIC_INDEX, so that the index can be
+ * found by reading from the end of the file.
+ *
+ */
+public class SQZChunkIndex {
+    public static final int TRAILER_LENGTH = 8 + SQZ.MAGIC_INDEX.length;
+
+    public static class Entry {
+        public final int type;
+        public final long offset;
+        public final long length;
+        public final long readCount;
+        public final long firstRead;
+
+        public Entry(int type, long offset, long length, long readCount, long firstRead) {
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.readCount = readCount;
+            this.firstRead = firstRead;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private long readCount = 0;
+
+    public void add(int type, long offset, long length, long readCount, long firstRead) {
+        entries.add(new Entry(type, offset, length, readCount, firstRead));
+        this.readCount += readCount;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Entry get(int idx) {
+        return entries.get(idx);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the total number of reads (fragments) in the file
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * Finds the data chunk that contains a given read.
+     *
+     * @param readOrdinal - the read (fragment) to find (zero-based)
+     * @return the index of the entry, or -1 if the read isn't in the file
+     */
+    public int findRead(long readOrdinal) {
+        if (readOrdinal < 0 || readOrdinal >= readCount) {
+            return -1;
+        }
+
+        int lo = 0;
+        int hi = entries.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (entries.get(mid).firstRead <= readOrdinal) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        // text chunks share [first_read] with the next data chunk
+        while (lo < entries.size() && (entries.get(lo).type != SQZ.CHUNK_DATA || entries.get(lo).firstRead + entries.get(lo).readCount <= readOrdinal)) {
+            lo++;
+        }
+        return lo < entries.size() ? lo : -1;
+    }
+
+    /**
+     * Writes the index (starting with MAGIC_INDEX).
+     * @param os
+     * @param indexOffset - the position in the file where the index is being written
+     * @throws IOException
+     */
+    public void write(OutputStream os, long indexOffset) throws IOException {
+        DataIO.writeRawBytes(os, SQZ.MAGIC_INDEX);
+        DataIO.writeVarInt(os, entries.size());
+        for (Entry entry: entries) {
+            DataIO.writeRawByte(os, (byte) (entry.type & 0xFF));
+            DataIO.writeVarInt(os, entry.offset);
+            DataIO.writeVarInt(os, entry.length);
+            DataIO.writeVarInt(os, entry.readCount);
+            DataIO.writeVarInt(os, entry.firstRead);
+        }
+        DataIO.writeUInt64(os, indexOffset);
+        DataIO.writeRawBytes(os, SQZ.MAGIC_INDEX);
+    }
+
+    /**
+     * Reads an index from a stream. The leading MAGIC_INDEX should have already been read.
+     * @param is
+     * @return
+     * @throws IOException
+     */
+    public static SQZChunkIndex read(InputStream is) throws IOException {
+        SQZChunkIndex index = new SQZChunkIndex();
+        long count = DataIO.readVarInt(is);
+        if (count < 0) {
+            throw new IOException("Invalid chunk index! Missing chunk count");
+        }
+        for (long i=0; i<count; i++) {
+            int type = DataIO.readByte(is);
+            long offset = DataIO.readVarInt(is);
+            long length = DataIO.readVarInt(is);
+            long readCount = DataIO.readVarInt(is);
+            long firstRead = DataIO.readVarInt(is);
+            if (firstRead < 0) {
+                throw new IOException("Invalid chunk index! Truncated entry: "+ i);
+            }
+            index.add(type, offset, length, readCount, firstRead);
+        }
+        byte[] trailer = DataIO.readRawBytes(is, TRAILER_LENGTH);
+        if (trailer == null || !Arrays.equals(SQZ.MAGIC_INDEX, Arrays.copyOfRange(trailer, 8, TRAILER_LENGTH))) {
+            throw new IOException("Invalid chunk index! Missing index trailer");
+        }
+        return index;
+    }
+
+    /**
+     * Loads the index from the end of a file, without moving the channel's position.
+     *
+     * @param channel
+     * @param suffixLen - the number of bytes after the index (file SHA-1)
+     * @return the index, or null if the file doesn't have one
+     * @throws IOException
+     */
+    public static SQZChunkIndex load(FileChannel channel, int suffixLen) throws IOException {
+        long end = channel.size() - suffixLen;
+        if (end < TRAILER_LENGTH) {
+            return null;
+        }
+
+        byte[] trailer = readFully(channel, end - TRAILER_LENGTH, TRAILER_LENGTH);
+        if (!Arrays.equals(SQZ.MAGIC_INDEX, Arrays.copyOfRange(trailer, 8, TRAILER_LENGTH))) {
+            return null;
+        }
+
+        long indexOffset = DataIO.bytesUint64(Arrays.copyOfRange(trailer, 0, 8));
+        if (indexOffset < 0 || indexOffset > end - TRAILER_LENGTH - SQZ.MAGIC_INDEX.length) {
+            throw new IOException("Invalid chunk index offset: "+indexOffset);
+        }
+
+        byte[] buf = readFully(channel, indexOffset, (int) (end - indexOffset));
+        ByteArrayInputStream bais = new ByteArrayInputStream(buf);
+        byte[] magic = DataIO.readRawBytes(bais, SQZ.MAGIC_INDEX.length);
+        if (!Arrays.equals(SQZ.MAGIC_INDEX, magic)) {
+            throw new IOException("Invalid chunk index! Magic: " + StringUtils.byteArrayToString(magic));
+        }
+        return read(bais);
+    }
+
+    protected static byte[] readFully(FileChannel channel, long pos, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file!");
+            }
+        }
+        return buf.array();
+    }
+}
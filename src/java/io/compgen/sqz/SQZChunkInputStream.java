@@ -4,223 +4,1445 @@ import io.compgen.common.StringUtils;
 import io.compgen.common.io.DataIO;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 
 import javax.crypto.Cipher;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.CipherInputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
-
 public class SQZChunkInputStream extends InputStream {
     private final InputStream parent;
+    private InputStream source;
     private final Cipher cipher;
     private final SecretKeySpec secret;
-    private final int compressionType;
+    private Future<SecretKeySpec> pendingSecret = null;  // key still being derived
+    private final SQZCodec codec;
+    private final SQZDeflateCodec deflate = new SQZDeflateCodec();
+    private SQZDeflateCodec dictDeflate = null;    // data chunks with a preset dictionary
     private final int ivLen;
-    private final MessageDigest md;
+    private int digestLen;
+    private int checksumType = SQZChecksum.CHECKSUM_SHA1;
+    private SQZInputStream fileDigest = null;      // SQZ.DIGEST_CHUNKS
+    private final boolean gcm;                     // AES-GCM chunks (no checksum)
+    private byte[] headerAAD = new byte[0];        // GCM, see SQZEncryption.chunkAAD()
+    private boolean peeked = false;                // GCM, the magic of the next chunk has been read
+    private byte[] nextMagic = null;               // (null at the end of the stream)
+    private final boolean indexed;
+    private final boolean columnar;
+    private boolean chunkCodecs = false;
     private boolean verbose = false;
-    
-    private InputStream wrapped = null;;
 
-    private byte[] buffer = new byte[8192];
-    private byte[] chunkDigest = null;
+    private byte[] buffer = null;
     private int pos = 0;
     private int buflen = 0;
     private boolean closed = false;
+    private boolean eof = false;
     private int chunkCount = 0;
+    private int framesRead = 0;
+    private int openFrames = 0;     // chunks read when the stream was opened (dictionary)
+    private long chunkFirstRead = 0;
+    private long chunkReadCount = -1;
+    private long nextFirstRead = 0;
+    private int columnMask = SQZ.ALL_COLUMNS;
+    private ByteArrayInputStream[] columns = null;
+    private long columnReadsLeft = 0;
     private Map<String, String> text = new HashMap<String, String>();
-    
-    public SQZChunkInputStream(InputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int ivLen, boolean verbose) throws NoSuchAlgorithmException, IOException {
+    private Map<String, Block> blocks = new HashMap<String, Block>();
+    private Block lastBlock = null;                // block that new block parts belong to
+    private FileChannel channel = null;            // for reading block parts again
+    private RandomAccessFile spill = null;         // block parts from streams (see addBlockPart())
+    private File spillFile = null;
+    private SQZChunkIndex index = null;
+    private ChunkValidator validator = null;
+
+    private int threads = 1;
+    private ExecutorService pool = null;
+    private Thread reader = null;
+    private BlockingQueue<Future<DecodedChunk>> readAhead = null;
+    private final ThreadLocal<Cipher> workerCipher = new ThreadLocal<Cipher>();
+
+    /**
+     * Checks the records in a decoded data chunk (see setValidator()). This is called
+     * from the decoding threads, so it must be thread-safe.
+     */
+    public interface ChunkValidator {
+        /**
+         * @param columns - the columns of a columnar chunk (data/len are then unused)
+         * @throws IOException if the records in the chunk aren't valid
+         */
+        public void validate(int chunkNum, long readCount, byte[] data, int len, byte[][] columns) throws IOException;
+    }
+
+    /**
+     * A chunk as read from the parent stream (still compressed/encrypted)
+     */
+    private static class RawChunk {
+        public final int chunkNum;
+        public final int type;
+        public final boolean text;
+        public final byte[] digest;
+        public final byte[] iv;
+        public final long readCount;
+        public final SQZCodec codec;
+        public final byte[] payload;
+        public final long offset;   // position of the chunk in the file (-1 if unknown)
+        public final long length;
+        public final boolean last;  // the last chunk in the file (only known for AES-GCM)
+
+        public RawChunk(int chunkNum, int type, byte[] digest, byte[] iv, long readCount, SQZCodec codec, byte[] payload, long offset, long length, boolean last) {
+            this.chunkNum = chunkNum;
+            this.type = type;
+            this.text = type != SQZ.CHUNK_DATA;
+            this.digest = digest;
+            this.iv = iv;
+            this.readCount = readCount;
+            this.codec = codec;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+            this.last = last;
+        }
+
+        /**
+         * @return this chunk, without the payload (it can be read again from offset)
+         */
+        public RawChunk withoutPayload() {
+            return new RawChunk(chunkNum, type, digest, iv, readCount, codec, null, offset, length, last);
+        }
+
+        public RawChunk asLast() {
+            return new RawChunk(chunkNum, type, digest, iv, readCount, codec, payload, offset, length, true);
+        }
+    }
+
+    /**
+     * A chunk that has been decrypted, decompressed and validated
+     */
+    private static class DecodedChunk {
+        public final int chunkNum;
+        public final int type;
+        public final boolean text;
+        public final long readCount;
+        public final byte[] data;
+        public final int len;
+        public final byte[][] columns;
+        public final RawChunk raw;  // annotation block chunks only
+
+        public DecodedChunk(int chunkNum, int type, long readCount, byte[] data, int len, byte[][] columns, RawChunk raw) {
+            this.chunkNum = chunkNum;
+            this.type = type;
+            this.text = type != SQZ.CHUNK_DATA;
+            this.readCount = readCount;
+            this.data = data;
+            this.len = len;
+            this.columns = columns;
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * An annotation block (SQZ.MAGIC_BLOCK_CHUNK) that is stored in one or more chunks.
+     * Only the chunk locations are kept -- the chunks are decoded when the block is read
+     * (see openText()). If the file can't be read again (ex: stdin), the payloads are
+     * copied to a temporary file (still compressed/encrypted).
+     */
+    private static class Block {
+        public final String name;
+        public final boolean binary;
+        public final List<BlockPart> parts = new ArrayList<BlockPart>();
+
+        public Block(String name, boolean binary) {
+            this.name = name;
+            this.binary = binary;
+        }
+    }
+
+    private static class BlockPart {
+        public final RawChunk raw;      // without the payload
+        public final long spillOffset;  // position of the payload in the temporary file (or -1)
+        public final int spillLength;
+
+        public BlockPart(RawChunk raw, long spillOffset, int spillLength) {
+            this.raw = raw;
+            this.spillOffset = spillOffset;
+            this.spillLength = spillLength;
+        }
+    }
+
+    /**
+     * @param parent
+     * @param compressionType
+     * @param cipher
+     * @param secret
+     * @param ivLen
+     * @param indexed - v1.2+ chunks (with read counts), followed by a chunk index
+     * @param columnar - data chunks are stored as separately compressed columns (v1.2+)
+     * @param verbose
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public SQZChunkInputStream(InputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int ivLen, boolean indexed, boolean columnar, boolean verbose) throws NoSuchAlgorithmException, IOException {
+        if (columnar && !indexed) {
+            throw new IOException("Columnar chunks require a v1.2+ SQZ file!");
+        }
         this.parent = parent;
+        this.columnar = columnar;
+        this.source = parent;
         this.cipher = cipher;
         this.secret = secret;
         this.ivLen = ivLen;
-        this.compressionType = compressionType;
-        this.md = MessageDigest.getInstance("SHA-1");
+        this.codec = getCodec(compressionType);
+        this.gcm = SQZEncryption.isGCM(cipher);
+        if (gcm && !indexed) {
+            throw new IOException("AES-GCM chunks require a v1.2+ SQZ file!");
+        }
+        this.digestLen = gcm ? 0 : SQZChecksum.newDigest(checksumType).getDigestLength();
+        this.indexed = indexed;
         this.verbose = verbose;
     }
 
+    public SQZChunkInputStream(InputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int ivLen, boolean indexed, boolean verbose) throws NoSuchAlgorithmException, IOException {
+        this(parent, compressionType, cipher, secret, ivLen, indexed, false, verbose);
+    }
+
+    public SQZChunkInputStream(InputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int ivLen, boolean verbose) throws NoSuchAlgorithmException, IOException {
+        this(parent, compressionType, cipher, secret, ivLen, false, verbose);
+    }
+
+    public SQZChunkInputStream(InputStream parent, SQZHeader header, Cipher cipher, SecretKeySpec secret, int ivLen, boolean verbose) throws NoSuchAlgorithmException, IOException {
+        this(parent, header.compressionType, cipher, secret, ivLen, header.major > 1 || header.minor > 1, header.columnar, verbose);
+        init(header);
+    }
+
+    /**
+     * @param secret - the key, which may still be being derived (SQZKey.deriveAsync()). Chunks
+     *                 can be read from the parent stream before it is ready.
+     */
+    public SQZChunkInputStream(InputStream parent, SQZHeader header, Cipher cipher, Future<SecretKeySpec> secret, int ivLen, boolean verbose) throws NoSuchAlgorithmException, IOException {
+        this(parent, header, cipher, secret, ivLen, null, verbose);
+    }
+
+    /**
+     * @param channel - the file that parent reads from (from the start of the file). If not
+     *                  null, annotation blocks are read from here when needed, instead of
+     *                  being kept in memory.
+     */
+    public SQZChunkInputStream(InputStream parent, SQZHeader header, Cipher cipher, Future<SecretKeySpec> secret, int ivLen, FileChannel channel, boolean verbose) throws NoSuchAlgorithmException, IOException {
+        this(parent, header.compressionType, cipher, (SecretKeySpec) null, ivLen, header.major > 1 || header.minor > 1, header.columnar, verbose);
+        this.pendingSecret = secret;
+        this.channel = channel;
+        init(header);
+    }
+
+    private void init(SQZHeader header) throws NoSuchAlgorithmException, IOException {
+        this.chunkCodecs = header.chunkCodecs;
+        this.checksumType = header.checksumType;
+        this.headerAAD = SQZEncryption.headerAAD(header);
+        this.digestLen = gcm ? 0 : SQZChecksum.newDigest(checksumType).getDigestLength();
+        if (header.digestChunks && parent instanceof SQZInputStream) {
+            this.fileDigest = (SQZInputStream) parent;
+        }
+        if (header.deflateDict) {
+            readDictionary();
+            openFrames = framesRead;
+        }
+    }
+
+    /**
+     * Reads chunks until the deflate dictionary is found (SQZ.DEFLATE_DICT). The dictionary
+     * comes before the first data chunk, so this is done when the stream is opened -- the
+     * data chunks can then be read in any order (seek). Other text chunks found along the
+     * way are stored as usual. Empty data chunks (ex: the last chunk of an empty AES-GCM
+     * file) don't need the dictionary.
+     */
+    private void readDictionary() throws IOException {
+        RawChunk raw;
+        while (dictDeflate == null && (raw = readRawChunk(null)) != null) {
+            if (!raw.text && raw.readCount != 0) {
+                throw new IOException("Missing deflate dictionary! (Chunk #" + raw.chunkNum + ")");
+            }
+            loadChunk(decodeChunk(raw, cipher));
+        }
+    }
+
+    /**
+     * Set the number of threads used to decode chunks. With more than one thread,
+     * chunks are read from the parent stream by a background thread and
+     * decompressed/decrypted ahead of the reader. This must be set before
+     * the first read.
+     *
+     * @param threads
+     * @throws IOException
+     */
+    public void setThreads(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IOException("Invalid number of threads: "+threads);
+        }
+        if (reader != null || framesRead > openFrames) {
+            throw new IOException("The number of threads must be set before reading!");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets which columns are decompressed for columnar data chunks (default: all). Other
+     * columns are skipped. This must be set before the first read.
+     *
+     * @param mask - bit mask of columns (see SQZ.columnMask())
+     * @throws IOException
+     */
+    public void setColumns(int mask) throws IOException {
+        if (reader != null || framesRead > openFrames) {
+            throw new IOException("The columns must be set before reading!");
+        }
+        this.columnMask = mask;
+    }
+
+    /**
+     * Sets a validator that is run on each data chunk after it has been decoded. With more
+     * than one thread, chunks are validated in parallel. This must be set before the first read.
+     *
+     * @param validator
+     * @throws IOException
+     */
+    public void setValidator(ChunkValidator validator) throws IOException {
+        if (reader != null || framesRead > openFrames) {
+            throw new IOException("The validator must be set before reading!");
+        }
+        this.validator = validator;
+    }
+
+    /**
+     * Moves to the next record of a columnar file, loading the next data chunk if needed.
+     *
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    public boolean nextRecord() throws IOException {
+        if (!columnar) {
+            throw new IOException("Not a columnar SQZ file!");
+        }
+        while (columnReadsLeft <= 0) {
+            if (!readChunk()) {
+                return false;
+            }
+        }
+        columnReadsLeft--;
+        return true;
+    }
+
+    /**
+     * @param col
+     * @return the column of the current columnar chunk, or null if the column wasn't decoded.
+     */
+    public InputStream getColumn(int col) {
+        if (columns == null || col >= columns.length) {
+            return null;
+        }
+        return columns[col];
+    }
+
     @Override
     public int read() throws IOException {
+        if (columnar) {
+            throw new IOException("Columnar chunks must be read by column!");
+        }
         if (pos >= buflen) {
-            if (wrapped != null) {
-                buflen = wrapped.read(buffer);
+            if (!readChunk()) {
+                return -1;
             }
+        }
 
-            if (wrapped == null || buflen < 1) {
-                if (chunkDigest != null) {
-                    byte[] digest = md.digest();
-                    if (verbose) {
-                        System.err.println("Block: "+chunkCount+" SHA-1 Got: "+StringUtils.byteArrayToString(digest)+" Expected:"+StringUtils.byteArrayToString(chunkDigest));
-                    }
-                    if (!Arrays.equals(chunkDigest, digest)) {
-                        throw new IOException("Invalid SHA-1 signature for block "+chunkCount+" Got: "+StringUtils.byteArrayToString(digest)+" Expected:"+StringUtils.byteArrayToString(chunkDigest));
-                    }
-                }
-                
-                if (!readChunk()) {
-                    return -1;
-                }
-                
-                buflen = wrapped.read(buffer);
-                if (buflen < 1) {
-                    return buflen;
-                }
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (columnar) {
+            throw new IOException("Columnar chunks must be read by column!");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= buflen) {
+            if (!readChunk()) {
+                return -1;
             }
-            pos = 0;
         }
 
-        return buffer[pos++] & 0xFF;
+        int count = Math.min(len, buflen - pos);
+        System.arraycopy(buffer, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (columnar) {
+            throw new IOException("Columnar chunks must be read by column!");
+        }
+        long skipped = 0;
+        while (skipped < n) {
+            if (pos >= buflen && !readChunk()) {
+                break;
+            }
+            int count = (int) Math.min(n - skipped, buflen - pos);
+            pos += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buflen - pos;
     }
 
-    
+
     public void findNextChunk() throws IOException {
-        byte one = (byte) (parent.read() & 0xFF);
-        byte two = (byte) (parent.read() & 0xFF);
-        byte three = (byte) (parent.read() & 0xFF);
-        byte four = (byte) (parent.read() & 0xFF);
-        
+        byte one = (byte) (source.read() & 0xFF);
+        byte two = (byte) (source.read() & 0xFF);
+        byte three = (byte) (source.read() & 0xFF);
+        byte four = (byte) (source.read() & 0xFF);
+
         while (one != SQZ.MAGIC_CHUNK[0] && two != SQZ.MAGIC_CHUNK[1] && three != SQZ.MAGIC_CHUNK[2] && four != SQZ.MAGIC_CHUNK[3]) {
-            byte tmp = (byte) (parent.read() & 0xFF);
+            byte tmp = (byte) (source.read() & 0xFF);
             one = two;
             two = three;
             three = four;
             four = tmp;
         }
-        
+
         readChunk(true);
     }
-    
+
     public void readAllChunks() throws IOException {
         while (readChunk()) {
         }
     }
-    
+
+    /**
+     * Reads the text chunks in the rest of the stream. The payloads of data chunks are
+     * skipped, without being decrypted or decompressed. Only the first chunk of each
+     * annotation block is decoded (for the name), if the block can be read again later.
+     *
+     * @param src - if not null, read from this stream instead (positioned at the start of a
+     *              chunk, ex: from a FileChannel, which can skip payloads without reading them).
+     *              The current stream is left where it is.
+     * @throws IOException
+     */
+    public void readTextChunks(InputStream src) throws IOException {
+        InputStream prevSource = source;
+        int prevFrames = framesRead;
+        int prevCount = chunkCount;
+        boolean prevEOF = eof;
+        boolean prevPeeked = peeked;
+        byte[] prevMagic = nextMagic;
+        if (src != null) {
+            source = src;
+            eof = false;
+            peeked = false;
+        }
+        try {
+            RawChunk raw;
+            while ((raw = readRawChunk(null, true)) != null) {
+                if (raw.type == SQZ.CHUNK_BLOCK_PART && raw.payload == null) {
+                    addBlockPart(raw);
+                } else if (raw.text) {
+                    loadChunk(decodeChunk(raw, cipher));
+                }
+            }
+        } finally {
+            if (src != null) {
+                source = prevSource;
+                framesRead = prevFrames;
+                chunkCount = prevCount;
+                eof = prevEOF;
+                peeked = prevPeeked;
+                nextMagic = prevMagic;
+            }
+        }
+    }
+
+    /**
+     * Reads a single text chunk (ex: found with the chunk index). The current stream is
+     * left where it is.
+     *
+     * @param src - stream positioned at the start of the chunk. For AES-GCM, this must also
+     *              include the magic of the next chunk (or the chunk index).
+     * @param chunkNum - the number of chunks before this one
+     * @throws IOException
+     */
+    public void readTextChunk(InputStream src, int chunkNum) throws IOException {
+        InputStream prevSource = source;
+        int prevFrames = framesRead;
+        int prevCount = chunkCount;
+        boolean prevEOF = eof;
+        boolean prevPeeked = peeked;
+        byte[] prevMagic = nextMagic;
+        source = src;
+        framesRead = chunkNum;
+        eof = false;
+        peeked = false;
+        try {
+            RawChunk raw = readRawChunk(null, true);
+            if (raw == null || !raw.text) {
+                throw new IOException("Not a text chunk! (Chunk #" + (chunkNum + 1) + ")");
+            }
+            if (raw.type == SQZ.CHUNK_BLOCK_PART && raw.payload == null) {
+                addBlockPart(raw);
+            } else {
+                loadChunk(decodeChunk(raw, cipher));
+            }
+        } finally {
+            source = prevSource;
+            framesRead = prevFrames;
+            chunkCount = prevCount;
+            eof = prevEOF;
+            peeked = prevPeeked;
+            nextMagic = prevMagic;
+        }
+    }
+
+    /**
+     * Reads the rest of the stream, checking each chunk (magic, lengths, checksum, and
+     * the validator, if set), without keeping the decoded data. Text chunks are still
+     * stored. For v1.2+ files, the chunk index at the end of the stream is checked
+     * against the chunks that were read (type, read count, and first read of each chunk).
+     *
+     * This must be called before any other reads.
+     *
+     * @return the number of reads (fragments) in the data chunks, or -1 for v1.1 files
+     * @throws IOException if the stream isn't valid
+     */
+    public long verifyChunks() throws IOException {
+        if (reader != null || framesRead > openFrames) {
+            throw new IOException("Chunks must be verified before reading!");
+        }
+        List<DecodedChunk> seen = new ArrayList<DecodedChunk>();
+
+        while (true) {
+            DecodedChunk chunk;
+            if (threads > 1) {
+                chunk = nextReadAhead();
+            } else {
+                RawChunk raw = readRawChunk(null);
+                chunk = (raw == null) ? null : decodeChunk(raw, cipher);
+            }
+            if (chunk == null) {
+                break;
+            }
+            // only the chunk summary is kept
+            seen.add(new DecodedChunk(chunk.chunkNum, chunk.type, chunk.readCount, null, 0, null, null));
+            if (chunk.text) {
+                loadChunk(chunk);
+            } else {
+                chunkCount = chunk.chunkNum;
+            }
+        }
+        loadChunk(null);
+
+        if (!indexed) {
+            return -1;
+        }
+        if (index == null) {
+            throw new IOException("Missing chunk index!");
+        }
+
+        long reads = nextFirstRead;
+        for (DecodedChunk chunk: seen) {
+            SQZChunkIndex.Entry entry = index.get(chunk.chunkNum - 1);
+            if (entry.type != chunk.type) {
+                throw new IOException("Invalid chunk index! Wrong type for chunk "+chunk.chunkNum);
+            }
+            if (entry.readCount != chunk.readCount) {
+                throw new IOException("Invalid chunk index! Chunk "+chunk.chunkNum+" has "+chunk.readCount+" reads, index has "+entry.readCount);
+            }
+            if (!chunk.text) {
+                if (entry.firstRead != reads) {
+                    throw new IOException("Invalid chunk index! Chunk "+chunk.chunkNum+" starts at read "+reads+", index has "+entry.firstRead);
+                }
+                reads += chunk.readCount;
+            }
+        }
+        if (reads != index.getReadCount()) {
+            throw new IOException("Invalid chunk index! Expected "+reads+" reads, index has "+index.getReadCount());
+        }
+        nextFirstRead = reads;
+        return reads;
+    }
+
     /**
-     * Chunk format:                     
+     * Chunk format:
      * +--------+----------+----------+--------+=================+
      * | magic1 | raw-sha1 | comp_len | magic2 | compressed data |
      * +--------+----------+----------+--------+=================+
-     * 
+     *
      * Encrypted version
-     *                                     |-------- encrypted -------|       
+     *                                     |-------- encrypted -------|
      * +--------+----------+----+----------+--------+=================+
      * | magic1 | raw-sha1 | IV | comp_len | magic2 | compressed data |
      * +--------+----------+----+----------+--------+=================+
-     * 
-     * [magic1] is the SQZ.MAGIC_CHUNK
-     * [magic2] is either SQZ.MAGIC_DATA_CHUNK or SQZ.MAGIC_TEXT_CHUNK
+     *
+     * v1.2 chunks also include the number of reads in the chunk (varint)
+     * +--------+----------+------+-------+----------+--------+=================+
+     * | magic1 | raw-sha1 | [IV] | reads | comp_len | magic2 | compressed data |
+     * +--------+----------+------+-------+----------+--------+=================+
+     *
+     * [magic1] is SQZ.MAGIC_CHUNK, SQZ.MAGIC_TEXT_CHUNK, or (v1.2+) SQZ.MAGIC_BLOCK_CHUNK
+     *          or SQZ.MAGIC_BLOCK_PART_CHUNK (see SQZChunkOutputStream.writeBlock())
+     * [magic2] is SQZ.MAGIC_CHUNK_DATA
      * [comp_len] is the compressed data length
-     * 
-     * 
-     * magic2 does two things: 1) tells us what kind of chunk this is (text vs data)
-     *                         2) acts as a marker that decryption worked properly
+     *
+     *
+     * magic1 tells us what kind of chunk this is (text vs data)
+     * magic2 acts as a marker that decryption worked properly
+     *
+     * AES-GCM chunks (v1.2+) have no raw-sha1. The IV is a 12 byte nonce, and the
+     * data is sealed as GCM segments, which also authenticate the file header, the
+     * chunk header, the chunk number, and if this is the last chunk (see SQZEncryption).
+     * To know if a chunk is the last one, the magic of the next chunk is read with it.
+     *
+     * In v1.2 files, the last chunk is followed by the chunk index (SQZ.MAGIC_INDEX).
      */
-    
+
     protected boolean readChunk() throws IOException {
         return readChunk(false);
     }
-    
+
+    /**
+     * Loads the next data chunk into the read buffer. Any text chunks found along
+     * the way are stored.
+     *
+     * @param nomagic - the chunk magic has already been read from the parent stream
+     * @return true if a data chunk was loaded, false at the end of the stream
+     * @throws IOException
+     */
     protected boolean readChunk(boolean nomagic) throws IOException {
-        byte[] magic = DataIO.readRawBytes(parent, SQZ.MAGIC_CHUNK.length);
-        if (magic == null) {
+        while (true) {
+            DecodedChunk chunk;
+            if (threads > 1 && !nomagic) {
+                chunk = nextReadAhead();
+            } else {
+                RawChunk raw = readRawChunk(nomagic ? SQZ.MAGIC_CHUNK : null);
+                chunk = (raw == null) ? null : decodeChunk(raw, cipher);
+                nomagic = false;
+            }
+
+            if (loadChunk(chunk)) {
+                return chunk != null;
+            }
+        }
+    }
+
+    /**
+     * Makes a decoded chunk the current chunk. Text chunks are stored.
+     *
+     * @return true if the chunk was a data chunk (or the end of the stream)
+     */
+    private boolean loadChunk(DecodedChunk chunk) throws IOException {
+        if (chunk == null) {
+            buffer = null;
+            pos = 0;
+            buflen = 0;
+            columns = null;
+            columnReadsLeft = 0;
+            return true;
+        }
+
+        chunkCount = chunk.chunkNum;
+
+        if (chunk.type == SQZ.CHUNK_BLOCK_PART) {
+            addBlockPart(chunk.raw);
             return false;
         }
+        lastBlock = null;
 
-        boolean chunkText = false;
-        chunkCount ++;
-        
-        if (Arrays.equals(magic, SQZ.MAGIC_CHUNK)) {
-            chunkText = false;
-        } else if (Arrays.equals(magic, SQZ.MAGIC_TEXT_CHUNK)) {
-            chunkText = true;
+        if (chunk.type == SQZ.CHUNK_BLOCK) {
+            ByteArrayInputStream bais = new ByteArrayInputStream(chunk.data, 0, chunk.len);
+            String name = DataIO.readString(bais);
+            int flags = bais.read();
+            if (name == null || flags < 0) {
+                throw new IOException("Invalid annotation block! (Chunk #" + chunk.chunkNum + ")");
+            }
+            if (blocks.containsKey(name)) {
+                // already loaded (the rest of the block is ignored)
+                return false;
+            }
+            lastBlock = new Block(name, (flags & SQZ.BLOCK_BINARY) != 0);
+            blocks.put(name, lastBlock);
+            addBlockPart(chunk.raw);
+        } else if (chunk.text) {
+            ByteArrayInputStream bais = new ByteArrayInputStream(chunk.data, 0, chunk.len);
+            String name = DataIO.readString(bais);
+            String text = DataIO.readString(bais);
+            if (SQZDictionary.TEXT_NAME.equals(name)) {
+                if (dictDeflate != null) {
+                    // already loaded (text chunks can be read again with readTextChunk())
+                    return false;
+                }
+                dictDeflate = new SQZDeflateCodec(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, SQZDictionary.fromText(text));
+            } else {
+                this.text.put(name,  text);
+            }
+        } else if (chunk.columns != null) {
+            columns = new ByteArrayInputStream[chunk.columns.length];
+            for (int i=0; i<columns.length; i++) {
+                if (chunk.columns[i] != null) {
+                    columns[i] = new ByteArrayInputStream(chunk.columns[i]);
+                }
+            }
+            columnReadsLeft = chunk.readCount;
+
+            chunkFirstRead = nextFirstRead;
+            chunkReadCount = chunk.readCount;
+            nextFirstRead += chunk.readCount;
+            return true;
+        } else if (chunk.len > 0) {
+            buffer = chunk.data;
+            pos = 0;
+            buflen = chunk.len;
+
+            chunkFirstRead = nextFirstRead;
+            chunkReadCount = chunk.readCount;
+            if (chunk.readCount >= 0) {
+                nextFirstRead += chunk.readCount;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Skips ahead to the data chunk that contains the given read (v1.2+). Chunks before this
+     * one are read from the parent stream, but aren't decrypted or decompressed. Text chunks
+     * are still loaded.
+     *
+     * @param readOrdinal - the read (fragment) to skip to (zero-based)
+     * @return true if the stream is now at the start of the chunk that contains the read,
+     *         false if no chunks could be skipped (v1.1 files, or the read is in the current chunk).
+     * @throws IOException
+     */
+    public boolean skipToRead(long readOrdinal) throws IOException {
+        if (!indexed || readOrdinal < nextFirstRead) {
+            return false;
+        }
+
+        buffer = null;
+        pos = 0;
+        buflen = 0;
+        columns = null;
+        columnReadsLeft = 0;
+
+        if (reader != null) {
+            // chunks are already being decoded in the background...
+            while (readChunk()) {
+                if (readOrdinal < chunkFirstRead + chunkReadCount) {
+                    return true;
+                }
+            }
+            return true;
+        }
+
+        RawChunk raw;
+        while ((raw = readRawChunk(null)) != null) {
+            if (!raw.text && nextFirstRead + raw.readCount <= readOrdinal) {
+                nextFirstRead += raw.readCount;
+                chunkCount = raw.chunkNum;
+                continue;
+            }
+            if (loadChunk(decodeChunk(raw, cipher))) {
+                return true;
+            }
+        }
+        loadChunk(null);
+        return true;
+    }
+
+    /**
+     * Adds a chunk to the current annotation block. Only the location of the chunk is
+     * kept. If it can't be read from the file again, the payload is copied to a
+     * temporary file.
+     */
+    private void addBlockPart(RawChunk raw) throws IOException {
+        if (lastBlock == null) {
+            return;
+        }
+        if (channel != null && raw.offset >= 0) {
+            lastBlock.parts.add(new BlockPart(raw.withoutPayload(), -1, 0));
+            return;
+        }
+        if (spill == null) {
+            spillFile = File.createTempFile("sqz-", ".tmp");
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        long spillOffset = spill.length();
+        spill.seek(spillOffset);
+        spill.write(raw.payload);
+        lastBlock.parts.add(new BlockPart(raw.withoutPayload(), spillOffset, raw.payload.length));
+    }
+
+    /**
+     * Start reading chunks from a new location (v1.2+). The new source should start at the
+     * beginning of a chunk and end at the end of the chunk index.
+     *
+     * @param src - stream positioned at the start of a chunk
+     * @param chunkNum - the number of chunks before this one
+     * @param firstRead - the ordinal of the first read in this chunk
+     * @throws IOException
+     */
+    public void seek(InputStream src, int chunkNum, long firstRead) throws IOException {
+        if (!indexed) {
+            throw new IOException("Seeking requires a v1.2+ SQZ file!");
+        }
+        stopReadAhead();
+        source = src;
+        framesRead = chunkNum;
+        chunkCount = chunkNum;
+        peeked = false;
+        nextFirstRead = firstRead;
+        chunkFirstRead = firstRead;
+        chunkReadCount = -1;
+        eof = false;
+        buffer = null;
+        pos = 0;
+        buflen = 0;
+        columns = null;
+        columnReadsLeft = 0;
+    }
+
+    /**
+     * @return the number of reads in the current chunk (v1.2+)
+     */
+    public long getChunkReadCount() {
+        return chunkReadCount;
+    }
+
+    /**
+     * @return the ordinal of the first read in the current chunk (v1.2+)
+     */
+    public long getChunkFirstRead() {
+        return chunkFirstRead;
+    }
+
+    /**
+     * Reads the next chunk from the parent stream, without decrypting or decompressing it.
+     *
+     * @param magic - if not null, the magic bytes have already been read from the parent stream
+     * @return the raw chunk or null at the end of the stream
+     * @throws IOException
+     */
+    private RawChunk readRawChunk(byte[] magic) throws IOException {
+        return readRawChunk(magic, false);
+    }
+
+    /**
+     * @param skipData - skip the payload of data chunks (returned with a null payload). The
+     *                   payloads of annotation block parts are also skipped, if they can be
+     *                   read again later.
+     */
+    private RawChunk readRawChunk(byte[] magic, boolean skipData) throws IOException {
+        if (eof) {
+            return null;
+        }
+        if (magic == null) {
+            if (peeked) {
+                magic = nextMagic;
+                peeked = false;
+            } else {
+                magic = DataIO.readRawBytes(source, SQZ.MAGIC_CHUNK.length);
+            }
+            if (magic == null) {
+                eof = true;
+                return null;
+            }
+        }
+
+        if (indexed && Arrays.equals(magic, SQZ.MAGIC_INDEX)) {
+            readIndex();
+            eof = true;
+            return null;
+        }
+
+        framesRead ++;
+        RawChunk raw = parseRawChunk(source, magic, framesRead, skipData);
+        if (gcm) {
+            // the last chunk (before the index) is sealed differently
+            nextMagic = DataIO.readRawBytes(source, SQZ.MAGIC_CHUNK.length);
+            peeked = true;
+            if (nextMagic == null || Arrays.equals(nextMagic, SQZ.MAGIC_INDEX)) {
+                raw = raw.asLast();
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Reads the rest of a chunk (after the magic) from a stream.
+     */
+    private RawChunk parseRawChunk(InputStream in, byte[] magic, int chunkNum, boolean skipData) throws IOException {
+        int chunkType = SQZ.chunkType(magic);
+        if (chunkType < 0 || (!indexed && chunkType > SQZ.CHUNK_TEXT)) {
+            throw new IOException("Invalid chunk! " + chunkNum + " Magic: " + StringUtils.byteArrayToString(magic));
+        }
+        long offset = position(in);
+        if (offset >= 0) {
+            offset -= magic.length;
+        }
+
+        byte[] chunkDigest = (digestLen > 0) ? DataIO.readRawBytes(in, digestLen) : new byte[0];
+        byte[] iv = null;
+
+        if (cipher != null) {
+            iv = DataIO.readRawBytes(in, ivLen);
+        }
+
+        long readCount = -1;
+        if (indexed) {
+            readCount = DataIO.readVarInt(in);
+        }
+
+        SQZCodec chunkCodec = codec;
+        if (chunkCodecs) {
+            chunkCodec = getCodec((int) DataIO.readVarInt(in));
+        }
+        if (chunkType == SQZ.CHUNK_DATA && dictDeflate != null && chunkCodec == deflate) {
+            chunkCodec = dictDeflate;
+        }
+
+        boolean digesting = fileDigest != null && in == parent;
+
+        byte[] payload;
+        if (skipData && (chunkType == SQZ.CHUNK_DATA || (chunkType == SQZ.CHUNK_BLOCK_PART && channel != null && offset >= 0))) {
+            long payloadLen = DataIO.readVarInt(in);
+            if (digesting) {
+                fileDigest.setDigesting(false);
+            }
+            boolean skipped = payloadLen >= 0 && skipFully(in, payloadLen);
+            if (digesting) {
+                fileDigest.setDigesting(true);
+            }
+            if (chunkDigest == null || (cipher != null && iv == null) || !skipped) {
+                throw new IOException("Truncated chunk! (Chunk #" + chunkNum + ")");
+            }
+            payload = null;
         } else {
-            throw new IOException("Invalid chunk! " + chunkCount + " Magic: " + StringUtils.byteArrayToString(magic));
+            if (digesting) {
+                // the chunk checksum (already read) stands in for the payload in the file SHA-1
+                long payloadLen = DataIO.readVarInt(in);
+                fileDigest.setDigesting(false);
+                payload = payloadLen < 0 ? null : DataIO.readRawBytes(in, (int) payloadLen);
+                fileDigest.setDigesting(true);
+            } else {
+                payload = DataIO.readByteArray(in);
+            }
+
+            if (chunkDigest == null || (cipher != null && iv == null) || payload == null) {
+                throw new IOException("Truncated chunk! (Chunk #" + chunkNum + ")");
+            }
         }
 
-        chunkDigest = DataIO.readRawBytes(parent, md.getDigestLength());
+        long length = (offset >= 0) ? position(in) - offset : -1;
+        return new RawChunk(chunkNum, chunkType, chunkDigest, iv, readCount, chunkCodec, payload, offset, length, false);
+    }
 
-        if (cipher != null && secret != null) {
-            byte[] iv = DataIO.readRawBytes(parent, ivLen);
-            try {
-                cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
-            } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-                throw new IOException(e);
+    /**
+     * @return the position of a stream in the file, or -1 if unknown
+     */
+    private static long position(InputStream in) {
+        if (in instanceof SQZChannelInputStream) {
+            return ((SQZChannelInputStream) in).position();
+        } else if (in instanceof SQZInputStream) {
+            return ((SQZInputStream) in).getPosition();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the decryption key, waiting for it to be derived if needed
+     */
+    private SecretKeySpec getSecret() throws IOException {
+        if (pendingSecret == null) {
+            return secret;
+        }
+        try {
+            return pendingSecret.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            throw new IOException(e.getCause());
         }
+    }
 
-        byte[] chunk = DataIO.readByteArray(parent);
-        ByteArrayInputStream bais = new ByteArrayInputStream(chunk);
-        wrapped = bais;
+    /**
+     * @return false if the stream ended first
+     */
+    private static boolean skipFully(InputStream in, long len) throws IOException {
+        while (len > 0) {
+            long count = in.skip(len);
+            if (count <= 0) {
+                if (in.read() == -1) {
+                    return false;
+                }
+                count = 1;
+            }
+            len -= count;
+        }
+        return true;
+    }
 
-        if (cipher != null && secret != null) {
+    /**
+     * Reads the chunk index at the end of the stream and makes sure it matches
+     * the chunks we've seen.
+     */
+    private void readIndex() throws IOException {
+        SQZChunkIndex idx = SQZChunkIndex.read(source);
+        if (idx.size() != framesRead) {
+            throw new IOException("Invalid chunk index! Expected "+framesRead+" chunks, index has "+idx.size());
+        }
+        if (gcm && framesRead == 0) {
+            // AES-GCM files always have a (last) chunk
+            throw new IOException("Invalid SQZ file! Missing AES-GCM chunks!");
+        }
+        if (source.read() != -1) {
+            throw new IOException("Invalid SQZ file! Extra data after chunk index!");
+        }
+        index = idx;
+    }
+
+    /**
+     * Decrypts, decompresses, and validates the checksum of a chunk. This is safe
+     * to call from any thread, so long as each thread uses its own Cipher.
+     */
+    private DecodedChunk decodeChunk(RawChunk raw, Cipher cipher) throws IOException {
+        InputStream wrapped = new ByteArrayInputStream(raw.payload);
+        SecretKeySpec secret = getSecret();
+
+        if (gcm && secret != null) {
+            // decrypted and authenticated in one pass
+            byte[] plain;
+            try {
+                byte[] aad = SQZEncryption.chunkAAD(headerAAD, raw.chunkNum, raw.last, SQZ.chunkMagic(raw.type), raw.iv, raw.readCount, chunkCodecs ? raw.codec.getId() : -1);
+                plain = SQZEncryption.open(cipher, secret, raw.iv, aad, raw.payload);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Invalid AES-GCM tag for block "+raw.chunkNum+"! Check encryption password (or the file has been changed)!");
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            wrapped = new ByteArrayInputStream(plain);
+        } else if (cipher != null && secret != null) {
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(raw.iv));
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
             wrapped = new CipherInputStream(wrapped, cipher);
         }
 
-        magic = DataIO.readRawBytes(wrapped, SQZ.MAGIC_CHUNK_DATA.length);
+        byte[] magic = DataIO.readRawBytes(wrapped, SQZ.MAGIC_CHUNK_DATA.length);
         if (!Arrays.equals(magic, SQZ.MAGIC_CHUNK_DATA)) {
-            throw new IOException("Invalid chunk data! Check encryption password! (Chunk #" + chunkCount + ") Magic: " + StringUtils.byteArrayToString(magic));
+            throw new IOException("Invalid chunk data! Check encryption password! (Chunk #" + raw.chunkNum + ") Magic: " + StringUtils.byteArrayToString(magic));
+        }
+
+        boolean isColumnar = columnar && raw.type == SQZ.CHUNK_DATA;
+        if (!isColumnar) {
+            wrapped = raw.codec.decompress(wrapped);
         }
 
-        if (compressionType == SQZ.COMPRESS_DEFLATE) {
-            wrapped = new InflaterInputStream(wrapped);
-        } else if (compressionType == SQZ.COMPRESS_BZIP2) {
-            wrapped = new BZip2CompressorInputStream(wrapped);
+        byte[] data = new byte[Math.max(raw.payload.length * 2, 8192)];
+        int len = 0;
+        int count;
+        while ((count = wrapped.read(data, len, data.length - len)) != -1) {
+            len += count;
+            if (len == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
         }
+        wrapped.close();
 
-        wrapped = new DigestInputStream(wrapped, md);
-        
-        if (chunkText) {
-            String name = DataIO.readString(wrapped);
-            String text = DataIO.readString(wrapped);
-            
-            this.text.put(name,  text);
-            
+        if (!gcm) {
+            MessageDigest md = SQZChecksum.newDigest(checksumType);
+            md.update(data, 0, len);
             byte[] digest = md.digest();
+
             if (verbose) {
-                System.err.println("Text block: "+chunkCount+" SHA-1 Got: "+StringUtils.byteArrayToString(digest)+" Expected:"+StringUtils.byteArrayToString(chunkDigest));
+                System.err.println((raw.text ? "Text block: ": "Block: ")+raw.chunkNum+" "+SQZChecksum.getName(checksumType)+" Got: "+StringUtils.byteArrayToString(digest)+" Expected:"+StringUtils.byteArrayToString(raw.digest));
             }
-            if (!Arrays.equals(chunkDigest, digest)) {
-                throw new IOException("Invalid SHA-1 signature for block "+chunkCount+" Got: "+StringUtils.byteArrayToString(digest)+" Expected:"+StringUtils.byteArrayToString(chunkDigest));
+            if (!Arrays.equals(raw.digest, digest)) {
+                throw new IOException("Invalid "+SQZChecksum.getName(checksumType)+" checksum for block "+raw.chunkNum+" Got: "+StringUtils.byteArrayToString(digest)+" Expected:"+StringUtils.byteArrayToString(raw.digest));
             }
-            return readChunk();
         }
 
-        return true;
+        byte[][] decodedColumns = isColumnar ? decodeColumns(raw.chunkNum, raw.codec, data, len) : null;
+        if (validator != null && !raw.text) {
+            validator.validate(raw.chunkNum, raw.readCount, data, len, decodedColumns);
+        }
+        if (isColumnar) {
+            return new DecodedChunk(raw.chunkNum, raw.type, raw.readCount, null, 0, decodedColumns, null);
+        }
+        boolean block = raw.type == SQZ.CHUNK_BLOCK || raw.type == SQZ.CHUNK_BLOCK_PART;
+        return new DecodedChunk(raw.chunkNum, raw.type, raw.readCount, data, len, null, block ? raw : null);
+    }
+
+    /**
+     * Decompresses the columns of a columnar data chunk. Only columns in columnMask are
+     * decompressed, the others are left null.
+     */
+    private byte[][] decodeColumns(int chunkNum, SQZCodec chunkCodec, byte[] data, int len) throws IOException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(data, 0, len);
+        long count = DataIO.readVarInt(bais);
+        if (count < 0 || count > len) {
+            throw new IOException("Invalid columnar chunk "+chunkNum+"! Missing column count");
+        }
+
+        byte[][] columns = new byte[(int) count][];
+        for (int i=0; i<count; i++) {
+            long rawLen = DataIO.readVarInt(bais);
+            long compLen = DataIO.readVarInt(bais);
+            if (rawLen < 0 || compLen < 0 || compLen > bais.available()) {
+                throw new IOException("Invalid columnar chunk "+chunkNum+"! Truncated column "+i);
+            }
+            int start = len - bais.available();
+            bais.skip(compLen);
+
+            if (i >= 32 || (columnMask & (1 << i)) == 0) {
+                continue;
+            }
+
+            columns[i] = new byte[(int) rawLen];
+            InputStream in = chunkCodec.decompress(new ByteArrayInputStream(data, start, (int) compLen));
+            int pos = 0;
+            int n;
+            while (pos < rawLen && (n = in.read(columns[i], pos, (int) rawLen - pos)) != -1) {
+                pos += n;
+            }
+            if (pos != rawLen || in.read() != -1) {
+                throw new IOException("Invalid columnar chunk "+chunkNum+"! Column "+i+" is the wrong size");
+            }
+            in.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the next decoded chunk from the read-ahead queue, starting the
+     * background reader if needed.
+     */
+    private DecodedChunk nextReadAhead() throws IOException {
+        if (reader == null) {
+            if (eof) {
+                return null;
+            }
+            startReadAhead();
+        }
+
+        try {
+            DecodedChunk chunk = readAhead.take().get();
+            if (chunk == null) {
+                eof = true;
+                // keep returning the end-of-stream marker
+                readAhead.put(completed(null, null));
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
     }
-    
+
+    private void startReadAhead() {
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sqz-chunk-decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        readAhead = new ArrayBlockingQueue<Future<DecodedChunk>>(threads * 2);
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RawChunk raw;
+                    while ((raw = readRawChunk(null)) != null) {
+                        final RawChunk chunk = raw;
+                        readAhead.put(pool.submit(new Callable<DecodedChunk>() {
+                            @Override
+                            public DecodedChunk call() throws Exception {
+                                return decodeChunk(chunk, getWorkerCipher());
+                            }
+                        }));
+                    }
+                    readAhead.put(completed(null, null));
+                } catch (InterruptedException e) {
+                    // closed before we finished reading
+                } catch (IOException | RuntimeException e) {
+                    try {
+                        readAhead.put(completed(null, e));
+                    } catch (InterruptedException e1) {
+                    }
+                }
+            }}, "sqz-chunk-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static Future<DecodedChunk> completed(final DecodedChunk chunk, final Exception e) {
+        FutureTask<DecodedChunk> future = new FutureTask<DecodedChunk>(new Callable<DecodedChunk>() {
+            @Override
+            public DecodedChunk call() throws Exception {
+                if (e != null) {
+                    throw e;
+                }
+                return chunk;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    private Cipher getWorkerCipher() throws IOException {
+        if (cipher == null) {
+            return null;
+        }
+        Cipher c = workerCipher.get();
+        if (c == null) {
+            try {
+                c = Cipher.getInstance(cipher.getAlgorithm());
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            workerCipher.set(c);
+        }
+        return c;
+    }
+
+    private void stopReadAhead() throws IOException {
+        if (reader != null) {
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            pool.shutdownNow();
+            reader = null;
+            pool = null;
+            readAhead = null;
+        }
+    }
+
     @Override
     public void close() throws IOException{
         if (closed) {
             return;
         }
+        stopReadAhead();
+        deflate.end();
+        if (dictDeflate != null) {
+            dictDeflate.end();
+        }
+        if (spill != null) {
+            spill.close();
+            spillFile.delete();
+        }
         parent.close();
         closed = true;
     }
 
+    /**
+     * @return the codec for an id. Deflate uses our own codec, so that its Inflaters
+     *         can be freed when the stream is closed.
+     */
+    private SQZCodec getCodec(int id) throws IOException {
+        if (id == SQZ.COMPRESS_DEFLATE) {
+            return deflate;
+        }
+        return SQZCodecs.get(id);
+    }
+
+    /**
+     * @return the text for a text chunk. Annotation blocks aren't kept in memory, so they
+     *         must be read with openText().
+     */
     public String getText(String name) {
         return text.get(name);
     }
 
+    /**
+     * @return the names of the text chunks and annotation blocks
+     */
     public Set<String> getTextNames() {
-        return Collections.unmodifiableSet(text.keySet());
+        if (blocks.isEmpty()) {
+            return Collections.unmodifiableSet(text.keySet());
+        }
+        Set<String> names = new HashSet<String>(text.keySet());
+        names.addAll(blocks.keySet());
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @return true if this is a binary annotation block
+     */
+    public boolean isBinary(String name) {
+        Block block = blocks.get(name);
+        return block != null && block.binary;
+    }
+
+    /**
+     * Opens a text chunk or annotation block. Annotation blocks are read (and checked) one
+     * chunk at a time, as the stream is read. If the blocks are being read from the file,
+     * the stream must be read before this stream is closed.
+     *
+     * @return the stream, or null if there isn't a text chunk/block with this name
+     */
+    public InputStream openText(String name) throws IOException {
+        if (text.containsKey(name)) {
+            return new ByteArrayInputStream(text.get(name).getBytes(DataIO.DEFAULT_ENCODING));
+        }
+        Block block = blocks.get(name);
+        if (block == null) {
+            return null;
+        }
+        return new BlockInputStream(block);
+    }
+
+    /**
+     * Reads the data from the chunks of an annotation block
+     */
+    private class BlockInputStream extends InputStream {
+        private final Block block;
+        private int next = 0;
+        private boolean last = false;
+        private byte[] data = null;
+        private int pos = 0;
+        private int len = 0;
+
+        public BlockInputStream(Block block) {
+            this.block = block;
+        }
+
+        /**
+         * @return false at the end of the block
+         */
+        private boolean fill() throws IOException {
+            while (pos >= len) {
+                if (last) {
+                    return false;
+                }
+                if (next >= block.parts.size()) {
+                    throw new IOException("Truncated annotation block: "+block.name);
+                }
+                DecodedChunk chunk = decodeChunk(readBlockPart(block.parts.get(next)), cipher);
+                ByteArrayInputStream bais = new ByteArrayInputStream(chunk.data, 0, chunk.len);
+                if (next == 0) {
+                    DataIO.readString(bais);
+                }
+                int flags = bais.read();
+                if (flags < 0) {
+                    throw new IOException("Invalid annotation block: "+block.name+" (Chunk #" + chunk.chunkNum + ")");
+                }
+                last = (flags & SQZ.BLOCK_LAST) != 0;
+                data = chunk.data;
+                pos = chunk.len - bais.available();
+                len = chunk.len;
+                next++;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            count = Math.min(count, len - pos);
+            System.arraycopy(data, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+    }
+
+    /**
+     * @return the chunk for a part of an annotation block, reading it from the file if needed
+     */
+    private RawChunk readBlockPart(BlockPart blockPart) throws IOException {
+        RawChunk part = blockPart.raw;
+        if (blockPart.spillOffset >= 0) {
+            byte[] payload = new byte[blockPart.spillLength];
+            spill.seek(blockPart.spillOffset);
+            spill.readFully(payload);
+            return new RawChunk(part.chunkNum, part.type, part.digest, part.iv, part.readCount, part.codec, payload, part.offset, part.length, part.last);
+        }
+        InputStream in = new SQZChannelInputStream(channel, part.offset, part.offset + part.length);
+        byte[] magic = DataIO.readRawBytes(in, SQZ.MAGIC_CHUNK.length);
+        if (magic == null) {
+            throw new IOException("Truncated chunk! (Chunk #" + part.chunkNum + ")");
+        }
+        if (SQZ.chunkType(magic) != part.type) {
+            throw new IOException("Invalid chunk! " + part.chunkNum + " Magic: " + StringUtils.byteArrayToString(magic));
+        }
+        RawChunk raw = parseRawChunk(in, magic, part.chunkNum, false);
+        return part.last ? raw.asLast() : raw;
     }
 
     public int getChunkCount() {
         return chunkCount;
     }
+
+    /**
+     * @return the chunk index from the end of the stream (v1.2+), or null if it hasn't been read yet.
+     */
+    public SQZChunkIndex getIndex() {
+        return index;
+    }
 }
@@ -3,164 +3,941 @@ package io.compgen.sqz;
 import io.compgen.common.StringUtils;
 import io.compgen.common.io.DataIO;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.security.DigestOutputStream;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
-
 public class SQZChunkOutputStream extends OutputStream {
 
     public static final int DEFAULT_BUFFERSIZE = 8*1024; // this will grow as needed, so a small buffer is fine...
+    public static final int DEFAULT_BLOCK_PART_SIZE = 4*1024*1024; // max raw bytes per annotation block chunk
     private final OutputStream parent;
     private final Cipher cipher;
     private final SecretKeySpec secret;
-    private final MessageDigest md;
-    private final int compressionType;
+    private SQZCodec codec;
+    private SQZCodec qualCodec;
+    private SQZCodec textCodec;     // text chunks never use a preset dictionary
+    private final int bufferSize;
+    private final boolean indexed;
+    private final int columnCount;
+    private boolean chunkCodecs = false;
+    private int checksumType = SQZChecksum.CHECKSUM_SHA1;
+    private DigestOutputStream fileDigest = null; // SQZ.DIGEST_CHUNKS
+    private final boolean gcm;
+    private final SecureRandom random = new SecureRandom(); // GCM nonces
+    private byte[] headerAAD = new byte[0];                 // GCM, see SQZEncryption.chunkAAD()
+    private HeldChunk lastChunk = null;                     // GCM, held until the next chunk (or finish())
+    private int chunksWritten = 0;                          // chunks submitted (in file order)
 
-    private OutputStream out = null;
     private ByteArrayOutputStream baos = null;
+    private ByteArrayOutputStream[] columns = null;
     private boolean closed = false;
     private boolean flushed = true;
     private int chunkCount = 0;
-    
+
+    private SQZChunkIndex index = null;
+    private long position = 0;
+    private long chunkReads = 0;
+    private long totalReads = 0;
+
+    private long maxChunkSize = 0;  // target raw bytes per data chunk (0 for no limit)
+    private long maxChunkReads = 0; // max reads per data chunk (0 for no limit)
+
     private Set<String> textNames = new HashSet<String>();
-    
+    private int blockPartSize = DEFAULT_BLOCK_PART_SIZE;
+
+    private int dictTrainReads = 0; // reads to train the deflate dictionary on (0 when not training)
+    private final List<HeldChunk> held = new ArrayList<HeldChunk>();
+    private long heldReads = 0;
+
     private boolean verbose = false;
-    
-    public SQZChunkOutputStream(OutputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int bufferSize) throws NoSuchAlgorithmException, IOException {
+
+    private int threads = 1;
+    private ExecutorService pool = null;
+    private final Deque<Future<EncodedChunk>> pending = new ArrayDeque<Future<EncodedChunk>>();
+    private final ThreadLocal<Cipher> workerCipher = new ThreadLocal<Cipher>();
+
+    /**
+     * A chunk that is waiting for the deflate dictionary to be trained (or for the
+     * next chunk, with AES-GCM)
+     */
+    private static class HeldChunk {
+        public final int chunkNum;
+        public final byte[] magic;
+        public final long readCount;
+        public final long firstRead;
+        public final ByteArrayOutputStream raw;
+        public final ByteArrayOutputStream[] rawColumns;
+
+        public HeldChunk(int chunkNum, byte[] magic, long readCount, long firstRead, ByteArrayOutputStream raw, ByteArrayOutputStream[] rawColumns) {
+            this.chunkNum = chunkNum;
+            this.magic = magic;
+            this.readCount = readCount;
+            this.firstRead = firstRead;
+            this.raw = raw;
+            this.rawColumns = rawColumns;
+        }
+    }
+
+    /**
+     * A fully encoded chunk, ready to be written to the parent stream
+     */
+    private static class EncodedChunk {
+        public final int chunkNum;
+        public final int type;
+        public final long readCount;
+        public final long firstRead;
+        public final int rawSize;
+        public final byte[] digest;
+        public final byte[] header;
+        public final ByteArrayOutputStream payload;
+
+        public EncodedChunk(int chunkNum, int type, long readCount, long firstRead, int rawSize, byte[] digest, byte[] header, ByteArrayOutputStream payload) {
+            this.chunkNum = chunkNum;
+            this.type = type;
+            this.readCount = readCount;
+            this.firstRead = firstRead;
+            this.rawSize = rawSize;
+            this.digest = digest;
+            this.header = header;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * @param parent
+     * @param compressionType
+     * @param cipher
+     * @param secret
+     * @param bufferSize
+     * @param indexed - write v1.2 chunks (with read counts) and a chunk index footer
+     * @param columnCount - the number of columns in each data chunk, or 0 for non-columnar chunks
+     * @param offset - the number of bytes already written to the file (header)
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public SQZChunkOutputStream(OutputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int bufferSize, boolean indexed, int columnCount, long offset) throws NoSuchAlgorithmException, IOException {
         this.parent = parent;
+        this.columnCount = columnCount;
         this.cipher = cipher;
         this.secret = secret;
-        this.compressionType = compressionType;
-        this.md = MessageDigest.getInstance("SHA-1");
+        this.gcm = SQZEncryption.isGCM(cipher);
+        if (gcm && !indexed) {
+            throw new IOException("AES-GCM chunks require a v1.2+ SQZ file!");
+        }
+        this.codec = SQZCodecs.get(compressionType);
+        this.qualCodec = codec;
+        this.textCodec = codec;
+        if (codec.getId() == SQZ.COMPRESS_DEFLATE) {
+            setDeflateOptions(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        }
+        this.bufferSize = bufferSize;
+        this.indexed = indexed;
+        this.position = offset;
+
+        if (indexed) {
+            this.index = new SQZChunkIndex();
+        }
+
+        // fail early if the checksum isn't available
+        SQZChecksum.newDigest(checksumType);
+    }
+
+    public SQZChunkOutputStream(OutputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int bufferSize, boolean indexed, long offset) throws NoSuchAlgorithmException, IOException {
+        this(parent, compressionType, cipher, secret, bufferSize, indexed, 0, offset);
+    }
+
+    public SQZChunkOutputStream(OutputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret, int bufferSize) throws NoSuchAlgorithmException, IOException {
+        this(parent, compressionType, cipher, secret, bufferSize, false, 0);
     }
 
     public SQZChunkOutputStream(OutputStream parent, int compressionType, Cipher cipher, SecretKeySpec secret) throws NoSuchAlgorithmException, IOException {
         this(parent, compressionType, cipher, secret, DEFAULT_BUFFERSIZE);
     }
 
+    public SQZChunkOutputStream(OutputStream parent, SQZHeader header, Cipher cipher, SecretKeySpec secret, long offset) throws NoSuchAlgorithmException, IOException {
+        this(parent, header.compressionType, cipher, secret, DEFAULT_BUFFERSIZE, header.major > 1 || header.minor > 1, header.columnar ? (header.packedSeq ? SQZ.COLUMN_COUNT : SQZ.COLUMN_SEQQUAL + 1) : 0, offset);
+        this.chunkCodecs = header.chunkCodecs;
+        this.checksumType = header.checksumType;
+        this.headerAAD = SQZEncryption.headerAAD(header);
+        SQZChecksum.newDigest(checksumType);
+        if (header.digestChunks && parent instanceof DigestOutputStream) {
+            this.fileDigest = (DigestOutputStream) parent;
+        }
+    }
+
+    /**
+     * Sets the deflate compression level and strategy. This is only used for files that
+     * are compressed with deflate, and applies to chunks that haven't been flushed yet.
+     *
+     * With the default strategy, the quality column of columnar chunks is compressed with
+     * Deflater.FILTERED. Quality values on their own have few useful repeats, so they
+     * compress better with (mostly) Huffman coding.
+     *
+     * @param level - 0-9, or Deflater.DEFAULT_COMPRESSION
+     * @param strategy - Deflater.DEFAULT_STRATEGY, FILTERED, or HUFFMAN_ONLY
+     */
+    public void setDeflateOptions(int level, int strategy) {
+        if (codec.getId() != SQZ.COMPRESS_DEFLATE) {
+            return;
+        }
+        byte[] dict = ((SQZDeflateCodec) codec).getDictionary();
+        endCodecs();
+        codec = new SQZDeflateCodec(level, strategy, dict);
+        textCodec = (dict == null) ? codec : new SQZDeflateCodec(level, strategy);
+        if (strategy == Deflater.DEFAULT_STRATEGY) {
+            qualCodec = new SQZDeflateCodec(level, Deflater.FILTERED, dict);
+        } else {
+            qualCodec = codec;
+        }
+    }
+
+    /**
+     * Trains a preset deflate dictionary (SQZ.DEFLATE_DICT) on the first reads written.
+     * Data chunks are held in memory until [reads] reads have been written, then the
+     * dictionary is written as a text block (SQZDictionary.TEXT_NAME), followed by the
+     * held chunks. Every data chunk is compressed with the dictionary.
+     *
+     * This must be called before any reads are written, and only for files compressed
+     * with deflate.
+     *
+     * @param reads - the number of reads to train on
+     * @throws IOException
+     */
+    public void setDictionaryTraining(int reads) throws IOException {
+        if (codec.getId() != SQZ.COMPRESS_DEFLATE) {
+            throw new IOException("Preset dictionaries require deflate compression!");
+        }
+        if (totalReads > 0 || chunkReads > 0) {
+            throw new IOException("The deflate dictionary must be set before writing any reads!");
+        }
+        if (reads < 1) {
+            throw new IOException("Invalid number of reads to train the dictionary: "+reads);
+        }
+        this.dictTrainReads = reads;
+    }
+
+    /**
+     * Trains the deflate dictionary on the held chunks, writes it, then writes the held chunks.
+     */
+    private void buildDictionary() throws IOException {
+        dictTrainReads = 0;
+
+        ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for (HeldChunk chunk: held) {
+            if (chunk.rawColumns != null) {
+                for (ByteArrayOutputStream col: chunk.rawColumns) {
+                    col.writeTo(sample);
+                }
+            } else {
+                chunk.raw.writeTo(sample);
+            }
+        }
+
+        byte[] dict = SQZDictionary.train(sample.toByteArray(), sample.size(), SQZDictionary.MAX_SIZE);
+        if (dict != null) {
+            SQZDeflateCodec deflate = (SQZDeflateCodec) codec;
+            SQZDeflateCodec qualDeflate = (SQZDeflateCodec) qualCodec;
+            codec = new SQZDeflateCodec(deflate.getLevel(), deflate.getStrategy(), dict);
+            if (qualDeflate != deflate) {
+                qualDeflate.end();
+                qualCodec = new SQZDeflateCodec(qualDeflate.getLevel(), qualDeflate.getStrategy(), dict);
+            } else {
+                qualCodec = codec;
+            }
+            if (verbose) {
+                System.err.println("Deflate dictionary: "+dict.length+" bytes (trained on "+heldReads+" reads, "+sample.size()+" bytes)");
+            }
+            writeTextBlock(SQZDictionary.TEXT_NAME, SQZDictionary.toText(dict));
+        }
+
+        for (HeldChunk chunk: held) {
+            submitChunk(chunk.chunkNum, chunk.magic, chunk.readCount, chunk.firstRead, chunk.raw, chunk.rawColumns);
+        }
+        held.clear();
+        heldReads = 0;
+    }
+
+    /**
+     * Set the number of worker threads used to compress/encrypt chunks. With
+     * more than one thread, finished chunks are encoded in the background and
+     * written to the parent stream in their original order.
+     *
+     * @param threads
+     * @throws IOException
+     */
+    public void setThreads(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IOException("Invalid number of threads: "+threads);
+        }
+        if (threads == this.threads) {
+            return;
+        }
+        drain(0);
+        shutdown();
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the target (uncompressed) size of data chunks. Reads are never split between
+     * chunks, so a single read larger than this is written as a chunk by itself.
+     *
+     * @param bytes - the target size, or 0 for no limit
+     */
+    public void setMaxChunkSize(long bytes) {
+        this.maxChunkSize = bytes;
+    }
+
+    /**
+     * Sets the maximum number of reads (records) in a data chunk.
+     *
+     * @param reads - the max number of reads, or 0 for no limit
+     */
+    public void setMaxChunkReads(long reads) {
+        this.maxChunkReads = reads;
+    }
+
+    /**
+     * @return the uncompressed size of the current chunk
+     */
+    public long getChunkSize() {
+        long size = 0;
+        if (baos != null) {
+            size += baos.size();
+        }
+        if (columns != null) {
+            for (ByteArrayOutputStream col: columns) {
+                size += col.size();
+            }
+        }
+        return size;
+    }
+
     @Override
     public void write(int b) throws IOException {
         if (baos == null) {
             reset();
         }
         flushed = false;
-        out.write(b);
+        baos.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (baos == null) {
+            reset();
+        }
+        flushed = false;
+        baos.write(b, off, len);
     }
-    
+
+    /**
+     * Returns the buffer for a column of the current (columnar) data chunk. Each column is
+     * compressed separately. The buffers change when a chunk is flushed, so this should be
+     * called again for each record.
+     *
+     * @param col
+     * @return
+     * @throws IOException
+     */
+    public OutputStream getColumn(int col) throws IOException {
+        if (col < 0 || col >= columnCount) {
+            throw new IOException("Invalid column: "+col);
+        }
+        if (columns == null) {
+            columns = new ByteArrayOutputStream[columnCount];
+            for (int i=0; i<columnCount; i++) {
+                columns[i] = new ByteArrayOutputStream(bufferSize);
+            }
+        }
+        flushed = false;
+        return columns[col];
+    }
+
+    /**
+     * Marks the start of a read (record). If adding the read would take the current chunk
+     * over its size (or read) limit, the chunk is flushed first.
+     *
+     * @param size - the (estimated) uncompressed size of the read
+     * @throws IOException
+     */
+    public void startRead(long size) throws IOException {
+        if (chunkReads == 0) {
+            return;
+        }
+        if ((maxChunkReads > 0 && chunkReads >= maxChunkReads) || (maxChunkSize > 0 && getChunkSize() + size > maxChunkSize)) {
+            flush();
+        }
+    }
+
+    /**
+     * Marks the end of a read (record) in the current chunk. Read counts are
+     * stored in the chunk index. If the chunk is now full, it is flushed.
+     *
+     * @throws IOException
+     */
+    public void endRead() throws IOException {
+        chunkReads++;
+        if (maxChunkSize > 0 && getChunkSize() >= maxChunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * @return the number of reads (records) written to the current chunk
+     */
+    public long getChunkReadCount() {
+        return chunkReads;
+    }
+
+    /**
+     * Sets the max size of each chunk of a large (or binary) annotation block.
+     */
+    public void setBlockPartSize(int bytes) throws IOException {
+        if (bytes < 1) {
+            throw new IOException("Invalid block part size: "+bytes);
+        }
+        this.blockPartSize = bytes;
+    }
+
     public void writeTextBlock(String name, String str) throws IOException {
-        if (textNames.contains(name)) {
-            throw new IOException("A text block named: "+name+" has already been added!");
+        if (indexed) {
+            byte[] bytes = str.getBytes(DataIO.DEFAULT_ENCODING);
+            if (bytes.length >= blockPartSize) {
+                writeBlock(name, new ByteArrayInputStream(bytes), false);
+                return;
+            }
         }
+        checkTextName(name);
         flush();
         reset();
-        DataIO.writeString(out, name);
-        DataIO.writeString(out, str);
+        DataIO.writeString(baos, name);
+        DataIO.writeString(baos, str);
         flushed = false;
         flush(SQZ.MAGIC_TEXT_CHUNK);
     }
-    
-    
+
+    /**
+     * Writes a text block from a stream (which is then closed). Text that fits in one
+     * chunk is written as a normal text chunk. Anything larger is written as a block
+     * (see writeBlock()), so only one chunk of it is in memory at a time.
+     */
     public void writeTextBlock(String name, InputStream is) throws IOException {
-        ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-        byte[] buf = new byte[8192];
-        int count;
-        while ((count = is.read(buf))> -1 ) {
-            tmp.write(buf, 0, count);
+        byte[] buf = new byte[blockPartSize];
+        int len = readFully(is, buf, 0);
+        if (len < buf.length || !indexed) {
+            // v1.1 files can only store text as a single chunk
+            ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+            tmp.write(buf, 0, len);
+            int count;
+            while ((count = is.read(buf)) > -1) {
+                tmp.write(buf, 0, count);
+            }
+            is.close();
+            writeTextBlock(name, tmp.toString(DataIO.DEFAULT_ENCODING));
+            return;
+        }
+        writeBlock(name, new SequenceInputStream(new ByteArrayInputStream(buf, 0, len), is), false);
+    }
+
+    /**
+     * Writes an annotation block from a stream (which is then closed). The data is
+     * stored in a series of chunks of at most blockPartSize bytes (v1.2+):
+     *
+     *   the first chunk (SQZ.MAGIC_BLOCK_CHUNK):
+     *     +------+-------+======+
+     *     | name | flags | data |
+     *     +------+-------+======+
+     *
+     *   the rest of the chunks (SQZ.MAGIC_BLOCK_PART_CHUNK):
+     *     +-------+======+
+     *     | flags | data |
+     *     +-------+======+
+     *
+     * [flags] is a byte: SQZ.BLOCK_LAST is set on the last chunk, and SQZ.BLOCK_BINARY
+     * is set for binary data. Each chunk is compressed, encrypted and checked like a
+     * text chunk, so a reader can load one chunk at a time.
+     *
+     * @param binary - the data isn't text
+     */
+    public void writeBlock(String name, InputStream is, boolean binary) throws IOException {
+        if (!indexed) {
+            throw new IOException("Annotation blocks require a v1.2+ SQZ file!");
+        }
+        checkTextName(name);
+        flush();
+
+        byte[] cur = new byte[blockPartSize];
+        byte[] next = new byte[blockPartSize];
+        int curLen = readFully(is, cur, 0);
+        boolean first = true;
+
+        while (true) {
+            // read ahead, so we know if this is the last chunk
+            int nextLen = (curLen < cur.length) ? 0 : readFully(is, next, 0);
+            int flags = (binary ? SQZ.BLOCK_BINARY : 0) | (nextLen == 0 ? SQZ.BLOCK_LAST : 0);
+
+            reset();
+            if (first) {
+                DataIO.writeString(baos, name);
+            }
+            baos.write(flags);
+            baos.write(cur, 0, curLen);
+            flushed = false;
+            flush(first ? SQZ.MAGIC_BLOCK_CHUNK : SQZ.MAGIC_BLOCK_PART_CHUNK);
+
+            if (nextLen == 0) {
+                break;
+            }
+            byte[] tmp = cur;
+            cur = next;
+            next = tmp;
+            curLen = nextLen;
+            first = false;
         }
         is.close();
-        tmp.close();
-        String str = tmp.toString(DataIO.DEFAULT_ENCODING);
-        writeTextBlock(name, str);
     }
-    
-    
+
+    private void checkTextName(String name) throws IOException {
+        if (textNames.contains(name)) {
+            throw new IOException("A text block named: "+name+" has already been added!");
+        }
+    }
+
+    /**
+     * @return the number of bytes read (less than buf.length only at the end of the stream)
+     */
+    private static int readFully(InputStream is, byte[] buf, int off) throws IOException {
+        int len = off;
+        int count;
+        while (len < buf.length && (count = is.read(buf, len, buf.length - len)) > -1) {
+            len += count;
+        }
+        return len - off;
+    }
+
+
     /**
      * +-------+----------+----------+-------+=================+
      * | magic | raw-sha1 | comp_len | magic | compressed data |
      * +-------+----------+----------+-------+=================+
-     * 
+     *
      * Encrypted version
-     *                                    |------- encrypted -------|       
+     *                                    |------- encrypted -------|
      * +-------+----------+----+----------+-------+=================+
      * | magic | raw-sha1 | IV | comp_len | magic | compressed data |
      * +-------+----------+----+----------+-------+=================+
      *
-     * Pulls compressed/encrypted data from backing bytearrayoutputstream and writes it
-     * to the parent output stream
-     * 
-     * @param verbose
+     * v1.2 chunks also include the number of reads in the chunk (varint)
+     * +-------+----------+------+-------+----------+-------+=================+
+     * | magic | raw-sha1 | [IV] | reads | comp_len | magic | compressed data |
+     * +-------+----------+------+-------+----------+-------+=================+
+     *
+     * If SQZ.CHUNK_CODECS is set (v1.2+), the id of the codec used for the chunk (varint)
+     * follows the read count. Chunks that don't get smaller are stored uncompressed.
+     * +-------+----------+------+-------+-------+----------+-------+=================+
+     * | magic | raw-sha1 | [IV] | reads | codec | comp_len | magic | compressed data |
+     * +-------+----------+------+-------+-------+----------+-------+=================+
+     *
+     * Columnar data chunks (v1.2+) aren't compressed as a whole. Instead, the data is
+     * a set of separately compressed columns, and the checksum is of this data.
+     * +-------+=========+=========+
+     * | count | column1 | column2 | ...
+     * +-------+=========+=========+
+     *
+     * Each column:
+     * +---------+----------+=================+
+     * | raw_len | comp_len | compressed data |
+     * +---------+----------+=================+
+     *
+     * If SQZ.CHUNK_CHECKSUM is set, raw-sha1 is replaced by the checksum type given in
+     * the header (see SQZChecksum). If SQZ.DIGEST_CHUNKS is set, the file SHA-1 skips
+     * the encrypted part of each chunk (the header, with the checksum, is still added).
+     *
+     * AES-GCM chunks (see SQZEncryption) don't have a checksum. The IV is a 12 byte
+     * nonce, and the data is sealed as GCM segments. The last chunk is sealed as such,
+     * so each chunk is only written once the next one is flushed (or in finish()).
+     *
+     * Compresses/encrypts the buffered chunk and writes it to the parent output
+     * stream. If more than one thread is in use, the chunk is queued for encoding
+     * and will be written once it (and all chunks before it) are done.
+     *
      * @throws IOException
      */
     public void flush() throws IOException {
         flush(SQZ.MAGIC_CHUNK);
     }
-    public void flush(byte[] magic) throws IOException {
-        if (flushed || baos == null) {
+    public void flush(final byte[] magic) throws IOException {
+        if (flushed || (baos == null && columns == null)) {
             return;
         }
+        if (baos != null && columns != null) {
+            throw new IOException("Chunk has both columnar and non-columnar data!");
+        }
         chunkCount ++;
-        out.flush();
-        out.close();
-        DataIO.writeRawBytes(parent, magic);
-        byte[] digest = md.digest();
-        DataIO.writeRawBytes(parent, digest);
+        final int chunkNum = chunkCount;
+        final ByteArrayOutputStream raw = baos;
+        final ByteArrayOutputStream[] rawColumns = columns;
+        final long readCount = chunkReads;
+        final long firstRead = totalReads;
+
+        totalReads += chunkReads;
 
-        if (cipher != null && secret != null) {
-            DataIO.writeRawBytes(parent, cipher.getIV());
+        // reset the output buffer
+        baos = null;
+        columns = null;
+        chunkReads = 0;
+        flushed = true;
+
+        if (dictTrainReads > 0 && SQZ.chunkType(magic) == SQZ.CHUNK_DATA) {
+            held.add(new HeldChunk(chunkNum, magic, readCount, firstRead, raw, rawColumns));
+            heldReads += readCount;
+            if (heldReads >= dictTrainReads) {
+                buildDictionary();
+            }
+            return;
+        }
+
+        submitChunk(chunkNum, magic, readCount, firstRead, raw, rawColumns);
+    }
+
+    /**
+     * Encodes a chunk and writes it to the parent stream (or queues it, if more than
+     * one thread is in use).
+     *
+     * With AES-GCM, the last chunk is sealed differently (see SQZEncryption.chunkAAD()), so
+     * each chunk is held until the next one is submitted (or finish() is called).
+     */
+    private void submitChunk(int chunkNum, byte[] magic, long readCount, long firstRead, ByteArrayOutputStream raw, ByteArrayOutputStream[] rawColumns) throws IOException {
+        if (gcm) {
+            HeldChunk prev = lastChunk;
+            lastChunk = new HeldChunk(chunkNum, magic, readCount, firstRead, raw, rawColumns);
+            if (prev != null) {
+                submitChunk(prev, false);
+            }
+            return;
+        }
+        submitChunk(new HeldChunk(chunkNum, magic, readCount, firstRead, raw, rawColumns), false);
+    }
+
+    /**
+     * @param last - this is the last chunk in the file (only used for AES-GCM)
+     */
+    private void submitChunk(final HeldChunk chunk, final boolean last) throws IOException {
+        final int ordinal = ++chunksWritten;
+        if (threads < 2) {
+            writeChunk(encodeChunk(chunk, ordinal, last, cipher));
+            return;
         }
 
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sqz-chunk-writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        pending.add(pool.submit(new Callable<EncodedChunk>() {
+            @Override
+            public EncodedChunk call() throws Exception {
+                return encodeChunk(chunk, ordinal, last, getWorkerCipher());
+            }
+        }));
+
+        // write anything that is already done, then block if we have too many chunks in memory
+        drain(threads * 2);
+    }
+
+    /**
+     * Flushes the current chunk and waits for all pending chunks to be written
+     * to the parent stream. For v1.2+ files, the chunk index is then written.
+     * The parent stream is not closed.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        flush();
+        if (dictTrainReads > 0) {
+            buildDictionary();
+        }
+        if (gcm && index != null) {
+            if (lastChunk == null) {
+                // there has to be a last chunk, so that dropping every chunk can be detected
+                chunkCount++;
+                lastChunk = new HeldChunk(chunkCount, SQZ.MAGIC_CHUNK, 0, totalReads, columnCount > 0 ? null : new ByteArrayOutputStream(), columnCount > 0 ? emptyColumns() : null);
+            }
+            submitChunk(lastChunk, true);
+            lastChunk = null;
+        }
+        drain(0);
+        shutdown();
+        endCodecs();
+
+        if (index != null) {
+            index.write(parent, position);
+            index = null;
+        }
+    }
+
+    /**
+     * Writes finished chunks (in order) to the parent stream until at most
+     * maxPending chunks are still waiting to be encoded.
+     */
+    private void drain(int maxPending) throws IOException {
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone())) {
+            Future<EncodedChunk> future = pending.poll();
+            try {
+                writeChunk(future.get());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Frees the native memory held by the codecs (deflate)
+     */
+    private void endCodecs() {
+        endCodec(codec);
+        if (qualCodec != codec) {
+            endCodec(qualCodec);
+        }
+        if (textCodec != codec && textCodec != qualCodec) {
+            endCodec(textCodec);
+        }
+    }
+
+    private static void endCodec(SQZCodec c) {
+        // the shared (registry) codecs are left alone
+        if (c instanceof SQZDeflateCodec && c != SQZCodecs.DEFLATE) {
+            ((SQZDeflateCodec) c).end();
+        }
+    }
+
+    private void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    private void writeChunk(EncodedChunk chunk) throws IOException {
         if (verbose) {
-            System.err.println("Writing chunk #"+chunkCount+" ("+baos.size()+" bytes) SHA1:" + StringUtils.byteArrayToString(digest));
+            System.err.println("Writing chunk #"+chunk.chunkNum+" ("+chunk.rawSize+" bytes) "+(gcm ? "AES-GCM" : SQZChecksum.getName(checksumType)+": " + StringUtils.byteArrayToString(chunk.digest)));
+        }
+        DataIO.writeRawBytes(parent, chunk.header);
+        if (fileDigest != null) {
+            // the chunk checksum (in the header) stands in for the payload
+            fileDigest.on(false);
+            chunk.payload.writeTo(parent);
+            fileDigest.on(true);
+        } else {
+            chunk.payload.writeTo(parent);
         }
 
-        byte[] outbuf = baos.toByteArray();
-        DataIO.writeByteArray(parent,  outbuf);
+        long length = chunk.header.length + chunk.payload.size();
+        if (index != null) {
+            index.add(chunk.type, position, length, chunk.readCount, chunk.firstRead);
+        }
+        position += length;
+    }
 
-        // reset the output buffer
-        baos = null;
-        out = null;
-        flushed = true;
+    private Cipher getWorkerCipher() throws IOException {
+        if (cipher == null) {
+            return null;
+        }
+        Cipher c = workerCipher.get();
+        if (c == null) {
+            try {
+                c = Cipher.getInstance(cipher.getAlgorithm());
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            workerCipher.set(c);
+        }
+        return c;
     }
-    
+
     /**
-     *  Setup the output stream to compress and encrypt as needed.
+     *  Compress, encrypt and hash a raw chunk. This is safe to call from any
+     *  thread, so long as each thread uses its own Cipher.
+     *
+     *  For columnar chunks, [raw] is null and each column is compressed separately.
+     *
+     * @param ordinal - the position of the chunk in the file (1 for the first chunk)
+     * @param last - this is the last chunk in the file (AES-GCM)
      * @throws IOException
      */
-    private void reset() throws IOException {
-        this.baos = new ByteArrayOutputStream();
-        OutputStream os = baos;
-        
-        if (cipher != null && secret != null) {
+    private EncodedChunk encodeChunk(HeldChunk chunk, int ordinal, boolean last, Cipher cipher) throws IOException {
+        int chunkNum = chunk.chunkNum;
+        byte[] magic = chunk.magic;
+        long readCount = chunk.readCount;
+        ByteArrayOutputStream raw = chunk.raw;
+        ByteArrayOutputStream[] rawColumns = chunk.rawColumns;
+
+        int type = SQZ.chunkType(magic);
+        SQZCodec codec = (type != SQZ.CHUNK_DATA) ? textCodec : this.codec;
+        SQZCodec chunkCodec = codec;
+        boolean compress = true;
+        if (rawColumns != null) {
+            raw = new ByteArrayOutputStream(bufferSize);
+            DataIO.writeVarInt(raw, rawColumns.length);
+            for (int i=0; i<rawColumns.length; i++) {
+                ByteArrayOutputStream col = rawColumns[i];
+                ByteArrayOutputStream comp = new ByteArrayOutputStream(Math.max(col.size() / 2, 64));
+                OutputStream os = (i == SQZ.COLUMN_QUAL ? qualCodec : codec).compress(comp);
+                col.writeTo(os);
+                os.close();
+
+                DataIO.writeVarInt(raw, col.size());
+                DataIO.writeVarInt(raw, comp.size());
+                comp.writeTo(raw);
+            }
+            compress = false;
+        }
+
+
+        // GCM chunks are validated by their tag, so they don't have a checksum
+        MessageDigest md = gcm ? null : SQZChecksum.newDigest(checksumType);
+
+        ByteArrayOutputStream compressed = null;
+        if (compress && chunkCodecs && codec != SQZCodecs.NONE) {
+            // compress first, so that we can store the chunk as-is if it doesn't get smaller
+            compressed = new ByteArrayOutputStream(Math.max(raw.size() / 2, bufferSize));
+            OutputStream os = codec.compress(compressed);
+            if (md != null) {
+                os = new DigestOutputStream(os, md);
+            }
+            raw.writeTo(os);
+            os.close();
+            if (compressed.size() >= raw.size()) {
+                compressed = raw;
+                chunkCodec = SQZCodecs.NONE;
+            }
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(Math.max(raw.size() / 2, bufferSize));
+        OutputStream os = payload;
+
+        byte[] iv = null;
+        if (gcm && secret != null) {
+            // the plain data is sealed once it's all written (below)
+            iv = new byte[SQZEncryption.GCM_IV_LEN];
+            random.nextBytes(iv);
+            os = new ByteArrayOutputStream(Math.max(raw.size() / 2, bufferSize));
+        } else if (cipher != null && secret != null) {
             try {
                 cipher.init(Cipher.ENCRYPT_MODE, secret);
-            } catch (InvalidKeyException e) {
+            } catch (GeneralSecurityException e) {
                 throw new IOException(e);
             }
+            iv = cipher.getIV();
             os = new CipherOutputStream(os, cipher);
         }
+        OutputStream plain = os;
 
         os.write(SQZ.MAGIC_CHUNK_DATA);
 
-        if (compressionType == SQZ.COMPRESS_DEFLATE) {
-            os = new DeflaterOutputStream(os);
-        } else if (compressionType == SQZ.COMPRESS_BZIP2) {
-            os = new BZip2CompressorOutputStream(os);
+        if (compressed != null) {
+            compressed.writeTo(os);
+        } else {
+            if (compress) {
+                os = codec.compress(os);
+            }
+            if (md != null) {
+                os = new DigestOutputStream(os, md);
+            }
+            raw.writeTo(os);
+        }
+        os.close();
+
+        byte[] digest = (md != null) ? md.digest() : new byte[0];
+
+        if (gcm && secret != null) {
+            byte[] data = ((ByteArrayOutputStream) plain).toByteArray();
+            try {
+                byte[] aad = SQZEncryption.chunkAAD(headerAAD, ordinal, last, magic, iv, readCount, chunkCodecs ? chunkCodec.getId() : -1);
+                payload.write(SQZEncryption.seal(cipher, secret, iv, aad, data, data.length));
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataIO.writeRawBytes(header, magic);
+        DataIO.writeRawBytes(header, digest);
+
+        if (iv != null) {
+            DataIO.writeRawBytes(header, iv);
+        }
+
+        if (indexed) {
+            DataIO.writeVarInt(header, readCount);
+        }
+
+        if (chunkCodecs) {
+            DataIO.writeVarInt(header, chunkCodec.getId());
         }
-        out = new DigestOutputStream(os, md);
+
+        DataIO.writeVarInt(header, payload.size());
+
+        return new EncodedChunk(chunkNum, type, readCount, chunk.firstRead, raw.size(), digest, header.toByteArray(), payload);
+    }
+
+    /**
+     * @return the columns of an empty columnar chunk
+     */
+    private ByteArrayOutputStream[] emptyColumns() {
+        ByteArrayOutputStream[] empty = new ByteArrayOutputStream[columnCount];
+        for (int i=0; i<columnCount; i++) {
+            empty[i] = new ByteArrayOutputStream(0);
+        }
+        return empty;
+    }
+
+    /**
+     *  Setup a new buffer for the next chunk.
+     */
+    private void reset() {
+        this.baos = new ByteArrayOutputStream(bufferSize);
     }
 
     @Override
@@ -168,9 +945,7 @@ public class SQZChunkOutputStream extends OutputStream {
         if (closed) {
             return;
         }
-        if (baos != null) {
-            flush();
-        }
+        finish();
         parent.close();
         closed = true;
     }
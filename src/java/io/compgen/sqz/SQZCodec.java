@@ -0,0 +1,36 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression codec for SQZ chunks. Codecs are registered with SQZCodecs by id, and the
+ * id is stored in the file header (and in each chunk, see SQZ.CHUNK_CODECS).
+ *
+ * Additional codecs can be added with SQZCodecs.register(), or as a service
+ * (META-INF/services/io.compgen.sqz.SQZCodec).
+ *
+ */
+public interface SQZCodec {
+    /**
+     * @return the id stored in SQZ files (0-255)
+     */
+    public int getId();
+
+    /**
+     * @return the name used to select the codec (ex: "deflate")
+     */
+    public String getName();
+
+    /**
+     * @return a stream that compresses data written to it. Closing this stream must write
+     *         any remaining data and close [os].
+     */
+    public OutputStream compress(OutputStream os) throws IOException;
+
+    /**
+     * @return a stream that decompresses data read from [is].
+     */
+    public InputStream decompress(InputStream is) throws IOException;
+}
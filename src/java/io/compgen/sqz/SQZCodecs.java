@@ -0,0 +1,114 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Registry of chunk compression codecs (see SQZCodec). The built-in codecs are
+ * none (SQZ.COMPRESS_NONE), deflate (SQZ.COMPRESS_DEFLATE), bzip2 (SQZ.COMPRESS_BZIP2),
+ * and lz (SQZ.COMPRESS_LZ). Other codecs are loaded with ServiceLoader.
+ *
+ */
+public class SQZCodecs {
+    public static final SQZCodec NONE = new SQZCodec() {
+        public int getId() {
+            return SQZ.COMPRESS_NONE;
+        }
+        public String getName() {
+            return "none";
+        }
+        public OutputStream compress(OutputStream os) {
+            return os;
+        }
+        public InputStream decompress(InputStream is) {
+            return is;
+        }
+    };
+
+    public static final SQZCodec DEFLATE = new SQZDeflateCodec();
+
+    public static final SQZCodec BZIP2 = new SQZCodec() {
+        public int getId() {
+            return SQZ.COMPRESS_BZIP2;
+        }
+        public String getName() {
+            return "bzip2";
+        }
+        public OutputStream compress(OutputStream os) throws IOException {
+            return new BZip2CompressorOutputStream(os);
+        }
+        public InputStream decompress(InputStream is) throws IOException {
+            return new BZip2CompressorInputStream(is);
+        }
+    };
+
+    public static final SQZCodec LZ = new SQZLZCodec();
+
+    private static final SQZCodec[] codecs = new SQZCodec[256];
+
+    static {
+        register(NONE);
+        register(DEFLATE);
+        register(BZIP2);
+        register(LZ);
+        for (SQZCodec codec: ServiceLoader.load(SQZCodec.class)) {
+            register(codec);
+        }
+    }
+
+    /**
+     * Adds a codec to the registry.
+     *
+     * @throws IllegalArgumentException if the id is invalid or already in use
+     */
+    public static synchronized void register(SQZCodec codec) {
+        int id = codec.getId();
+        if (id < 0 || id > 255) {
+            throw new IllegalArgumentException("Invalid codec id: "+id+" ("+codec.getName()+")");
+        }
+        if (codecs[id] != null && codecs[id] != codec) {
+            throw new IllegalArgumentException("Codec id "+id+" is already used by: "+codecs[id].getName());
+        }
+        codecs[id] = codec;
+    }
+
+    /**
+     * @return the codec with this id
+     * @throws IOException if the codec isn't known
+     */
+    public static synchronized SQZCodec get(int id) throws IOException {
+        if (id < 0 || id > 255 || codecs[id] == null) {
+            throw new IOException("Unknown compression type: "+id);
+        }
+        return codecs[id];
+    }
+
+    /**
+     * @return the codec with this name, or null if it isn't known
+     */
+    public static synchronized SQZCodec get(String name) {
+        for (SQZCodec codec: codecs) {
+            if (codec != null && codec.getName().equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public static synchronized List<SQZCodec> getCodecs() {
+        List<SQZCodec> out = new ArrayList<SQZCodec>();
+        for (SQZCodec codec: codecs) {
+            if (codec != null) {
+                out.add(codec);
+            }
+        }
+        return out;
+    }
+}
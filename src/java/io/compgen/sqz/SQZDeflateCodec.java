@@ -0,0 +1,229 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate codec (SQZ.COMPRESS_DEFLATE) with a configurable level and strategy.
+ *
+ * Deflater/Inflater objects hold native zlib memory, so they are reused (reset())
+ * between streams instead of being allocated for each chunk. Each thread keeps one
+ * idle instance. Calling end() frees the idle instances -- after this, instances
+ * are freed when their stream is closed. Chunk streams use their own codec, and
+ * end it when they are done.
+ *
+ * If a preset dictionary is given (see SQZDictionary), every stream is primed with it.
+ *
+ */
+public class SQZDeflateCodec implements SQZCodec {
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Per-thread pool of zlib objects
+     */
+    private static abstract class Pool<T> {
+        private final ThreadLocal<T> local = new ThreadLocal<T>();
+        private final List<T> idle = new ArrayList<T>();
+        private boolean ended = false;
+
+        protected abstract T create();
+        protected abstract void reset(T t);
+        protected abstract void end(T t);
+
+        public T take() {
+            T t = local.get();
+            synchronized (this) {
+                if (t != null && !ended && idle.remove(t)) {
+                    local.set(null);
+                    return t;
+                }
+            }
+            return create();
+        }
+
+        public void release(T t) {
+            synchronized (this) {
+                if (!ended && local.get() == null) {
+                    reset(t);
+                    local.set(t);
+                    idle.add(t);
+                    return;
+                }
+            }
+            end(t);
+        }
+
+        public synchronized void end() {
+            ended = true;
+            for (T t: idle) {
+                end(t);
+            }
+            idle.clear();
+        }
+    }
+
+    private final int level;
+    private final int strategy;
+    private final byte[] dictionary;
+
+    private final Pool<Deflater> deflaters = new Pool<Deflater>() {
+        protected Deflater create() {
+            Deflater deflater = new Deflater(level);
+            deflater.setStrategy(strategy);
+            return deflater;
+        }
+        protected void reset(Deflater deflater) {
+            deflater.reset();
+        }
+        protected void end(Deflater deflater) {
+            deflater.end();
+        }
+    };
+
+    private final Pool<Inflater> inflaters = new Pool<Inflater>() {
+        protected Inflater create() {
+            return new Inflater();
+        }
+        protected void reset(Inflater inflater) {
+            inflater.reset();
+        }
+        protected void end(Inflater inflater) {
+            inflater.end();
+        }
+    };
+
+    /**
+     * @param level - 0-9, or Deflater.DEFAULT_COMPRESSION
+     * @param strategy - Deflater.DEFAULT_STRATEGY, FILTERED, or HUFFMAN_ONLY
+     */
+    public SQZDeflateCodec(int level, int strategy) {
+        this(level, strategy, null);
+    }
+
+    /**
+     * @param level - 0-9, or Deflater.DEFAULT_COMPRESSION
+     * @param strategy - Deflater.DEFAULT_STRATEGY, FILTERED, or HUFFMAN_ONLY
+     * @param dictionary - preset dictionary (or null)
+     */
+    public SQZDeflateCodec(int level, int strategy, byte[] dictionary) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid deflate level: "+level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Invalid deflate strategy: "+strategy);
+        }
+        this.level = level;
+        this.strategy = strategy;
+        this.dictionary = dictionary;
+    }
+
+    public SQZDeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    public int getId() {
+        return SQZ.COMPRESS_DEFLATE;
+    }
+
+    public String getName() {
+        return "deflate";
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    public byte[] getDictionary() {
+        return dictionary;
+    }
+
+    public OutputStream compress(OutputStream os) {
+        final Deflater deflater = deflaters.take();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        return new DeflaterOutputStream(os, deflater, BUFFER_SIZE) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    deflaters.release(deflater);
+                }
+            }
+        };
+    }
+
+    public InputStream decompress(InputStream is) {
+        final Inflater inflater = inflaters.take();
+        return new InflaterInputStream(is, inflater, BUFFER_SIZE) {
+            private boolean closed = false;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n == -1 && dictionary != null && inflater.needsDictionary()) {
+                    // the zlib header asks for the dictionary before any data is inflated
+                    inflater.setDictionary(dictionary);
+                    n = super.read(b, off, len);
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    inflaters.release(inflater);
+                }
+            }
+        };
+    }
+
+    /**
+     * Frees the native memory for idle Deflater/Inflaters. The codec can still be
+     * used, but instances will no longer be reused.
+     */
+    public void end() {
+        deflaters.end();
+        inflaters.end();
+    }
+
+    /**
+     * @param name - default, filtered, or huffman
+     * @return the Deflater strategy
+     * @throws SQZException if the name isn't known
+     */
+    public static int parseStrategy(String name) throws SQZException {
+        if (name.equalsIgnoreCase("default")) {
+            return Deflater.DEFAULT_STRATEGY;
+        } else if (name.equalsIgnoreCase("filtered")) {
+            return Deflater.FILTERED;
+        } else if (name.equalsIgnoreCase("huffman") || name.equalsIgnoreCase("huffman-only")) {
+            return Deflater.HUFFMAN_ONLY;
+        }
+        throw new SQZException("Unknown deflate strategy: "+name+" (valid: default, filtered, huffman)");
+    }
+}
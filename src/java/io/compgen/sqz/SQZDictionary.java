@@ -0,0 +1,175 @@
+package io.compgen.sqz;
+
+import java.nio.charset.StandardCharsets;
+import java.util.PriorityQueue;
+
+/**
+ * Preset dictionaries for deflate (SQZ.DEFLATE_DICT). Each deflate stream starts with
+ * an empty window, so small chunks lose a lot of ratio -- the first copy of every
+ * name prefix and quality run in a chunk is stored as literals. A dictionary trained
+ * on the first reads of a file primes the window of every data chunk instead.
+ *
+ * The dictionary is stored once, as a text block (TEXT_NAME) that comes before the
+ * first data chunk. Text chunks are never compressed with the dictionary. The bytes
+ * are stored as ISO-8859-1 characters, so they survive the (UTF-8) text encoding.
+ *
+ * Training picks the segments of the sample that share the most substrings with the
+ * rest of the sample. Substrings are counted by the number of pieces of the sample
+ * they are found in, so something that is found once in every read counts more than
+ * a long repeat in one read.
+ *
+ */
+public class SQZDictionary {
+    public static final String TEXT_NAME = "SQZ-deflate-dict";
+
+    // deflate can only look back 32KB
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final int GRAM = 8;
+    private static final int SEGMENT = 64;
+    private static final int PIECE = 1024;
+    private static final int HASH_LOG = 20;
+
+    /**
+     * A candidate segment of the sample and its score
+     */
+    private static class Segment implements Comparable<Segment> {
+        final int start;
+        long score;
+
+        Segment(int start, long score) {
+            this.start = start;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            // highest score first
+            return Long.compare(o.score, score);
+        }
+    }
+
+    /**
+     * Builds a dictionary from sample data.
+     *
+     * @param sample - raw (uncompressed) chunk data
+     * @param len - the number of bytes in the sample to use
+     * @param maxSize - the largest dictionary to build (up to MAX_SIZE)
+     * @return the dictionary, or null if the sample is empty. Small samples (or samples
+     *         without any repeats) are used as-is.
+     */
+    public static byte[] train(byte[] sample, int len, int maxSize) {
+        maxSize = Math.min(maxSize, MAX_SIZE);
+        if (len == 0 || maxSize < 1) {
+            return null;
+        }
+        if (len < SEGMENT * 2 || maxSize < SEGMENT) {
+            return tail(sample, len, maxSize);
+        }
+
+        // the number of pieces each gram (hashed) is found in
+        int[] counts = new int[1 << HASH_LOG];
+        int[] lastPiece = new int[1 << HASH_LOG];
+        for (int i=0; i + GRAM <= len; i++) {
+            int h = hash(sample, i);
+            int piece = i / PIECE + 1;
+            if (lastPiece[h] != piece) {
+                lastPiece[h] = piece;
+                counts[h]++;
+            }
+        }
+
+        PriorityQueue<Segment> queue = new PriorityQueue<Segment>();
+        for (int i=0; i + SEGMENT <= len; i += SEGMENT / 2) {
+            long score = score(sample, i, counts);
+            if (score > 0) {
+                queue.add(new Segment(i, score));
+            }
+        }
+
+        // pick segments greedily. Once a segment is picked, its grams no longer count
+        // for other segments, so scores are updated lazily as segments come up.
+        int[] picked = new int[maxSize / SEGMENT];
+        int pickedCount = 0;
+        while (pickedCount < picked.length && !queue.isEmpty()) {
+            Segment seg = queue.poll();
+            long score = score(sample, seg.start, counts);
+            if (score <= 0) {
+                continue;
+            }
+            if (score < seg.score && !queue.isEmpty() && score < queue.peek().score) {
+                seg.score = score;
+                queue.add(seg);
+                continue;
+            }
+            picked[pickedCount++] = seg.start;
+            for (int i=seg.start; i + GRAM <= seg.start + SEGMENT; i++) {
+                counts[hash(sample, i)] = 0;
+            }
+        }
+
+        if (pickedCount == 0) {
+            return tail(sample, len, maxSize);
+        }
+
+        // deflate codes closer matches with fewer bits, so the best segments go last
+        byte[] dict = new byte[pickedCount * SEGMENT];
+        for (int i=0; i<pickedCount; i++) {
+            System.arraycopy(sample, picked[i], dict, (pickedCount - i - 1) * SEGMENT, SEGMENT);
+        }
+        return dict;
+    }
+
+    /**
+     * @return the sum of counts for the (distinct) grams in a segment that are found in
+     *         more than one piece of the sample
+     */
+    private static long score(byte[] sample, int start, int[] counts) {
+        long score = 0;
+        int[] seen = new int[SEGMENT];
+        int seenCount = 0;
+        for (int i=start; i + GRAM <= start + SEGMENT; i++) {
+            int h = hash(sample, i);
+            boolean dup = false;
+            for (int j=0; j<seenCount && !dup; j++) {
+                dup = seen[j] == h;
+            }
+            if (!dup) {
+                seen[seenCount++] = h;
+                if (counts[h] > 1) {
+                    score += counts[h];
+                }
+            }
+        }
+        return score;
+    }
+
+    private static byte[] tail(byte[] sample, int len, int maxSize) {
+        int size = Math.min(len, maxSize);
+        byte[] dict = new byte[size];
+        System.arraycopy(sample, len - size, dict, 0, size);
+        return dict;
+    }
+
+    private static int hash(byte[] b, int off) {
+        long v = 0;
+        for (int i=0; i<GRAM; i++) {
+            v = (v << 8) | (b[off + i] & 0xFF);
+        }
+        return (int) ((v * 0x9E3779B97F4A7C15L) >>> (64 - HASH_LOG));
+    }
+
+    /**
+     * @return the dictionary as text block contents
+     */
+    public static String toText(byte[] dict) {
+        return new String(dict, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the dictionary from text block contents
+     */
+    public static byte[] fromText(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
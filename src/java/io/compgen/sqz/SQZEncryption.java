@@ -0,0 +1,302 @@
+package io.compgen.sqz;
+
+import io.compgen.common.StringUtils;
+import io.compgen.common.io.DataIO;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption types for SQZ files. The key is derived from the password with
+ * PBKDF2 (HMAC-SHA1), using a random salt that is stored after the header (or
+ * from a key file, see SQZKey).
+ *
+ *   AES-128, AES-256         - AES/CBC/PKCS5Padding. Each chunk has a random IV, and is
+ *                              validated with the checksum of its raw data.
+ *   AES-128-GCM, AES-256-GCM - AES/GCM/NoPadding (v1.2+). Each chunk has a random 12 byte
+ *                              nonce. The GCM tags are used instead of a chunk checksum,
+ *                              and also authenticate the file header, the chunk header,
+ *                              and the position of the chunk in the file (see chunkAAD()).
+ *
+ * GCM chunks are encrypted and validated in one pass, which is much faster than
+ * CBC + SHA-1 on CPUs with AES/carry-less multiply instructions. The JDK only uses
+ * these instructions efficiently for moderately sized buffers (and it holds all of
+ * the data back when decrypting until the tag is checked), so each chunk is sealed
+ * as a series of GCM_SEGMENT_SIZE segments:
+ *
+ * +===========+=====+===========+=====+
+ * | segment 0 | tag | segment 1 | tag | ...
+ * +===========+=====+===========+=====+
+ *
+ * Segment [i] is encrypted with the chunk nonce XOR [i] (last 4 bytes, big-endian).
+ * The AAD for each segment is the chunk AAD followed by one byte: 1 for the last
+ * segment, 0 for the others. So segments can't be reordered or dropped.
+ *
+ */
+public class SQZEncryption {
+    public static final String AES_128 = "AES-128";
+    public static final String AES_256 = "AES-256";
+    public static final String AES_128_GCM = "AES-128-GCM";
+    public static final String AES_256_GCM = "AES-256-GCM";
+
+    public static final int SALT_LEN = 32;
+    public static final int PBKDF2_ITERATIONS = 65536;
+
+    public static final int CBC_IV_LEN = 16;
+    public static final int GCM_IV_LEN = 12;
+    public static final int GCM_TAG_BITS = 128;
+    public static final int GCM_TAG_LEN = GCM_TAG_BITS / 8;
+    public static final int GCM_SEGMENT_SIZE = 64 * 1024;
+
+    // derived keys (PBKDF2), see deriveKey()
+    private static final int KEY_CACHE_SIZE = 64;
+    private static final Map<String, SecretKeySpec> keyCache = new LinkedHashMap<String, SecretKeySpec>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKeySpec> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+    };
+    private static ExecutorService keyPool = null;
+
+    public static boolean isKnown(String encryption) {
+        return encryption.equals(AES_128) || encryption.equals(AES_256) || isGCM(encryption);
+    }
+
+    public static boolean isGCM(String encryption) {
+        return encryption.equals(AES_128_GCM) || encryption.equals(AES_256_GCM);
+    }
+
+    public static boolean isGCM(Cipher cipher) {
+        return cipher != null && cipher.getAlgorithm().startsWith("AES/GCM/");
+    }
+
+    /**
+     * @return the key size (bits)
+     * @throws IOException if the encryption type isn't known
+     */
+    public static int getKeySize(String encryption) throws IOException {
+        if (encryption.equals(AES_128) || encryption.equals(AES_128_GCM)) {
+            return 128;
+        } else if (encryption.equals(AES_256) || encryption.equals(AES_256_GCM)) {
+            return 256;
+        }
+        throw new IOException("Unknown encryption type: "+encryption);
+    }
+
+    /**
+     * @return the length of the IV (nonce) stored with each chunk
+     */
+    public static int getIVLength(String encryption) throws IOException {
+        getKeySize(encryption);
+        return isGCM(encryption) ? GCM_IV_LEN : CBC_IV_LEN;
+    }
+
+    /**
+     * @return an (uninitialized) cipher for the encryption type
+     */
+    public static Cipher getCipher(String encryption) throws IOException, GeneralSecurityException {
+        getKeySize(encryption);
+        if (isGCM(encryption)) {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        }
+        return Cipher.getInstance("AES/CBC/PKCS5Padding");
+    }
+
+    /**
+     * Derives the AES key from a password. Keys are cached by (password, salt, key size),
+     * so opening the same file again doesn't re-run PBKDF2.
+     */
+    public static SecretKeySpec deriveKey(String encryption, String password, byte[] salt) throws IOException, GeneralSecurityException {
+        String cacheKey = keyCacheKey(encryption, password, salt);
+        synchronized (keyCache) {
+            SecretKeySpec secret = keyCache.get(cacheKey);
+            if (secret != null) {
+                return secret;
+            }
+        }
+
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, PBKDF2_ITERATIONS, getKeySize(encryption));
+        SecretKey tmp = factory.generateSecret(spec);
+        SecretKeySpec secret = new SecretKeySpec(tmp.getEncoded(), "AES");
+
+        synchronized (keyCache) {
+            keyCache.put(cacheKey, secret);
+        }
+        return secret;
+    }
+
+    public static boolean isKeyCached(String encryption, String password, byte[] salt) throws IOException {
+        String cacheKey = keyCacheKey(encryption, password, salt);
+        synchronized (keyCache) {
+            return keyCache.containsKey(cacheKey);
+        }
+    }
+
+    public static void clearKeyCache() {
+        synchronized (keyCache) {
+            keyCache.clear();
+        }
+    }
+
+    /**
+     * The password isn't kept in the cache, only a SHA-256 of (key size, salt, password).
+     */
+    private static String keyCacheKey(String encryption, String password, byte[] salt) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            int keySize = getKeySize(encryption);
+            md.update((byte) (keySize >>> 8));
+            md.update((byte) keySize);
+            md.update(salt);
+            md.update(password.getBytes(StandardCharsets.UTF_8));
+            return StringUtils.byteArrayToString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Runs a key derivation in the background (daemon threads).
+     */
+    static synchronized Future<SecretKeySpec> submit(Callable<SecretKeySpec> task) {
+        if (keyPool == null) {
+            keyPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SQZ-key");
+                    t.setDaemon(true);
+                    return t;
+                }});
+        }
+        return keyPool.submit(task);
+    }
+
+    /**
+     * Runs a (fast) key derivation now, returned as a Future.
+     */
+    static Future<SecretKeySpec> completed(Callable<SecretKeySpec> task) {
+        FutureTask<SecretKeySpec> future = new FutureTask<SecretKeySpec>(task);
+        future.run();
+        return future;
+    }
+
+    /**
+     * The additional authenticated data for a GCM chunk. This is the file header, the
+     * position of the chunk in the file, and the chunk header (up to the payload length):
+     *
+     * +--------+-------+------+-------+-------+-------+---------+
+     * | header | chunk | last | magic | nonce | reads | [codec] |
+     * +--------+-------+------+-------+-------+-------+---------+
+     *
+     * [header] is the file header (see headerAAD()), [chunk] is the chunk number (varint,
+     * 1 for the first chunk in the file), and [last] is 1 for the last chunk (before the
+     * chunk index), 0 for the others. So chunks can't be reordered, copied, or dropped,
+     * and the header can't be changed, without breaking the GCM tags.
+     *
+     * @param header - the file header (see headerAAD())
+     * @param codecId - the chunk codec (SQZ.CHUNK_CODECS), or -1
+     */
+    public static byte[] chunkAAD(byte[] header, int chunkNum, boolean last, byte[] magic, byte[] iv, long readCount, int codecId) throws IOException {
+        ByteArrayOutputStream aad = new ByteArrayOutputStream(header.length + magic.length + iv.length + 20);
+        DataIO.writeRawBytes(aad, header);
+        DataIO.writeVarInt(aad, chunkNum);
+        DataIO.writeRawByte(aad, (byte) (last ? 1 : 0));
+        DataIO.writeRawBytes(aad, magic);
+        DataIO.writeRawBytes(aad, iv);
+        DataIO.writeVarInt(aad, readCount);
+        if (codecId >= 0) {
+            DataIO.writeVarInt(aad, codecId);
+        }
+        return aad.toByteArray();
+    }
+
+    /**
+     * @return the file header, as written (SQZHeader.writeHeader()), for chunkAAD()
+     */
+    public static byte[] headerAAD(SQZHeader header) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        header.writeHeader(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encrypts a GCM chunk (as segments).
+     *
+     * @param cipher - AES/GCM/NoPadding
+     * @param nonce - the chunk nonce (GCM_IV_LEN bytes)
+     * @param aad - the chunk AAD (see chunkAAD())
+     */
+    public static byte[] seal(Cipher cipher, SecretKeySpec secret, byte[] nonce, byte[] aad, byte[] plain, int len) throws GeneralSecurityException {
+        int segments = Math.max(1, (len + GCM_SEGMENT_SIZE - 1) / GCM_SEGMENT_SIZE);
+        byte[] out = new byte[len + segments * GCM_TAG_LEN];
+        int inPos = 0;
+        int outPos = 0;
+        for (int i=0; i<segments; i++) {
+            int n = Math.min(GCM_SEGMENT_SIZE, len - inPos);
+            initSegment(cipher, Cipher.ENCRYPT_MODE, secret, nonce, aad, i, i == segments - 1);
+            outPos += cipher.doFinal(plain, inPos, n, out, outPos);
+            inPos += n;
+        }
+        return out;
+    }
+
+    /**
+     * Decrypts and authenticates a GCM chunk (as segments).
+     *
+     * @throws AEADBadTagException if the chunk (or password) isn't valid
+     */
+    public static byte[] open(Cipher cipher, SecretKeySpec secret, byte[] nonce, byte[] aad, byte[] sealed) throws GeneralSecurityException {
+        int sealedSegment = GCM_SEGMENT_SIZE + GCM_TAG_LEN;
+        int segments = Math.max(1, (sealed.length + sealedSegment - 1) / sealedSegment);
+        int len = sealed.length - segments * GCM_TAG_LEN;
+        if (len < 0 || (sealed.length % sealedSegment > 0 && sealed.length % sealedSegment < GCM_TAG_LEN)) {
+            throw new AEADBadTagException("Truncated GCM segment");
+        }
+        byte[] out = new byte[len];
+        int inPos = 0;
+        int outPos = 0;
+        for (int i=0; i<segments; i++) {
+            int n = Math.min(sealedSegment, sealed.length - inPos);
+            initSegment(cipher, Cipher.DECRYPT_MODE, secret, nonce, aad, i, i == segments - 1);
+            outPos += cipher.doFinal(sealed, inPos, n, out, outPos);
+            inPos += n;
+        }
+        return out;
+    }
+
+    private static void initSegment(Cipher cipher, int mode, SecretKeySpec secret, byte[] nonce, byte[] aad, int segment, boolean last) throws GeneralSecurityException {
+        byte[] iv = Arrays.copyOf(nonce, nonce.length);
+        iv[iv.length - 4] ^= (byte) (segment >>> 24);
+        iv[iv.length - 3] ^= (byte) (segment >>> 16);
+        iv[iv.length - 2] ^= (byte) (segment >>> 8);
+        iv[iv.length - 1] ^= (byte) segment;
+        cipher.init(mode, secret, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        cipher.updateAAD(aad);
+        cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+    }
+}
@@ -0,0 +1,117 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A reusable buffer of FASTQ formatted records. Records are added with addRecord(), which
+ * writes the header line and reserves space for the sequence and quality values. These
+ * are then decoded straight into buffer(), so no Strings or FastqReads are needed.
+ *
+ * Each record is written as: '@' name [' ' comment] '\n' seq '\n+\n' qual '\n'
+ */
+public class SQZFastqBuffer implements SQZReadSink {
+    private byte[] buf;
+    private int len = 0;
+
+    // the last read added with addRead()
+    private int seqOffset = 0;
+    private int qualOffset = 0;
+
+    public SQZFastqBuffer(int size) {
+        this.buf = new byte[size];
+    }
+
+    public SQZFastqBuffer() {
+        this(64 * 1024);
+    }
+
+    /**
+     * Adds a record. The sequence starts at the returned offset, and the quality values
+     * start at offset + seqLen + 3.
+     *
+     * @param name - the name bytes (the first nameLen bytes are used)
+     * @param comment - the comment bytes (no comment is written if commentLen is 0)
+     * @return the offset (in buffer()) where the sequence should be written
+     */
+    public int addRecord(byte[] name, int nameLen, byte[] comment, int commentLen, int seqLen, int qualLen) {
+        ensure(nameLen + commentLen + seqLen + qualLen + 6);
+
+        buf[len++] = '@';
+        System.arraycopy(name, 0, buf, len, nameLen);
+        len += nameLen;
+        if (commentLen > 0) {
+            buf[len++] = ' ';
+            System.arraycopy(comment, 0, buf, len, commentLen);
+            len += commentLen;
+        }
+        buf[len++] = '\n';
+
+        int seqStart = len;
+        len += seqLen;
+        buf[len++] = '\n';
+        buf[len++] = '+';
+        buf[len++] = '\n';
+        len += qualLen;
+        buf[len++] = '\n';
+        return seqStart;
+    }
+
+    @Override
+    public void addRead(int i, byte[] name, int nameLen, byte[] comment, int commentLen, int seqLen, int qualLen) {
+        seqOffset = addRecord(name, nameLen, comment, commentLen, seqLen, qualLen);
+        qualOffset = seqOffset + seqLen + 3;
+    }
+
+    @Override
+    public byte[] seqBuffer() {
+        return buf;
+    }
+
+    @Override
+    public int seqOffset() {
+        return seqOffset;
+    }
+
+    @Override
+    public byte[] qualBuffer() {
+        return buf;
+    }
+
+    @Override
+    public int qualOffset() {
+        return qualOffset;
+    }
+
+    /**
+     * @return the backing array. This can change when records are added.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int size() {
+        return len;
+    }
+
+    public void reset() {
+        len = 0;
+    }
+
+    /**
+     * Writes the buffered records and resets the buffer.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (len > 0) {
+            out.write(buf, 0, len);
+            len = 0;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + extra, buf.length * 2));
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package io.compgen.sqz;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Byte-level FASTQ parser. Input is read in large blocks and records are returned as
+ * slices of the buffer (SQZFastqRecord), so no Strings are created for each read.
+ *
+ * Records are valid until they are released. The parser keeps all records returned since
+ * the last call to release() in the buffer, moving them if the buffer is compacted, so that
+ * paired reads from an interleaved file can be written together.
+ *
+ */
+public class SQZFastqParser {
+    public static final int DEFAULT_BUFFERSIZE = 1024 * 1024;
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private int keepFrom = 0;
+    private boolean eof = false;
+    private long recordNum = 0;
+
+    private final List<SQZFastqRecord> held = new ArrayList<SQZFastqRecord>();
+
+    public SQZFastqParser(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    public SQZFastqParser(InputStream in) {
+        this(in, DEFAULT_BUFFERSIZE);
+    }
+
+    private static final int FORMAT_NONE = 0;
+    private static final int FORMAT_PLAIN = 1;
+    private static final int FORMAT_GZIP = 2;
+    private static final int FORMAT_BZIP2 = 3;
+
+    // bytes read from the start of a gzip stream to check for FASTQ data
+    private static final int PROBE_SIZE = 64 * 1024;
+
+    /**
+     * Checks the start of a stream for plain, gzip, or bzip2 compressed FASTQ data.
+     * The stream is reset to the start.
+     *
+     * @param in - this must support mark/reset
+     */
+    private static int detect(BufferedInputStream in) throws IOException {
+        in.mark(PROBE_SIZE);
+        int one = in.read();
+        int two = in.read();
+        int three = in.read();
+        in.reset();
+
+        if (one == 0x1F && two == 0x8B) {
+            // BAM files are also gzip (BGZF) compressed, so check the first decompressed byte.
+            if (isGzipFastq(in)) {
+                return FORMAT_GZIP;
+            }
+        } else if (one == 'B' && two == 'Z' && three == 'h') {
+            return FORMAT_BZIP2;
+        } else if (one == '@') {
+            return FORMAT_PLAIN;
+        }
+        return FORMAT_NONE;
+    }
+
+    /**
+     * Inflates the first byte of a gzip stream, and checks that it is '@'. Only the first
+     * PROBE_SIZE bytes are read (the stream is reset to the start). If the gzip header and
+     * the start of the first deflate block don't fit in that, the stream is reported as
+     * not FASTQ.
+     */
+    private static boolean isGzipFastq(BufferedInputStream in) throws IOException {
+        byte[] buf = new byte[PROBE_SIZE];
+        int len = 0;
+        in.mark(PROBE_SIZE);
+        try {
+            int count;
+            while (len < buf.length && (count = in.read(buf, len, buf.length - len)) != -1) {
+                len += count;
+            }
+        } finally {
+            in.reset();
+        }
+
+        int start = gzipHeaderLength(buf, len);
+        if (start == -1) {
+            return false;
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(buf, start, len - start);
+            byte[] out = new byte[1];
+            while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+                if (inflater.inflate(out) == 1) {
+                    return out[0] == '@';
+                }
+            }
+            return false;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the length of the gzip member header at the start of buf, or -1 if it isn't
+     *         a (deflate) gzip header or doesn't fit in [len] bytes
+     */
+    private static int gzipHeaderLength(byte[] buf, int len) {
+        if (len < 10 || (buf[0] & 0xFF) != 0x1F || (buf[1] & 0xFF) != 0x8B || buf[2] != 8) {
+            return -1;
+        }
+        int flags = buf[3] & 0xFF;
+        int pos = 10;
+        if ((flags & 0x04) != 0) {
+            // FEXTRA
+            if (pos + 2 > len) {
+                return -1;
+            }
+            pos += 2 + ((buf[pos] & 0xFF) | ((buf[pos + 1] & 0xFF) << 8));
+        }
+        for (int flag: new int[] { 0x08, 0x10 }) {
+            // FNAME, FCOMMENT (zero terminated)
+            if ((flags & flag) != 0) {
+                while (pos < len && buf[pos] != 0) {
+                    pos++;
+                }
+                pos++;
+            }
+        }
+        if ((flags & 0x02) != 0) {
+            // FHCRC
+            pos += 2;
+        }
+        return (pos < len) ? pos : -1;
+    }
+
+    /**
+     * @param in - this must support mark/reset. The stream is reset to the start.
+     * @return true if the stream is plain, gzip, or bzip2 compressed FASTQ data (and
+     *         can be read with SQZFastqParser.open()).
+     * @throws IOException
+     */
+    public static boolean isFastq(BufferedInputStream in) throws IOException {
+        return detect(in) != FORMAT_NONE;
+    }
+
+    /**
+     * Opens a parser for plain, gzip, or bzip2 compressed FASTQ data.
+     *
+     * @param in - this must support mark/reset (for gzip detection)
+     * @return a parser, or null if the input isn't FASTQ (for example, BAM). In this case, the
+     *         stream is reset to the start.
+     * @throws IOException
+     */
+    public static SQZFastqParser open(BufferedInputStream in) throws IOException {
+        switch (detect(in)) {
+        case FORMAT_GZIP:
+            return new SQZFastqParser(new GZIPInputStream(in, 64 * 1024));
+        case FORMAT_BZIP2:
+            return new SQZFastqParser(new BZip2CompressorInputStream(in, true));
+        case FORMAT_PLAIN:
+            return new SQZFastqParser(in);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @param rec - the record to fill in
+     * @return false if there are no more records
+     * @throws IOException
+     */
+    public boolean next(SQZFastqRecord rec) throws IOException {
+        while (true) {
+            // skip blank lines between records
+            while (pos < limit && (buf[pos] == '\n' || buf[pos] == '\r')) {
+                pos++;
+            }
+
+            if (pos < limit && parse(rec)) {
+                held.add(rec);
+                recordNum++;
+                return true;
+            }
+
+            if (eof) {
+                if (pos < limit) {
+                    throw new IOException("Truncated FASTQ record! (record " + (recordNum + 1) + ")");
+                }
+                return false;
+            }
+
+            fill();
+        }
+    }
+
+    /**
+     * Releases all records returned so far. The buffer space they use can be reused.
+     */
+    public void release() {
+        release(0);
+    }
+
+    /**
+     * Releases all but the last [keep] records returned.
+     */
+    public void release(int keep) {
+        if (keep == 0) {
+            keepFrom = pos;
+            held.clear();
+        } else {
+            List<SQZFastqRecord> tmp = new ArrayList<SQZFastqRecord>(held.subList(held.size() - keep, held.size()));
+            held.clear();
+            held.addAll(tmp);
+            keepFrom = held.get(0).start;
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Parses a record starting at [pos].
+     * @return false if the record isn't complete in the buffer
+     */
+    private boolean parse(SQZFastqRecord rec) throws IOException {
+        int start = pos;
+
+        int nameEnd = lineEnd(start);
+        if (nameEnd == -1) {
+            return false;
+        }
+        int seqStart = nextLine(nameEnd);
+        int seqEnd = lineEnd(seqStart);
+        if (seqEnd == -1) {
+            return false;
+        }
+        int plusStart = nextLine(seqEnd);
+        int plusEnd = lineEnd(plusStart);
+        if (plusEnd == -1) {
+            return false;
+        }
+        int qualStart = nextLine(plusEnd);
+        int qualEnd = lineEnd(qualStart);
+        if (qualEnd == -1) {
+            return false;
+        }
+
+        if (buf[start] != '@') {
+            throw new IOException("Invalid FASTQ record! Expected '@' at the start of record " + (recordNum + 1));
+        }
+        if (plusStart >= plusEnd || buf[plusStart] != '+') {
+            throw new IOException("Invalid FASTQ record! Expected '+' in record " + (recordNum + 1));
+        }
+
+        rec.buf = buf;
+        rec.start = start;
+        rec.nameOff = start + 1;
+        rec.nameLen = nameEnd - rec.nameOff;
+        rec.commentLen = -1;
+        for (int i = rec.nameOff; i < nameEnd; i++) {
+            if (buf[i] == ' ') {
+                rec.nameLen = i - rec.nameOff;
+                rec.commentOff = i + 1;
+                rec.commentLen = nameEnd - rec.commentOff;
+                break;
+            }
+        }
+        rec.seqOff = seqStart;
+        rec.seqLen = seqEnd - seqStart;
+        rec.qualOff = qualStart;
+        rec.qualLen = qualEnd - qualStart;
+
+        pos = Math.min(nextLine(qualEnd), limit);
+        return true;
+    }
+
+    /**
+     * @return the end of the line starting at [from] (not including any '\r'), or -1 if
+     *         the line isn't complete in the buffer. At EOF, a missing final newline is OK.
+     */
+    private int lineEnd(int from) {
+        if (from > limit) {
+            return -1;
+        }
+        for (int i=from; i<limit; i++) {
+            if (buf[i] == '\n') {
+                if (i > from && buf[i - 1] == '\r') {
+                    return i - 1;
+                }
+                return i;
+            }
+        }
+        if (eof && from < limit) {
+            return limit;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the start of the line following a line that ends at [end]
+     */
+    private int nextLine(int end) {
+        if (end < limit && buf[end] == '\r') {
+            end++;
+        }
+        return end + 1;
+    }
+
+    /**
+     * Compacts the buffer (keeping unreleased records) and reads more data. The
+     * buffer is grown if a single record doesn't fit.
+     */
+    private void fill() throws IOException {
+        if (keepFrom > 0) {
+            System.arraycopy(buf, keepFrom, buf, 0, limit - keepFrom);
+            for (SQZFastqRecord rec: held) {
+                rec.move(buf, keepFrom);
+            }
+            pos -= keepFrom;
+            limit -= keepFrom;
+            keepFrom = 0;
+        }
+
+        if (limit == buf.length) {
+            byte[] tmp = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, tmp, 0, limit);
+            buf = tmp;
+            for (SQZFastqRecord rec: held) {
+                rec.move(buf, 0);
+            }
+        }
+
+        while (limit < buf.length) {
+            int count = in.read(buf, limit, buf.length - limit);
+            if (count == -1) {
+                eof = true;
+                return;
+            }
+            limit += count;
+        }
+    }
+}
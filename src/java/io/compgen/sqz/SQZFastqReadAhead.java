@@ -0,0 +1,207 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads records from a SQZFastqParser on a background thread. The parser (and any
+ * decompression of its input) runs on its own thread, and records are handed to the
+ * caller in batches over a bounded queue. With paired files, each file gets its own
+ * thread, so the files are read (and gunzipped) in parallel.
+ *
+ * Records are copied into batch buffers, which are reused. A record returned by next()
+ * is valid until the next call to next().
+ *
+ */
+public class SQZFastqReadAhead {
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    // max records / bytes per batch
+    private static final int BATCH_RECORDS = 4096;
+    private static final int BATCH_BYTES = 1024 * 1024;
+
+    private static class Batch {
+        byte[] data = new byte[BATCH_BYTES];
+        int len = 0;
+        SQZFastqRecord[] records = new SQZFastqRecord[BATCH_RECORDS];
+        int count = 0;
+        boolean eof = false;
+        IOException error = null;
+
+        Batch() {
+            for (int i=0; i<records.length; i++) {
+                records[i] = new SQZFastqRecord();
+            }
+        }
+
+        /**
+         * Copies a record (from the parser buffer) into this batch.
+         */
+        void add(SQZFastqRecord rec) {
+            int end = rec.qualOff + rec.qualLen;
+            int size = end - rec.start;
+            if (len + size > data.length) {
+                data = Arrays.copyOf(data, Math.max(len + size, data.length * 2));
+                for (int i=0; i<count; i++) {
+                    records[i].buf = data;
+                }
+            }
+            System.arraycopy(rec.buf, rec.start, data, len, size);
+
+            SQZFastqRecord copy = records[count++];
+            copy.buf = data;
+            copy.start = len;
+            copy.nameOff = rec.nameOff - rec.start + len;
+            copy.nameLen = rec.nameLen;
+            copy.commentOff = rec.commentOff - rec.start + len;
+            copy.commentLen = rec.commentLen;
+            copy.seqOff = rec.seqOff - rec.start + len;
+            copy.seqLen = rec.seqLen;
+            copy.qualOff = rec.qualOff - rec.start + len;
+            copy.qualLen = rec.qualLen;
+            len += size;
+        }
+
+        boolean isFull() {
+            return count == records.length || len >= BATCH_BYTES;
+        }
+
+        void clear() {
+            len = 0;
+            count = 0;
+        }
+    }
+
+    private final SQZFastqParser parser;
+    private final BlockingQueue<Batch> full;
+    private final BlockingQueue<Batch> free;
+    private final Thread thread;
+
+    private Batch cur = null;
+    private int pos = 0;
+    private boolean closed = false;
+
+    /**
+     * @param parser - the parser to read from. This is closed when the read-ahead is closed.
+     * @param queueDepth - the number of batches to read ahead
+     * @param name - thread name
+     */
+    public SQZFastqReadAhead(SQZFastqParser parser, int queueDepth, String name) {
+        this.parser = parser;
+        this.full = new ArrayBlockingQueue<Batch>(queueDepth + 1);
+        this.free = new ArrayBlockingQueue<Batch>(queueDepth + 1);
+        for (int i=0; i<queueDepth + 1; i++) {
+            free.add(new Batch());
+        }
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readBatches();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public SQZFastqReadAhead(SQZFastqParser parser) {
+        this(parser, DEFAULT_QUEUE_DEPTH, "sqz-fastq-reader");
+    }
+
+    /**
+     * Runs on the background thread.
+     */
+    private void readBatches() {
+        SQZFastqRecord rec = new SQZFastqRecord();
+        try {
+            while (true) {
+                Batch batch = free.take();
+                batch.clear();
+                try {
+                    while (!batch.isFull()) {
+                        if (!parser.next(rec)) {
+                            batch.eof = true;
+                            break;
+                        }
+                        batch.add(rec);
+                        parser.release();
+                    }
+                } catch (IOException e) {
+                    batch.error = e;
+                } catch (RuntimeException e) {
+                    batch.error = new IOException(e);
+                }
+                full.put(batch);
+                if (batch.eof || batch.error != null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @param rec - the record to fill in
+     * @return false if there are no more records
+     * @throws IOException - if the parser failed
+     */
+    public boolean next(SQZFastqRecord rec) throws IOException {
+        if (closed) {
+            throw new IOException("Tried to read from closed parser!");
+        }
+        while (cur == null || pos == cur.count) {
+            if (cur != null) {
+                if (cur.eof) {
+                    return false;
+                }
+                free.add(cur);
+                cur = null;
+            }
+            try {
+                cur = full.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            pos = 0;
+            if (cur.error != null) {
+                // wrapped, so that the stack trace includes the caller
+                throw new IOException(cur.error.getMessage(), cur.error);
+            }
+        }
+
+        SQZFastqRecord src = cur.records[pos++];
+        rec.buf = src.buf;
+        rec.start = src.start;
+        rec.nameOff = src.nameOff;
+        rec.nameLen = src.nameLen;
+        rec.commentOff = src.commentOff;
+        rec.commentLen = src.commentLen;
+        rec.seqOff = src.seqOff;
+        rec.seqLen = src.seqLen;
+        rec.qualOff = src.qualOff;
+        rec.qualLen = src.qualLen;
+        return true;
+    }
+
+    /**
+     * Stops the background thread and closes the parser.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        parser.close();
+    }
+}
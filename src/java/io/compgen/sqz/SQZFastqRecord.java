@@ -0,0 +1,68 @@
+package io.compgen.sqz;
+
+import io.compgen.ngsutils.fastq.FastqRead;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A FASTQ record as slices of a SQZFastqParser buffer. These are reused by the parser,
+ * so the values are only valid until the parser releases them.
+ *
+ */
+public class SQZFastqRecord {
+    public byte[] buf = null;
+
+    public int start = 0;
+
+    public int nameOff = 0;
+    public int nameLen = 0;
+
+    // commentLen is -1 if there is no comment
+    public int commentOff = 0;
+    public int commentLen = -1;
+
+    public int seqOff = 0;
+    public int seqLen = 0;
+
+    public int qualOff = 0;
+    public int qualLen = 0;
+
+    /**
+     * Called by the parser when the buffer is compacted or replaced.
+     */
+    protected void move(byte[] buf, int delta) {
+        this.buf = buf;
+        this.start -= delta;
+        this.nameOff -= delta;
+        this.commentOff -= delta;
+        this.seqOff -= delta;
+        this.qualOff -= delta;
+    }
+
+    public boolean sameName(SQZFastqRecord other) {
+        if (nameLen != other.nameLen) {
+            return false;
+        }
+        for (int i=0; i<nameLen; i++) {
+            if (buf[nameOff + i] != other.buf[other.nameOff + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return new String(buf, nameOff, nameLen, StandardCharsets.UTF_8);
+    }
+
+    public String getComment() {
+        if (commentLen < 1) {
+            return null;
+        }
+        return new String(buf, commentOff, commentLen, StandardCharsets.UTF_8);
+    }
+
+    public FastqRead toFastqRead() {
+        return new FastqRead(getName(), new String(buf, seqOff, seqLen, StandardCharsets.ISO_8859_1), new String(buf, qualOff, qualLen, StandardCharsets.ISO_8859_1), getComment());
+    }
+}
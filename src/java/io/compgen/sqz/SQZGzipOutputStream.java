@@ -0,0 +1,271 @@
+package io.compgen.sqz;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip output as a series of independent gzip members (BGZF blocks, as written by
+ * bgzip). Each block holds at most BLOCK_SIZE bytes of input, so the blocks can be
+ * compressed in parallel. The output is a valid (multi-member) gzip file, so it can be
+ * read by gzip, zcat, etc., and indexed with `bgzip -r`.
+ *
+ * Each block:
+ * +-------------+------+---+---------+======+-------+-------+
+ * | gzip header | 'BC' | 2 | bsize-1 | data | crc32 | isize |
+ * +-------------+------+---+---------+======+-------+-------+
+ *
+ * [gzip header] is 1f 8b 08 04 00000000 00 ff 0600 (FEXTRA, with a 6 byte extra field).
+ * [bsize] is the size of the whole block (uint16, the "BC" extra field). The stream
+ * ends with an empty block (the BGZF EOF marker).
+ */
+public class SQZGzipOutputStream extends OutputStream {
+    public static final int BLOCK_SIZE = 0xff00;        // max uncompressed bytes per block
+    private static final int MAX_BLOCK = 0x10000;       // max size of a compressed block
+    private static final int HEADER_LEN = 18;
+    private static final int FOOTER_LEN = 8;
+
+    private static final byte[] EOF_BLOCK = new byte[] {
+        0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+        0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+    };
+
+    private final OutputStream parent;
+    private final int level;
+    private final int threads;
+
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int len = 0;
+    private boolean closed = false;
+
+    private ExecutorService pool = null;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private final ThreadLocal<Deflater> workerDeflater = new ThreadLocal<Deflater>();
+    private final List<Deflater> deflaters = new ArrayList<Deflater>();
+
+    /**
+     * @param level - 0-9, or Deflater.DEFAULT_COMPRESSION
+     * @param threads - number of threads to use for compression
+     */
+    public SQZGzipOutputStream(OutputStream parent, int level, int threads) throws IOException {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IOException("Invalid gzip level: "+level);
+        }
+        if (threads < 1) {
+            throw new IOException("Invalid number of threads: "+threads);
+        }
+        this.parent = parent;
+        this.level = level;
+        this.threads = threads;
+    }
+
+    public SQZGzipOutputStream(OutputStream parent) throws IOException {
+        this(parent, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (len == buffer.length) {
+            submitBlock();
+        }
+        buffer[len++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int count) throws IOException {
+        while (count > 0) {
+            if (len == buffer.length) {
+                submitBlock();
+            }
+            int n = Math.min(count, buffer.length - len);
+            System.arraycopy(b, off, buffer, len, n);
+            len += n;
+            off += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Writes the current (partial) block, and waits for all pending blocks to be
+     * written to the parent stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (len > 0) {
+            submitBlock();
+        }
+        drain(0);
+        parent.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            parent.write(EOF_BLOCK);
+            parent.close();
+        } finally {
+            shutdown();
+            closed = true;
+        }
+    }
+
+    /**
+     * Compresses the buffered block (or queues it, if more than one thread is in use)
+     */
+    private void submitBlock() throws IOException {
+        final byte[] block = buffer;
+        final int blockLen = len;
+
+        if (threads < 2) {
+            parent.write(compressBlock(block, blockLen));
+            len = 0;
+            return;
+        }
+
+        buffer = new byte[BLOCK_SIZE];
+        len = 0;
+
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sqz-gzip-writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        pending.add(pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return compressBlock(block, blockLen);
+            }
+        }));
+
+        // write anything that is already done, then block if we have too many blocks in memory
+        drain(threads * 2);
+    }
+
+    private void drain(int maxPending) throws IOException {
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone())) {
+            Future<byte[]> future = pending.poll();
+            try {
+                parent.write(future.get());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Compresses a block as a gzip member. This is safe to call from any thread.
+     */
+    private byte[] compressBlock(byte[] block, int blockLen) throws IOException {
+        Deflater deflater = getDeflater();
+        byte[] out = deflate(deflater, block, blockLen);
+        if (HEADER_LEN + out.length + FOOTER_LEN > MAX_BLOCK) {
+            // didn't compress, so store it
+            Deflater stored = new Deflater(Deflater.NO_COMPRESSION, true);
+            try {
+                out = deflate(stored, block, blockLen);
+            } finally {
+                stored.end();
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, blockLen);
+
+        int bsize = HEADER_LEN + out.length + FOOTER_LEN;
+        byte[] gz = new byte[bsize];
+        gz[0] = 0x1f;
+        gz[1] = (byte) 0x8b;
+        gz[2] = 0x08;       // deflate
+        gz[3] = 0x04;       // FEXTRA
+        gz[9] = (byte) 0xff; // unknown OS
+        gz[10] = 6;         // XLEN
+        gz[12] = 'B';
+        gz[13] = 'C';
+        gz[14] = 2;
+        writeShort(gz, 16, bsize - 1);
+        System.arraycopy(out, 0, gz, HEADER_LEN, out.length);
+        writeInt(gz, HEADER_LEN + out.length, crc.getValue());
+        writeInt(gz, HEADER_LEN + out.length + 4, blockLen);
+        return gz;
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] block, int blockLen) {
+        deflater.reset();
+        deflater.setInput(block, 0, blockLen);
+        deflater.finish();
+        byte[] out = new byte[blockLen + (blockLen >> 3) + 64];
+        int outLen = 0;
+        while (!deflater.finished()) {
+            if (outLen == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            outLen += deflater.deflate(out, outLen, out.length - outLen);
+        }
+        return Arrays.copyOf(out, outLen);
+    }
+
+    private Deflater getDeflater() {
+        Deflater deflater = workerDeflater.get();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            workerDeflater.set(deflater);
+            synchronized (deflaters) {
+                deflaters.add(deflater);
+            }
+        }
+        return deflater;
+    }
+
+    private static void writeShort(byte[] buf, int off, int val) {
+        buf[off] = (byte) (val & 0xFF);
+        buf[off + 1] = (byte) ((val >> 8) & 0xFF);
+    }
+
+    private static void writeInt(byte[] buf, int off, long val) {
+        writeShort(buf, off, (int) (val & 0xFFFF));
+        writeShort(buf, off + 2, (int) ((val >> 16) & 0xFFFF));
+    }
+
+    /**
+     * Stops the worker threads and frees the native memory held by the Deflaters
+     */
+    private void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        synchronized (deflaters) {
+            for (Deflater deflater: deflaters) {
+                deflater.end();
+            }
+            deflaters.clear();
+        }
+    }
+}
@@ -10,6 +10,14 @@ import java.util.Arrays;
 public class SQZHeader {
     public final boolean hasComments;
     public final boolean colorspace;
+    public final boolean columnar;
+    public final boolean packedSeq;
+    public final boolean qualBinned;
+    public final boolean tokenizedNames;
+    public final boolean chunkCodecs;
+    public final boolean deflateDict;
+    public final boolean digestChunks;
+    public final boolean keyFile;
     
     public final int major;
     public final int minor;
@@ -21,7 +29,13 @@ public class SQZHeader {
     
     public final String encryption;
 
-    public SQZHeader(int major, int minor, int flags, int seqCount, int compressionType, String encryption, long timestamp) {
+    // SQZChecksum type for chunks (only stored if SQZ.CHUNK_CHECKSUM is set)
+    public final int checksumType;
+
+    public SQZHeader(int major, int minor, int flags, int seqCount, int compressionType, String encryption, int checksumType, long timestamp) {
+        if ((flags & SQZ.CHUNK_CHECKSUM) == 0 && checksumType != SQZChecksum.CHECKSUM_SHA1) {
+            throw new IllegalArgumentException("Chunk checksums other than SHA-1 require the SQZ.CHUNK_CHECKSUM flag!");
+        }
         this.major = major;
         this.minor = minor;
         this.flags = flags;
@@ -31,12 +45,29 @@ public class SQZHeader {
         
         this.hasComments = (flags & SQZ.HAS_COMMENTS) > 0;
         this.colorspace = (flags & SQZ.COLORSPACE) > 0;
+        this.columnar = (flags & SQZ.COLUMNAR) > 0;
+        this.packedSeq = (flags & SQZ.PACKED_SEQ) > 0;
+        this.qualBinned = (flags & SQZ.QUAL_BINNED) > 0;
+        this.tokenizedNames = (flags & SQZ.TOKENIZED_NAMES) > 0;
+        this.chunkCodecs = (flags & SQZ.CHUNK_CODECS) > 0;
+        this.deflateDict = (flags & SQZ.DEFLATE_DICT) > 0;
+        this.digestChunks = (flags & SQZ.DIGEST_CHUNKS) > 0;
+        this.keyFile = (flags & SQZ.KEY_FILE) > 0;
+        this.checksumType = checksumType;
         
         this.timestamp = timestamp;
     }
 
+    public SQZHeader(int major, int minor, int flags, int seqCount, int compressionType, String encryption, long timestamp) {
+        this(major, minor, flags, seqCount, compressionType, encryption, SQZChecksum.CHECKSUM_SHA1, timestamp);
+    }
+
+    public SQZHeader(int major, int minor, int flags, int seqCount, int compressionType, String encryption, int checksumType) {
+        this(major, minor, flags, seqCount, compressionType, encryption, checksumType, System.currentTimeMillis() / 1000L);
+    }
+
     public SQZHeader(int major, int minor, int flags, int seqCount, int compressionType, String encryption) {
-        this(major, minor, flags, seqCount, compressionType, encryption, System.currentTimeMillis() / 1000L);
+        this(major, minor, flags, seqCount, compressionType, encryption, SQZChecksum.CHECKSUM_SHA1);
     }
     
     public void writeHeader(OutputStream os) throws IOException {
@@ -56,6 +87,9 @@ public class SQZHeader {
         DataIO.writeRawByte(os, (byte) (seqCount & 0xFF));  // 1 byte
         DataIO.writeRawByte(os, (byte) (this.compressionType & 0xFF));
         DataIO.writeString(os, encryption); // encryption string (varint + string)
+        if ((flags & SQZ.CHUNK_CHECKSUM) > 0) {
+            DataIO.writeRawByte(os, (byte) (checksumType & 0xFF)); // 1 byte
+        }
 //        os.flush();
 //        DataIO.writeRawBytes(parent, md.digest());
 //        parent.flush();
@@ -84,6 +118,11 @@ public class SQZHeader {
         
         int compressionType = DataIO.readByte(is);
         String encryption = DataIO.readString(is);
+
+        int checksumType = SQZChecksum.CHECKSUM_SHA1;
+        if ((flags & SQZ.CHUNK_CHECKSUM) > 0) {
+            checksumType = DataIO.readByte(is);
+        }
         
 //        byte[] digest = md.digest();
 //        byte[] known = DataIO.readRawBytes(parent, digest.length);
@@ -92,6 +131,6 @@ public class SQZHeader {
 //            throw new IOException("Invalid SQZ header! Header doesn't match SHA-1!");
 //        }
 //       
-        return new SQZHeader(major, minor, flags, seqCount, compressionType, encryption, timestamp);
+        return new SQZHeader(major, minor, flags, seqCount, compressionType, encryption, checksumType, timestamp);
     }    
 }
@@ -1,55 +1,186 @@
 package io.compgen.sqz;
 
 import io.compgen.common.StringUtils;
-import io.compgen.common.io.SuffixInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
+/**
+ * Reads an SQZ file, holding back the trailing file SHA-1 and computing the
+ * SHA-1 of everything before it.
+ *
+ * Data is read from the parent stream in blocks. The last [suffixLen] bytes that
+ * have been read are always held back in the buffer, since they may be the
+ * file SHA-1. The digest is updated in bulk as buffered data is consumed.
+ *
+ * For files with SQZ.DIGEST_CHUNKS, the chunk stream turns the digest off while the
+ * (encrypted) chunk payloads are read -- see setDigesting().
+ *
+ */
 public class SQZInputStream extends InputStream{
+    public static final int DEFAULT_BUFFERSIZE = 64 * 1024;
+
+    private final InputStream parent;
     private final MessageDigest md;
-    private final DigestInputStream dis;
-    private final SuffixInputStream sis;
+    private final int suffixLen;
+    private final byte[] buffer;
+
+    private int pos = 0;        // next byte to return
+    private int limit = 0;      // end of valid data in the buffer (including the held-back suffix)
+    private int digested = 0;   // bytes before this have been added to the digest
+    private long offset = 0;    // position of the start of the buffer in the parent stream
+    private boolean digesting = true;
+
+    private boolean parentEOF = false;
     private boolean closed = false;
-    
+    private boolean eof = false;
+
     private byte[] digest = null;
-    
-    public SQZInputStream(InputStream parent) throws IOException {
+
+    public SQZInputStream(InputStream parent, int bufferSize) throws IOException {
         try {
             md = MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
             throw new IOException(e);
         }
-        sis = new SuffixInputStream(parent, md.getDigestLength());
-        dis = new DigestInputStream(sis, md);
+        this.parent = parent;
+        this.suffixLen = md.getDigestLength();
+        this.buffer = new byte[bufferSize + suffixLen];
+
+        fill();
+        if (limit < suffixLen) {
+            throw new IOException("Stream is exhausted before suffix!");
+        }
+    }
+
+    public SQZInputStream(InputStream parent) throws IOException {
+        this(parent, DEFAULT_BUFFERSIZE);
     }
+
+    /**
+     * Moves the held-back bytes to the start of the buffer and reads more data.
+     * @return true if there is more data available (beyond the suffix)
+     */
+    private boolean fill() throws IOException {
+        if (pos < limit - suffixLen) {
+            return true;
+        }
+        if (parentEOF) {
+            return false;
+        }
+
+        if (digesting) {
+            md.update(buffer, digested, pos - digested);
+        }
+
+        int keep = limit - pos;
+        System.arraycopy(buffer, pos, buffer, 0, keep);
+        offset += pos;
+        pos = 0;
+        digested = 0;
+        limit = keep;
+
+        while (limit <= suffixLen) {
+            int count = parent.read(buffer, limit, buffer.length - limit);
+            if (count == -1) {
+                parentEOF = true;
+                return false;
+            }
+            limit += count;
+        }
+        return true;
+    }
+
     @Override
     public int read() throws IOException {
-        return dis.read();
+        if (pos >= limit - suffixLen && !fill()) {
+            eof = true;
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
     }
-    
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= limit - suffixLen && !fill()) {
+            eof = true;
+            return -1;
+        }
+        int count = Math.min(len, limit - suffixLen - pos);
+        System.arraycopy(buffer, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.max(0, limit - suffixLen - pos);
+    }
+
+    /**
+     * Closes the stream. If the stream was read to the end, the file SHA-1 is also validated.
+     * (Streams that are closed early or read out of order, with SQZReader.seek(), can't be validated).
+     */
     public void close() throws IOException {
         if (closed) {
             return;
         }
-        dis.close();
-        sis.close();
+        parent.close();
+        if (!eof) {
+            closed = true;
+            return;
+        }
+        if (digesting) {
+            md.update(buffer, digested, pos - digested);
+        }
+        digested = pos;
         digest = md.digest();
-        byte[] known = sis.getSuffix();
+        byte[] known = Arrays.copyOfRange(buffer, limit - suffixLen, limit);
         if (!Arrays.equals(known, digest)) {
             throw new IOException("Invalid SHA-1 signature for file! Got: "+StringUtils.byteArrayToString(digest)+" Expected:"+StringUtils.byteArrayToString(known));
         }
         closed = true;
     }
-    
+
+    /**
+     * Turns the file digest on or off. Bytes that are read while the digest is off are
+     * not added to the file SHA-1 (SQZ.DIGEST_CHUNKS).
+     */
+    public void setDigesting(boolean digesting) {
+        if (this.digesting == digesting) {
+            return;
+        }
+        if (this.digesting) {
+            md.update(buffer, digested, pos - digested);
+        }
+        digested = pos;
+        this.digesting = digesting;
+    }
+
+    /**
+     * @return the number of bytes that have been read from this stream
+     */
+    public long getPosition() {
+        return offset + pos;
+    }
+
+    public int getDigestLength() {
+        return suffixLen;
+    }
+
     public byte[] getDigest() throws IOException {
         if (!closed) {
             throw new IOException("Stream not closed yet!");
         }
+        if (digest == null) {
+            throw new IOException("Stream wasn't read to the end!");
+        }
         return digest;
     }
 }
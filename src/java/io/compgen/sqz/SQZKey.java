@@ -0,0 +1,150 @@
+package io.compgen.sqz;
+
+import io.compgen.common.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Where the AES key for an encrypted file comes from. This is either:
+ *
+ *   a password - the key is derived with PBKDF2 (see SQZEncryption.deriveKey()). This is
+ *                slow on purpose (~65K rounds of HMAC-SHA1), but the results are cached.
+ *
+ *   a key      - raw key bytes (ex: from a key file). The key for each file is
+ *                HMAC-SHA256(key, salt), so it is still unique per file, but is cheap to
+ *                get. Files written this way have the SQZ.KEY_FILE flag set.
+ *
+ * The key (or key file) must have at least as many bits as the encryption type.
+ * A key file can be either hex (ex: `openssl rand -hex 32`) or raw bytes.
+ */
+public class SQZKey {
+    private static final byte[] KEY_LABEL = "SQZ-KEY".getBytes(StandardCharsets.US_ASCII);
+
+    // largest key file to read (anything bigger isn't a key file)
+    private static final int MAX_KEY_FILE = 1024;
+
+    private final String password;
+    private final byte[] key;
+
+    private SQZKey(String password, byte[] key) {
+        this.password = password;
+        this.key = key;
+    }
+
+    /**
+     * @return the key, or null if the password is null
+     */
+    public static SQZKey fromPassword(String password) {
+        if (password == null) {
+            return null;
+        }
+        return new SQZKey(password, null);
+    }
+
+    public static SQZKey fromKey(byte[] key) {
+        return new SQZKey(null, Arrays.copyOf(key, key.length));
+    }
+
+    /**
+     * Reads a key file (hex or raw bytes).
+     */
+    public static SQZKey readKeyFile(String filename) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        InputStream is = new FileInputStream(filename);
+        try {
+            byte[] buf = new byte[MAX_KEY_FILE + 1];
+            int count;
+            while ((count = is.read(buf)) != -1) {
+                baos.write(buf, 0, count);
+                if (baos.size() > MAX_KEY_FILE) {
+                    throw new IOException("Invalid key file: "+filename+" (too big)");
+                }
+            }
+        } finally {
+            is.close();
+        }
+
+        byte[] bytes = baos.toByteArray();
+        byte[] key = parseHex(StringUtils.strip(new String(bytes, StandardCharsets.ISO_8859_1)));
+        if (key == null) {
+            key = bytes;
+        }
+        if (key.length == 0) {
+            throw new IOException("Invalid key file: "+filename+" (empty)");
+        }
+        return new SQZKey(null, key);
+    }
+
+    /**
+     * @return the bytes for a hex string, or null if this isn't a hex string
+     */
+    private static byte[] parseHex(String s) {
+        if (s.length() == 0 || s.length() % 2 != 0) {
+            return null;
+        }
+        byte[] out = new byte[s.length() / 2];
+        for (int i=0; i<out.length; i++) {
+            int hi = Character.digit(s.charAt(i * 2), 16);
+            int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+
+    /**
+     * @return true if this is a raw key (SQZ.KEY_FILE), false if this is a password
+     */
+    public boolean isKeyFile() {
+        return key != null;
+    }
+
+    /**
+     * @return the AES key for a file
+     */
+    public SecretKeySpec derive(String encryption, byte[] salt) throws IOException, GeneralSecurityException {
+        if (password != null) {
+            return SQZEncryption.deriveKey(encryption, password, salt);
+        }
+
+        int keyLen = SQZEncryption.getKeySize(encryption) / 8;
+        if (key.length < keyLen) {
+            throw new IOException("The key is too short for "+encryption+"! (need "+(keyLen * 8)+" bits, got "+(key.length * 8)+")");
+        }
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        mac.update(KEY_LABEL);
+        mac.update(salt);
+        return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), keyLen), "AES");
+    }
+
+    /**
+     * Gets the key for a file in the background. Only PBKDF2 (password, not already in the
+     * cache) is run on another thread -- the other keys are ready right away.
+     */
+    public Future<SecretKeySpec> deriveAsync(final String encryption, final byte[] salt) throws IOException {
+        Callable<SecretKeySpec> task = new Callable<SecretKeySpec>() {
+            @Override
+            public SecretKeySpec call() throws Exception {
+                return derive(encryption, salt);
+            }};
+
+        if (password != null && !SQZEncryption.isKeyCached(encryption, password, salt)) {
+            return SQZEncryption.submit(task);
+        }
+        return SQZEncryption.completed(task);
+    }
+}
@@ -0,0 +1,421 @@
+package io.compgen.sqz;
+
+import io.compgen.common.io.DataIO;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A fast LZ77 codec (SQZ.COMPRESS_LZ), in the style of LZ4. This compresses less than
+ * deflate, but decompression is several times faster, which is useful for intermediate
+ * files that are read many times.
+ *
+ * Data is split into blocks of up to 64KB, which are compressed separately:
+ *
+ * +---------+------------+======+
+ * | raw_len | stored_len | data | ... | 0 |
+ * +---------+------------+======+
+ *
+ * [raw_len] and [stored_len] are varints. If [stored_len] == [raw_len], the block is
+ * stored uncompressed. The stream ends with a [raw_len] of 0.
+ *
+ * Compressed blocks are a series of sequences:
+ *
+ * +-------+------------------+==========+--------+-------------------+
+ * | token | [literal_length] | literals | offset | [match_length]    |
+ * +-------+------------------+==========+--------+-------------------+
+ *
+ * The high 4 bits of [token] are the number of literals, and the low 4 bits are the
+ * match length (minus 4). A value of 15 means that more length bytes follow (each is
+ * added, until a byte that isn't 255). [offset] is a uint16 (little-endian) distance
+ * back to the match. The last sequence only has literals.
+ *
+ */
+public class SQZLZCodec implements SQZCodec {
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    // blocks larger than this aren't valid
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private static final int HASH_LOG = 14;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+
+    public int getId() {
+        return SQZ.COMPRESS_LZ;
+    }
+
+    public String getName() {
+        return "lz";
+    }
+
+    public OutputStream compress(OutputStream os) {
+        return new LZOutputStream(os);
+    }
+
+    public InputStream decompress(InputStream is) {
+        return new LZInputStream(is);
+    }
+
+    /**
+     * @return the max size of a compressed block
+     */
+    public static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    /**
+     * Compresses a block.
+     *
+     * @param dst - must have maxCompressedLength(len) bytes
+     * @param table - hash table (1 << HASH_LOG entries), reused between blocks
+     * @param base - added to positions stored in the hash table, so that the table
+     *               doesn't need to be cleared for each block. This should be larger
+     *               than any position in the table from earlier blocks.
+     * @return the compressed length
+     */
+    public static int compressBlock(byte[] src, int len, byte[] dst, int[] table, int base) {
+        int ip = 0;
+        int op = 0;
+        int anchor = 0;
+        int limit = len - MF_LIMIT;
+        int matchLimit = len - LAST_LITERALS;
+        int misses = 0;
+
+        while (ip < limit) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h] - base;
+            table[h] = ip + base;
+
+            if (ref < 0 || ref >= ip || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                // skip faster through data that doesn't match
+                ip += 1 + (misses++ >>> 6);
+                continue;
+            }
+            misses = 0;
+
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                matchLen++;
+            }
+
+            int litLen = ip - anchor;
+            int tokenPos = op++;
+            int token;
+            if (litLen >= 15) {
+                token = 15 << 4;
+                op = writeLength(dst, op, litLen - 15);
+            } else {
+                token = litLen << 4;
+            }
+            System.arraycopy(src, anchor, dst, op, litLen);
+            op += litLen;
+
+            int offset = ip - ref;
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+
+            if (matchLen - MIN_MATCH >= 15) {
+                token |= 15;
+                op = writeLength(dst, op, matchLen - MIN_MATCH - 15);
+            } else {
+                token |= matchLen - MIN_MATCH;
+            }
+            dst[tokenPos] = (byte) token;
+
+            ip += matchLen;
+            anchor = ip;
+
+            if (ip < limit) {
+                table[hash(readInt(src, ip - 2))] = ip - 2 + base;
+            }
+        }
+
+        int litLen = len - anchor;
+        if (litLen >= 15) {
+            dst[op++] = (byte) (15 << 4);
+            op = writeLength(dst, op, litLen - 15);
+        } else {
+            dst[op++] = (byte) (litLen << 4);
+        }
+        System.arraycopy(src, anchor, dst, op, litLen);
+        op += litLen;
+
+        return op;
+    }
+
+    /**
+     * Decompresses a block.
+     *
+     * @param dstLen - the uncompressed length of the block
+     * @throws IOException if the block is corrupt
+     */
+    public static void decompressBlock(byte[] src, int srcLen, byte[] dst, int dstLen) throws IOException {
+        int ip = 0;
+        int op = 0;
+
+        while (true) {
+            if (ip >= srcLen) {
+                throw new IOException("Corrupt LZ block! Truncated sequence");
+            }
+            int token = src[ip++] & 0xFF;
+
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    if (ip >= srcLen) {
+                        throw new IOException("Corrupt LZ block! Truncated length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    litLen += b;
+                } while (b == 255);
+            }
+            if (litLen > srcLen - ip || litLen > dstLen - op) {
+                throw new IOException("Corrupt LZ block! Invalid literal length");
+            }
+            System.arraycopy(src, ip, dst, op, litLen);
+            ip += litLen;
+            op += litLen;
+
+            if (ip == srcLen) {
+                break;
+            }
+
+            if (ip + 2 > srcLen) {
+                throw new IOException("Corrupt LZ block! Truncated offset");
+            }
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+
+            int matchLen = token & 0x0F;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    if (ip >= srcLen) {
+                        throw new IOException("Corrupt LZ block! Truncated length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+
+            int ref = op - offset;
+            if (offset == 0 || ref < 0 || matchLen > dstLen - op) {
+                throw new IOException("Corrupt LZ block! Invalid match");
+            }
+
+            if (offset >= matchLen) {
+                System.arraycopy(dst, ref, dst, op, matchLen);
+                op += matchLen;
+            } else if (offset >= 8) {
+                // overlapping match, copy one period at a time
+                int end = op + matchLen;
+                while (op < end) {
+                    int n = Math.min(offset, end - op);
+                    System.arraycopy(dst, ref, dst, op, n);
+                    ref += n;
+                    op += n;
+                }
+            } else {
+                int end = op + matchLen;
+                while (op < end) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+
+        if (op != dstLen) {
+            throw new IOException("Corrupt LZ block! Expected "+dstLen+" bytes, got "+op);
+        }
+    }
+
+    public static class LZOutputStream extends OutputStream {
+        private final OutputStream parent;
+        private final byte[] buf = new byte[BLOCK_SIZE];
+        private final byte[] comp = new byte[maxCompressedLength(BLOCK_SIZE)];
+        private final int[] table = new int[1 << HASH_LOG];
+        private int len = 0;
+        private int base = 1;
+        private boolean closed = false;
+
+        public LZOutputStream(OutputStream parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (len == buf.length) {
+                writeBlock();
+            }
+            buf[len++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            while (n > 0) {
+                if (len == buf.length) {
+                    writeBlock();
+                }
+                int count = Math.min(n, buf.length - len);
+                System.arraycopy(b, off, buf, len, count);
+                len += count;
+                off += count;
+                n -= count;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (base > Integer.MAX_VALUE - 2 * BLOCK_SIZE) {
+                java.util.Arrays.fill(table, 0);
+                base = 1;
+            }
+            int compLen = compressBlock(buf, len, comp, table, base);
+            base += len;
+
+            DataIO.writeVarInt(parent, len);
+            if (compLen < len) {
+                DataIO.writeVarInt(parent, compLen);
+                parent.write(comp, 0, compLen);
+            } else {
+                DataIO.writeVarInt(parent, len);
+                parent.write(buf, 0, len);
+            }
+            len = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            parent.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            writeBlock();
+            DataIO.writeVarInt(parent, 0);
+            parent.close();
+            closed = true;
+        }
+    }
+
+    public static class LZInputStream extends InputStream {
+        private final InputStream parent;
+        private byte[] buf = new byte[BLOCK_SIZE];
+        private byte[] comp = new byte[BLOCK_SIZE];
+        private int pos = 0;
+        private int len = 0;
+        private boolean eof = false;
+
+        public LZInputStream(InputStream parent) {
+            this.parent = parent;
+        }
+
+        private boolean readBlock() throws IOException {
+            if (eof) {
+                return false;
+            }
+            long rawLen = DataIO.readVarInt(parent);
+            if (rawLen <= 0) {
+                // rawLen is -1 if the stream was truncated (missing end marker)
+                eof = true;
+                return false;
+            }
+            long storedLen = DataIO.readVarInt(parent);
+            if (rawLen > MAX_BLOCK_SIZE || storedLen < 0 || storedLen > rawLen) {
+                throw new IOException("Corrupt LZ stream! Invalid block size");
+            }
+            if (rawLen > buf.length) {
+                buf = new byte[(int) rawLen];
+            }
+
+            if (storedLen == rawLen) {
+                readFully(buf, (int) rawLen);
+            } else {
+                if (storedLen > comp.length) {
+                    comp = new byte[(int) storedLen];
+                }
+                readFully(comp, (int) storedLen);
+                decompressBlock(comp, (int) storedLen, buf, (int) rawLen);
+            }
+            pos = 0;
+            len = (int) rawLen;
+            return true;
+        }
+
+        private void readFully(byte[] b, int n) throws IOException {
+            int off = 0;
+            while (off < n) {
+                int count = parent.read(b, off, n - off);
+                if (count == -1) {
+                    throw new IOException("Corrupt LZ stream! Truncated block");
+                }
+                off += count;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == len && !readBlock()) {
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            if (pos == len && !readBlock()) {
+                return -1;
+            }
+            int count = Math.min(n, len - pos);
+            System.arraycopy(buf, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return len - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            parent.close();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package io.compgen.sqz;
+
+import io.compgen.common.io.DataIO;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tokenized read names (SQZ.TOKENIZED_NAMES, v1.2+). Names are split into tokens of
+ * digits and non-digits, and each token is stored relative to the same token in the
+ * previous name. Illumina names (A00123:45:HXXXX:1:1101:12345:1000) only change in
+ * a few numeric fields from one read to the next.
+ *
+ * +------------+========+========+
+ * | num_tokens | token1 | token2 | ...
+ * +------------+========+========+
+ *
+ * Each token is a type byte followed by:
+ *   TOKEN_MATCH  - nothing (same as the previous name's token)
+ *   TOKEN_DELTA  - varint (zig-zag) difference from the previous name's numeric token
+ *   TOKEN_NUMBER - varint value
+ *   TOKEN_STRING - varint length + bytes
+ *
+ * The first name in each chunk only uses NUMBER and STRING tokens, so chunks can be
+ * decoded on their own.
+ *
+ */
+public class SQZNameCodec {
+    public static final int TOKEN_MATCH  = 0;
+    public static final int TOKEN_DELTA  = 1;
+    public static final int TOKEN_NUMBER = 2;
+    public static final int TOKEN_STRING = 3;
+
+    // longest run of digits that is stored as a number
+    private static final int MAX_DIGITS = 18;
+
+    /**
+     * Tokens for a name, as slices of a buffer.
+     */
+    private static class Tokens {
+        byte[] buf = new byte[256];
+        int len = 0;
+
+        int count = 0;
+        int[] start = new int[16];
+        int[] length = new int[16];
+        boolean[] numeric = new boolean[16];
+        long[] value = new long[16];
+
+        void clear() {
+            len = 0;
+            count = 0;
+        }
+
+        void ensureBuffer(int size) {
+            if (size > buf.length) {
+                byte[] tmp = new byte[Math.max(size, buf.length * 2)];
+                System.arraycopy(buf, 0, tmp, 0, len);
+                buf = tmp;
+            }
+        }
+
+        void ensureTokens(int size) {
+            if (size > start.length) {
+                int newSize = Math.max(size, start.length * 2);
+                int[] tmpStart = new int[newSize];
+                int[] tmpLength = new int[newSize];
+                boolean[] tmpNumeric = new boolean[newSize];
+                long[] tmpValue = new long[newSize];
+                System.arraycopy(start, 0, tmpStart, 0, count);
+                System.arraycopy(length, 0, tmpLength, 0, count);
+                System.arraycopy(numeric, 0, tmpNumeric, 0, count);
+                System.arraycopy(value, 0, tmpValue, 0, count);
+                start = tmpStart;
+                length = tmpLength;
+                numeric = tmpNumeric;
+                value = tmpValue;
+            }
+        }
+
+        void add(int tokStart, int tokLen, boolean isNumeric, long tokValue) {
+            ensureTokens(count + 1);
+            start[count] = tokStart;
+            length[count] = tokLen;
+            numeric[count] = isNumeric;
+            value[count] = tokValue;
+            count++;
+        }
+
+        /**
+         * Splits the name in buf[0..len) into tokens.
+         */
+        void tokenize() {
+            count = 0;
+            int i = 0;
+            while (i < len) {
+                int tokStart = i;
+                boolean digits = isDigit(buf[i]);
+                while (i < len && isDigit(buf[i]) == digits) {
+                    i++;
+                }
+                int tokLen = i - tokStart;
+                if (digits && tokLen <= MAX_DIGITS && (tokLen == 1 || buf[tokStart] != '0')) {
+                    long val = 0;
+                    for (int j=tokStart; j<i; j++) {
+                        val = val * 10 + (buf[j] - '0');
+                    }
+                    add(tokStart, tokLen, true, val);
+                } else {
+                    add(tokStart, tokLen, false, 0);
+                }
+            }
+        }
+
+        boolean sameToken(int idx, Tokens other) {
+            if (idx >= other.count || numeric[idx] != other.numeric[idx]) {
+                return false;
+            }
+            if (numeric[idx]) {
+                return value[idx] == other.value[idx];
+            }
+            if (length[idx] != other.length[idx]) {
+                return false;
+            }
+            for (int i=0; i<length[idx]; i++) {
+                if (buf[start[idx] + i] != other.buf[other.start[idx] + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Appends a number to the name
+         */
+        void appendNumber(long val) {
+            ensureBuffer(len + 20);
+            int tokStart = len;
+            if (val == 0) {
+                buf[len++] = '0';
+            } else {
+                while (val > 0) {
+                    buf[len++] = (byte) ('0' + (val % 10));
+                    val /= 10;
+                }
+                // digits were written in reverse
+                for (int i=tokStart, j=len-1; i<j; i++, j--) {
+                    byte tmp = buf[i];
+                    buf[i] = buf[j];
+                    buf[j] = tmp;
+                }
+            }
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Encodes names for a writer. Each name is encoded against the last one.
+     */
+    public static class Encoder {
+        private Tokens cur = new Tokens();
+        private Tokens prev = new Tokens();
+
+        /**
+         * @param reset - encode the name without referring to the previous name (use
+         *                for the first name in each chunk)
+         */
+        public void encode(byte[] name, int off, int len, OutputStream out, boolean reset) throws IOException {
+            cur.clear();
+            cur.ensureBuffer(len);
+            System.arraycopy(name, off, cur.buf, 0, len);
+            cur.len = len;
+            cur.tokenize();
+
+            DataIO.writeVarInt(out, cur.count);
+            for (int i=0; i<cur.count; i++) {
+                if (!reset && cur.sameToken(i, prev)) {
+                    out.write(TOKEN_MATCH);
+                } else if (cur.numeric[i] && !reset && i < prev.count && prev.numeric[i]) {
+                    long delta = cur.value[i] - prev.value[i];
+                    out.write(TOKEN_DELTA);
+                    DataIO.writeVarInt(out, (delta << 1) ^ (delta >> 63));
+                } else if (cur.numeric[i]) {
+                    out.write(TOKEN_NUMBER);
+                    DataIO.writeVarInt(out, cur.value[i]);
+                } else {
+                    out.write(TOKEN_STRING);
+                    DataIO.writeVarInt(out, cur.length[i]);
+                    out.write(cur.buf, cur.start[i], cur.length[i]);
+                }
+            }
+
+            Tokens tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+
+        public void encode(String name, OutputStream out, boolean reset) throws IOException {
+            byte[] b = name.getBytes(StandardCharsets.UTF_8);
+            encode(b, 0, b.length, out, reset);
+        }
+    }
+
+    /**
+     * Decodes names for a reader. Names must be decoded (or skipped) in order, starting
+     * with the first name in a chunk.
+     */
+    public static class Decoder {
+        private Tokens cur = new Tokens();
+        private Tokens prev = new Tokens();
+
+        /**
+         * @return the next name, or null if the stream is at EOF
+         */
+        public String decode(InputStream in) throws IOException {
+            if (!next(in)) {
+                return null;
+            }
+            return new String(prev.buf, 0, prev.len, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads the next name without creating a String.
+         *
+         * @return false if the stream is at EOF
+         */
+        public boolean skip(InputStream in) throws IOException {
+            return next(in);
+        }
+
+        /**
+         * @return the last name that was decoded (or skipped), as UTF-8 bytes. Only the
+         *         first nameLength() bytes are valid, and the array is reused.
+         */
+        public byte[] nameBytes() {
+            return prev.buf;
+        }
+
+        public int nameLength() {
+            return prev.len;
+        }
+
+        private boolean next(InputStream in) throws IOException {
+            long count = DataIO.readVarInt(in);
+            if (count < 0) {
+                return false;
+            }
+
+            cur.clear();
+            cur.ensureTokens((int) count);
+            for (int i=0; i<count; i++) {
+                int type = in.read();
+                int tokStart = cur.len;
+                switch (type) {
+                case TOKEN_MATCH:
+                    if (i >= prev.count) {
+                        throw new IOException("Invalid name token! No previous token to match");
+                    }
+                    cur.ensureBuffer(cur.len + prev.length[i]);
+                    System.arraycopy(prev.buf, prev.start[i], cur.buf, cur.len, prev.length[i]);
+                    cur.len += prev.length[i];
+                    cur.add(tokStart, prev.length[i], prev.numeric[i], prev.value[i]);
+                    break;
+                case TOKEN_DELTA:
+                    if (i >= prev.count || !prev.numeric[i]) {
+                        throw new IOException("Invalid name token! No previous number for delta");
+                    }
+                    long zigzag = DataIO.readVarInt(in);
+                    long val = prev.value[i] + ((zigzag >>> 1) ^ -(zigzag & 1));
+                    cur.appendNumber(val);
+                    cur.add(tokStart, cur.len - tokStart, true, val);
+                    break;
+                case TOKEN_NUMBER:
+                    val = DataIO.readVarInt(in);
+                    if (val < 0) {
+                        throw new IOException("Invalid name token! Truncated number");
+                    }
+                    cur.appendNumber(val);
+                    cur.add(tokStart, cur.len - tokStart, true, val);
+                    break;
+                case TOKEN_STRING:
+                    long len = DataIO.readVarInt(in);
+                    if (len < 0) {
+                        throw new IOException("Invalid name token! Truncated string");
+                    }
+                    cur.ensureBuffer(cur.len + (int) len);
+                    int pos = 0;
+                    while (pos < len) {
+                        int n = in.read(cur.buf, cur.len + pos, (int) len - pos);
+                        if (n == -1) {
+                            throw new IOException("Invalid name token! Truncated string");
+                        }
+                        pos += n;
+                    }
+                    cur.len += (int) len;
+                    cur.add(tokStart, (int) len, false, 0);
+                    break;
+                default:
+                    throw new IOException("Invalid name token type: "+type);
+                }
+            }
+
+            Tokens tmp = prev;
+            prev = cur;
+            cur = tmp;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package io.compgen.sqz;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lossy quality binning (SQZ.QUAL_BINNED). Quality values are mapped to a smaller set
+ * of values when a file is written, which makes them much more compressible. The binned
+ * values are what is stored, so exporting the file always returns the same values.
+ *
+ * A scheme is given either by name ("illumina8") or as a list of Phred ranges and the
+ * value for each range, for example: "2-9:6,10-19:15,20-93:30". Values outside of the
+ * given ranges are kept as-is. Wildcard (N) quality values are never binned.
+ *
+ * The scheme is recorded in the file as a text block (TEXT_NAME).
+ *
+ */
+public class SQZQualityBins {
+    public static final String TEXT_NAME = "SQZ-qual-bins";
+
+    // Illumina 8-level binning (no-calls are left as-is)
+    public static final String ILLUMINA8 = "2-9:6,10-19:15,20-24:22,25-29:27,30-34:33,35-39:37,40-93:40";
+
+    private static final int MAX_QUAL = 93;
+
+    public final String name;
+
+    private final int[] lo;
+    private final int[] hi;
+    private final int[] val;
+
+    // ASCII to ASCII quality map, and the encoding tables with it applied (see SQZ.fillQualTables)
+    private final byte[] map = new byte[256];
+    final byte[] encQual = new byte[256];
+    final byte[] encQualFlags = new byte[256];
+    final byte[] packQual = new byte[256];
+
+    private SQZQualityBins(String name, int[] lo, int[] hi, int[] val) {
+        this.name = name;
+        this.lo = lo;
+        this.hi = hi;
+        this.val = val;
+
+        for (int i=0; i<256; i++) {
+            map[i] = (byte) i;
+        }
+        for (int i=0; i<lo.length; i++) {
+            for (int q=lo[i]; q<=hi[i]; q++) {
+                map[q + 33] = (byte) (val[i] + 33);
+            }
+        }
+        SQZ.fillQualTables(map, encQual, encQualFlags, packQual);
+    }
+
+    /**
+     * @param scheme - "illumina8", or a list of ranges ("lo-hi:val,...", or "q:val" for a
+     *                 single value). Values are Phred scores (0-93).
+     * @throws SQZException if the scheme isn't valid
+     */
+    public static SQZQualityBins parse(String scheme) throws SQZException {
+        if (scheme == null || scheme.trim().equals("")) {
+            throw new SQZException("Missing quality binning scheme!");
+        }
+        scheme = scheme.trim();
+        if (scheme.toLowerCase().equals("illumina8")) {
+            return parse("illumina8", ILLUMINA8);
+        }
+        return parse("custom", scheme);
+    }
+
+    private static SQZQualityBins parse(String name, String ranges) throws SQZException {
+        List<int[]> bins = new ArrayList<int[]>();
+        boolean[] seen = new boolean[MAX_QUAL + 1];
+
+        for (String bin: ranges.split(",")) {
+            String[] kv = bin.trim().split(":");
+            if (kv.length != 2) {
+                throw new SQZException("Invalid quality bin: "+bin);
+            }
+            int lo;
+            int hi;
+            int val;
+            try {
+                String[] range = kv[0].trim().split("-");
+                if (range.length == 1) {
+                    lo = Integer.parseInt(range[0].trim());
+                    hi = lo;
+                } else if (range.length == 2) {
+                    lo = Integer.parseInt(range[0].trim());
+                    hi = Integer.parseInt(range[1].trim());
+                } else {
+                    throw new SQZException("Invalid quality bin: "+bin);
+                }
+                val = Integer.parseInt(kv[1].trim());
+            } catch (NumberFormatException e) {
+                throw new SQZException("Invalid quality bin: "+bin);
+            }
+
+            if (lo < 0 || hi > MAX_QUAL || lo > hi || val < 0 || val > MAX_QUAL) {
+                throw new SQZException("Invalid quality bin (values must be 0-" + MAX_QUAL + "): "+bin);
+            }
+            for (int q=lo; q<=hi; q++) {
+                if (seen[q]) {
+                    throw new SQZException("Quality bins overlap: "+bin);
+                }
+                seen[q] = true;
+            }
+            bins.add(new int[] { lo, hi, val });
+        }
+
+        int[] lo = new int[bins.size()];
+        int[] hi = new int[bins.size()];
+        int[] val = new int[bins.size()];
+        for (int i=0; i<bins.size(); i++) {
+            lo[i] = bins.get(i)[0];
+            hi[i] = bins.get(i)[1];
+            val[i] = bins.get(i)[2];
+        }
+        return new SQZQualityBins(name, lo, hi, val);
+    }
+
+    /**
+     * @return the binned value for a Phred score
+     */
+    public int bin(int qual) {
+        if (qual < 0 || qual > 255 - 33) {
+            return qual;
+        }
+        return (map[qual + 33] & 0xFF) - 33;
+    }
+
+    /**
+     * @return the bins as "lo-hi:val,..." (Phred scores)
+     */
+    public String getRanges() {
+        String s = "";
+        for (int i=0; i<lo.length; i++) {
+            if (i > 0) {
+                s += ",";
+            }
+            s += lo[i] + "-" + hi[i] + ":" + val[i];
+        }
+        return s;
+    }
+
+    /**
+     * @return the text block describing this scheme (see TEXT_NAME)
+     */
+    public String toText() {
+        return "{ \"scheme\": \"" + name + "\", \"bins\": \"" + getRanges() + "\"}";
+    }
+}
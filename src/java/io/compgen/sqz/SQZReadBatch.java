@@ -0,0 +1,290 @@
+package io.compgen.sqz;
+
+import io.compgen.ngsutils.fastq.FastqRead;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A batch of records, stored by column. Names, comments, sequences, and quality values
+ * are each stored in one shared byte array, with an array of offsets. This lets records
+ * be moved in bulk (see SQZReader.nextBatch() and SQZWriter.writeBatch()) without
+ * creating FastqReads or Strings for each read.
+ *
+ * There is one name for each record, and [seqCount] reads per record. Reads are numbered
+ * across the batch: read [i] of record [r] is read (r * seqCount + i). Names and
+ * comments are UTF-8, sequences and quality values are ASCII (Phred+33). Empty comments
+ * are the same as no comment.
+ *
+ * Batches are meant to be reused: clear() keeps the arrays.
+ */
+public class SQZReadBatch implements SQZReadSink {
+    private final int seqCount;
+    private int size = 0;
+
+    private byte[] names;
+    private int[] nameOffsets;
+
+    private byte[] comments;
+    private int[] commentOffsets;
+
+    private byte[] seqs;
+    private int[] seqOffsets;
+
+    private byte[] quals;
+    private int[] qualOffsets;
+
+    // the last read added (see addRead())
+    private int last = 0;
+
+    /**
+     * @param seqCount - number of reads per record (ex: 2 for paired-end)
+     * @param records - initial capacity (number of records)
+     */
+    public SQZReadBatch(int seqCount, int records) {
+        if (seqCount < 1) {
+            throw new IllegalArgumentException("Invalid number of reads per record: "+seqCount);
+        }
+        this.seqCount = seqCount;
+        records = Math.max(records, 1);
+
+        names = new byte[records * 32];
+        nameOffsets = new int[records + 1];
+        comments = new byte[16];
+        commentOffsets = new int[records * seqCount + 1];
+        seqs = new byte[records * seqCount * 128];
+        seqOffsets = new int[records * seqCount + 1];
+        quals = new byte[records * seqCount * 128];
+        qualOffsets = new int[records * seqCount + 1];
+    }
+
+    public SQZReadBatch(int seqCount) {
+        this(seqCount, 1024);
+    }
+
+    public int getSeqCount() {
+        return seqCount;
+    }
+
+    /**
+     * @return the number of records in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds a record. The reads must all have the same name.
+     *
+     * @param reads - one read for each sequence (seqCount)
+     * @throws IOException
+     */
+    public void add(FastqRead... reads) throws IOException {
+        checkCount(reads.length);
+        for (int i=1; i<reads.length; i++) {
+            if (!reads[i].getName().equals(reads[0].getName())) {
+                throw new IOException("Reads must have the same name!");
+            }
+        }
+        int record = size;
+        byte[] name = reads[0].getName().getBytes(StandardCharsets.UTF_8);
+        for (int i=0; i<reads.length; i++) {
+            byte[] comment = (reads[i].getComment() == null) ? null : reads[i].getComment().getBytes(StandardCharsets.UTF_8);
+            String seq = reads[i].getSeq();
+            String qual = reads[i].getQual();
+            addRead(i, name, name.length, comment, (comment == null) ? 0 : comment.length, seq.length(), qual.length());
+            int highbits = 0;
+            for (int j=0; j<seq.length(); j++) {
+                char c = seq.charAt(j);
+                highbits |= c;
+                seqs[seqOffset() + j] = (byte) c;
+            }
+            for (int j=0; j<qual.length(); j++) {
+                char c = qual.charAt(j);
+                highbits |= c;
+                quals[qualOffset() + j] = (byte) c;
+            }
+            if ((highbits & 0xFF00) != 0) {
+                size = record;
+                throw new IOException("Seq and qual values must be ASCII!");
+            }
+        }
+    }
+
+    /**
+     * Adds a record from FASTQ buffers (see SQZFastqParser). The values are copied. The
+     * reads must all have the same name.
+     *
+     * @param reads - one read for each sequence (seqCount)
+     * @throws IOException
+     */
+    public void add(SQZFastqRecord[] reads) throws IOException {
+        checkCount(reads.length);
+        for (int i=1; i<reads.length; i++) {
+            if (!reads[i].sameName(reads[0])) {
+                throw new IOException("Reads must have the same name!");
+            }
+        }
+        SQZFastqRecord first = reads[0];
+        for (int i=0; i<reads.length; i++) {
+            SQZFastqRecord read = reads[i];
+            addRead(i, first.buf, first.nameOff, first.nameLen, read.buf, read.commentOff, Math.max(read.commentLen, 0), read.seqLen, read.qualLen);
+            System.arraycopy(read.buf, read.seqOff, seqs, seqOffset(), read.seqLen);
+            System.arraycopy(read.buf, read.qualOff, quals, qualOffset(), read.qualLen);
+        }
+    }
+
+    private void checkCount(int count) throws IOException {
+        if (count != seqCount) {
+            throw new IOException("Each record must have " + seqCount + " reads!");
+        }
+    }
+
+    /**
+     * Adds a read. Read 0 starts a new record (with the given name), and reads must be
+     * added in order. The sequence and quality values are then written to seqBuffer()
+     * and qualBuffer().
+     */
+    @Override
+    public void addRead(int i, byte[] name, int nameLen, byte[] comment, int commentLen, int seqLen, int qualLen) {
+        addRead(i, name, 0, nameLen, comment, 0, commentLen, seqLen, qualLen);
+    }
+
+    private void addRead(int i, byte[] name, int nameOff, int nameLen, byte[] comment, int commentOff, int commentLen, int seqLen, int qualLen) {
+        int read = size * seqCount + i;
+        last = read;
+        if (i == 0) {
+            if (size + 1 >= nameOffsets.length) {
+                int records = nameOffsets.length * 2;
+                nameOffsets = Arrays.copyOf(nameOffsets, records);
+                commentOffsets = Arrays.copyOf(commentOffsets, records * seqCount + 1);
+                seqOffsets = Arrays.copyOf(seqOffsets, records * seqCount + 1);
+                qualOffsets = Arrays.copyOf(qualOffsets, records * seqCount + 1);
+            }
+            names = append(names, nameOffsets, size, name, nameOff, nameLen);
+        }
+        comments = append(comments, commentOffsets, read, comment, commentOff, commentLen);
+        seqs = reserve(seqs, seqOffsets, read, seqLen);
+        quals = reserve(quals, qualOffsets, read, qualLen);
+        if (i == seqCount - 1) {
+            size++;
+        }
+    }
+
+    private static byte[] reserve(byte[] buf, int[] offsets, int idx, int len) {
+        int start = offsets[idx];
+        if (start + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(start + len, buf.length * 2));
+        }
+        offsets[idx + 1] = start + len;
+        return buf;
+    }
+
+    private static byte[] append(byte[] buf, int[] offsets, int idx, byte[] val, int off, int len) {
+        buf = reserve(buf, offsets, idx, len);
+        if (len > 0) {
+            System.arraycopy(val, off, buf, offsets[idx], len);
+        }
+        return buf;
+    }
+
+    /**
+     * @return the sequence array (for the last read added: see addRead())
+     */
+    @Override
+    public byte[] seqBuffer() {
+        return seqs;
+    }
+
+    @Override
+    public int seqOffset() {
+        return seqOffsets[last];
+    }
+
+    @Override
+    public byte[] qualBuffer() {
+        return quals;
+    }
+
+    @Override
+    public int qualOffset() {
+        return qualOffsets[last];
+    }
+
+    /*
+     * Column access. [record] is 0 to size()-1, [read] is 0 to size()*seqCount-1. The
+     * arrays can change when records are added.
+     */
+
+    public byte[] names() {
+        return names;
+    }
+
+    public int nameOffset(int record) {
+        return nameOffsets[record];
+    }
+
+    public int nameLength(int record) {
+        return nameOffsets[record + 1] - nameOffsets[record];
+    }
+
+    public byte[] comments() {
+        return comments;
+    }
+
+    public int commentOffset(int read) {
+        return commentOffsets[read];
+    }
+
+    /**
+     * @return the length of the comment (0 for no comment)
+     */
+    public int commentLength(int read) {
+        return commentOffsets[read + 1] - commentOffsets[read];
+    }
+
+    public byte[] seqs() {
+        return seqs;
+    }
+
+    public int seqOffset(int read) {
+        return seqOffsets[read];
+    }
+
+    public int seqLength(int read) {
+        return seqOffsets[read + 1] - seqOffsets[read];
+    }
+
+    public byte[] quals() {
+        return quals;
+    }
+
+    public int qualOffset(int read) {
+        return qualOffsets[read];
+    }
+
+    public int qualLength(int read) {
+        return qualOffsets[read + 1] - qualOffsets[read];
+    }
+
+    public String getName(int record) {
+        return new String(names, nameOffset(record), nameLength(record), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return read [i] of a record, as a FastqRead
+     */
+    public FastqRead getRead(int record, int i) {
+        int read = record * seqCount + i;
+        String comment = null;
+        if (commentLength(read) > 0) {
+            comment = new String(comments, commentOffset(read), commentLength(read), StandardCharsets.UTF_8);
+        }
+        return new FastqRead(getName(record), new String(seqs, seqOffset(read), seqLength(read), StandardCharsets.ISO_8859_1), new String(quals, qualOffset(read), qualLength(read), StandardCharsets.ISO_8859_1), comment);
+    }
+}
@@ -0,0 +1,29 @@
+package io.compgen.sqz;
+
+/**
+ * Where SQZReader.nextRecord() decodes reads to (see SQZFastqBuffer and SQZReadBatch).
+ * Each read is added with addRead(), which reserves space for its sequence and quality
+ * values. The reader then decodes the values straight into the reserved space.
+ */
+interface SQZReadSink {
+    /**
+     * Adds a read, and reserves space for its sequence and quality values.
+     *
+     * @param i - the position of the read in the record (0 starts a new record)
+     * @param name - the record name (the first nameLen bytes are used)
+     * @param comment - the comment (no comment if commentLen is 0)
+     */
+    public void addRead(int i, byte[] name, int nameLen, byte[] comment, int commentLen, int seqLen, int qualLen);
+
+    /**
+     * @return the array to write the sequence of the last read to (at seqOffset())
+     */
+    public byte[] seqBuffer();
+    public int seqOffset();
+
+    /**
+     * @return the array to write the quality values of the last read to (at qualOffset())
+     */
+    public byte[] qualBuffer();
+    public int qualOffset();
+}
@@ -1,6 +1,7 @@
 package io.compgen.sqz;
 
 import io.compgen.common.progress.FileChannelStats;
+import io.compgen.common.progress.Progress;
 import io.compgen.common.progress.ProgressMessage;
 import io.compgen.common.progress.ProgressUtils;
 import io.compgen.ngsutils.fastq.FastqRead;
@@ -10,21 +11,37 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.spec.KeySpec;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public abstract class SQZReader implements FastqReader {
     public abstract FastqRead[] nextRead() throws IOException;
+
+    /**
+     * Reads past the next record without decoding it.
+     * @return false if there are no more records
+     * @throws IOException
+     */
+    protected abstract boolean skipRead() throws IOException;
+
+    /**
+     * Decodes the next record without creating FastqReads. Each read in the record is
+     * added to the sink for its position in the record (outs[i]), or is skipped if there
+     * isn't a sink for it. The same sink can be used for more than one read.
+     *
+     * @return false if there are no more records
+     * @throws IOException
+     */
+    protected abstract boolean nextRecord(SQZReadSink[] outs) throws IOException;
     
     protected FileChannel channel;
     protected SQZInputStream sis;
@@ -34,21 +51,66 @@ public abstract class SQZReader implements FastqReader {
     protected MessageDigest md;
     
     protected String name = null;
+    protected long readNum = 0;
     
     protected boolean ignoreComments;
     protected boolean closed = false;
     
     protected boolean verbose = false;
 
-    public static SQZReader open(InputStream parent, boolean ignoreComments, String password, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
+    // size of the FASTQ blocks written by writeFastq()
+    private static final int FASTQ_BUFFER_SIZE = 1024 * 1024;
+
+    // max records per batch for nextBatch(SQZReadBatch)
+    public static final int DEFAULT_BATCH_RECORDS = 64 * 1024;
+
+    /**
+     * @param key - the password or key file for encrypted files (or null)
+     */
+    public static SQZReader open(InputStream parent, boolean ignoreComments, SQZKey key, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
         SQZInputStream sis = new SQZInputStream(parent);
         
         SQZHeader header = SQZHeader.readHeader(sis);
+        if ((header.flags & ~SQZ.KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported SQZ flags: "+header.flags);
+        }
+        if (header.columnar && header.major == 1 && header.minor < 2) {
+            throw new IOException("Columnar SQZ files must be v1.2+!");
+        }
+        if (header.tokenizedNames && header.major == 1 && header.minor < 2) {
+            throw new IOException("SQZ files with tokenized names must be v1.2+!");
+        }
+        if (header.chunkCodecs && header.major == 1 && header.minor < 2) {
+            throw new IOException("SQZ files with per-chunk codecs must be v1.2+!");
+        }
+        if (header.deflateDict && (header.compressionType != SQZ.COMPRESS_DEFLATE || (header.major == 1 && header.minor < 2))) {
+            throw new IOException("SQZ files with a deflate dictionary must be v1.2+ and compressed with deflate!");
+        }
+        if ((header.checksumType != SQZChecksum.CHECKSUM_SHA1 || header.digestChunks) && header.major == 1 && header.minor < 2) {
+            throw new IOException("SQZ files with chunk checksums must be v1.2+!");
+        }
+        if (header.encryption != null && SQZEncryption.isGCM(header.encryption) && header.major == 1 && header.minor < 2) {
+            throw new IOException("SQZ files with AES-GCM encryption must be v1.2+!");
+        }
+        if (header.keyFile && (header.encryption == null || (header.major == 1 && header.minor < 2))) {
+            throw new IOException("SQZ files with a key file must be encrypted and v1.2+!");
+        }
+        if (header.packedSeq && !header.columnar) {
+            throw new IOException("Packed sequence SQZ files must be columnar!");
+        }
         if (header.major == 1 && header.minor == 1) {
-            return new SQZReader_1_1(sis, header, ignoreComments, password, verbose, channel, name);
+            return new SQZReader_1_1(sis, header, ignoreComments, key, verbose, channel, name);
+        } else if (header.major == 1 && header.minor == 2) {
+            return new SQZReader_1_2(sis, header, ignoreComments, key, verbose, channel, name);
         }
         throw new IOException("Invalid major/minor SQZ version! (got: "+header.major+","+header.minor+")");
     }
+    public static SQZReader open(InputStream parent, boolean ignoreComments, String password, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
+        return open(parent, ignoreComments, SQZKey.fromPassword(password), verbose, channel, name);
+    }
+    public static SQZReader open(InputStream parent, boolean ignoreComments, SQZKey key, boolean verbose) throws IOException, GeneralSecurityException {
+        return open(parent, ignoreComments, key, verbose, null, null);
+    }
     public static SQZReader open(InputStream parent, boolean ignoreComments, String password, boolean verbose) throws IOException, GeneralSecurityException {
         return open(parent, ignoreComments, password, verbose, null, null);
     }
@@ -56,14 +118,22 @@ public abstract class SQZReader implements FastqReader {
         FileInputStream fis = new FileInputStream(filename);
         return open(fis, ignoreComments, password, verbose, fis.getChannel(), filename);
     }
+    public static SQZReader open(String filename, boolean ignoreComments, SQZKey key, boolean verbose) throws FileNotFoundException, IOException, GeneralSecurityException {
+        FileInputStream fis = new FileInputStream(filename);
+        return open(fis, ignoreComments, key, verbose, fis.getChannel(), filename);
+    }
     public static SQZReader open(String filename, boolean ignoreComments) throws FileNotFoundException, IOException, GeneralSecurityException {
-        return open(filename, ignoreComments, null, false);
+        return open(filename, ignoreComments, (SQZKey) null, false);
     }
     public static SQZReader open(InputStream is, boolean ignoreComments) throws IOException, GeneralSecurityException {
-        return open(is, ignoreComments, null, false, null, null);
+        return open(is, ignoreComments, (SQZKey) null, false, null, null);
     }
    
-    protected SQZReader(SQZInputStream sis, SQZHeader header, boolean ignoreComments, String password, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
+    /**
+     * The key for encrypted files is derived in the background, while the first chunk is
+     * read. It is only needed when that chunk is decrypted.
+     */
+    protected SQZReader(SQZInputStream sis, SQZHeader header, boolean ignoreComments, SQZKey key, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
         this.sis = sis;
         this.header = header;
         this.ignoreComments = ignoreComments;
@@ -71,37 +141,29 @@ public abstract class SQZReader implements FastqReader {
         this.name = name;
 
         Cipher cipher = null;
-        SecretKeySpec secret = null;
+        Future<SecretKeySpec> secret = null;
         int ivLen = 0;
                 
         
-        if (header.encryption != null && password == null) {
+        if (header.encryption != null && key == null) {
             throw new IOException("Missing password for encrypted file!");
-        } else if (header.encryption == null && password != null) {
+        } else if (header.encryption == null && key != null) {
             throw new IOException("Given a password for an unencrypted file!");
-        } else if (header.encryption != null && (header.encryption.equals("AES-128") || header.encryption.equals("AES-256"))) { 
-            byte[] salt = new byte[32];
+        } else if (header.encryption != null && header.keyFile && !key.isKeyFile()) {
+            throw new IOException("File was encrypted with a key file, not a password!");
+        } else if (header.encryption != null && !header.keyFile && key.isKeyFile()) {
+            throw new IOException("File was encrypted with a password, not a key file!");
+        } else if (header.encryption != null && SQZEncryption.isKnown(header.encryption)) { 
+            byte[] salt = new byte[SQZEncryption.SALT_LEN];
             sis.read(salt);
-            ivLen = 16;
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            int keysize;
-            if (header.encryption.equals("AES-128")) {
-                keysize = 128;
-            } else if (header.encryption.equals("AES-256")) {
-                keysize = 256;
-            } else {
-                throw new IOException("Unknown encryption type: "+header.encryption);
-
-            }
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, keysize);
-            SecretKey tmp = factory.generateSecret(spec);
-            secret = new SecretKeySpec(tmp.getEncoded(), "AES");
-            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            ivLen = SQZEncryption.getIVLength(header.encryption);
+            secret = key.deriveAsync(header.encryption, salt);
+            cipher = SQZEncryption.getCipher(header.encryption);
         } else if (header.encryption != null) {
             throw new IOException("Unknown encryption type: "+ header.encryption);
         }
 
-        dcis = new SQZChunkInputStream(sis, header.compressionType, cipher, secret, ivLen, verbose);
+        dcis = new SQZChunkInputStream(sis, header, cipher, secret, ivLen, channel, verbose);
     }
 
     public void close() throws IOException {
@@ -159,6 +221,243 @@ public abstract class SQZReader implements FastqReader {
                     return current.getName();
                 }});
     }
+    /**
+     * Writes records to FASTQ outputs. This is the same as writing each FastqRead, but
+     * records are decoded straight into FASTQ formatted buffers, which are written to the
+     * outputs in large blocks.
+     *
+     * @param outs - the output for each read in a record (ex: {R1, R2}). Reads without an
+     *               output (null, or past the end of the array) aren't written. The same
+     *               output can be used for more than one read (interleaved).
+     * @param count - the max number of records to write (-1 for all)
+     * @return the number of records written
+     * @throws IOException
+     */
+    public long writeFastq(OutputStream[] outs, long count) throws IOException {
+        SQZFastqBuffer[] bufs = new SQZFastqBuffer[header.seqCount];
+        for (int i=0; i<bufs.length && i<outs.length; i++) {
+            if (outs[i] == null) {
+                continue;
+            }
+            for (int j=0; j<i; j++) {
+                if (outs[j] == outs[i]) {
+                    bufs[i] = bufs[j];
+                }
+            }
+            if (bufs[i] == null) {
+                bufs[i] = new SQZFastqBuffer(FASTQ_BUFFER_SIZE + FASTQ_BUFFER_SIZE / 4);
+            }
+        }
+
+        Progress progress = ProgressUtils.getProgress((name == null) ? "SQZ": name);
+        FileChannelStats stats = new FileChannelStats(channel);
+        if (progress != null) {
+            progress.start(stats.size());
+        }
+
+        long written = 0;
+        while (written != count && nextRecord(bufs)) {
+            written++;
+            for (int i=0; i<bufs.length; i++) {
+                if (bufs[i] != null && bufs[i].size() >= FASTQ_BUFFER_SIZE) {
+                    bufs[i].writeTo(outs[i]);
+                    if (progress != null) {
+                        progress.update(stats.position());
+                    }
+                }
+            }
+        }
+        for (int i=0; i<bufs.length; i++) {
+            if (bufs[i] != null) {
+                bufs[i].writeTo(outs[i]);
+            }
+        }
+        if (progress != null) {
+            progress.done();
+        }
+        return written;
+    }
+
+    /**
+     * Reads the next batch of records. The batch is cleared, then filled with the rest of
+     * the current data chunk (v1.2+), so each call normally returns one chunk of records.
+     * Records are decoded straight into the batch, without creating FastqReads.
+     *
+     * @param batch - this must have header.seqCount reads per record
+     * @param maxRecords - the max number of records to read. v1.1 files don't store the
+     *                     number of reads in each chunk, so this is the only limit.
+     * @return the number of records read (0 if there are no more records)
+     * @throws IOException
+     */
+    public int nextBatch(SQZReadBatch batch, int maxRecords) throws IOException {
+        if (batch.getSeqCount() != header.seqCount) {
+            throw new IOException("Each record must have " + header.seqCount + " reads!");
+        }
+        batch.clear();
+
+        SQZReadSink[] outs = new SQZReadSink[header.seqCount];
+        Arrays.fill(outs, batch);
+        while (batch.size() < maxRecords && nextRecord(outs)) {
+            long chunkReads = dcis.getChunkReadCount();
+            if (chunkReads >= 0 && readNum >= dcis.getChunkFirstRead() + chunkReads) {
+                // end of the chunk
+                break;
+            }
+        }
+        return batch.size();
+    }
+
+    public int nextBatch(SQZReadBatch batch) throws IOException {
+        return nextBatch(batch, DEFAULT_BATCH_RECORDS);
+    }
+
+    /**
+     * Sets which columns to decode for columnar files (default: all). Skipped values are
+     * returned as empty strings. This must be set before any reads are made, and has no
+     * effect for non-columnar files.
+     *
+     * For packed sequence files (SQZ.PACKED_SEQ), sequences can be read without quality
+     * values by only including COLUMN_SEQ. COLUMN_SEQQUAL includes both.
+     *
+     * @param mask - bit mask of columns (see SQZ.columnMask()). Seq/qual values require
+     *               the read lengths, so this column is added if needed.
+     * @throws IOException
+     */
+    public void setColumns(int mask) throws IOException {
+        if (header.packedSeq && (mask & SQZ.columnMask(SQZ.COLUMN_SEQQUAL)) != 0) {
+            mask |= SQZ.columnMask(SQZ.COLUMN_SEQ, SQZ.COLUMN_QUAL);
+        }
+        if ((mask & SQZ.columnMask(SQZ.COLUMN_SEQ)) != 0) {
+            mask |= SQZ.columnMask(SQZ.COLUMN_WILDCARDS);
+        }
+        if ((mask & SQZ.columnMask(SQZ.COLUMN_SEQQUAL, SQZ.COLUMN_SEQ, SQZ.COLUMN_QUAL)) != 0) {
+            mask |= SQZ.columnMask(SQZ.COLUMN_LENGTHS);
+        }
+        dcis.setColumns(mask);
+    }
+
+    /**
+     * Moves the reader so that the next call to nextRead() returns the given record.
+     * If the file has a chunk index (v1.2+) and was opened from a file, only the chunk
+     * containing the record is read. For streams, earlier chunks are skipped without
+     * being decompressed. v1.1 files can only be read forward, one record at a time.
+     *
+     * @param readOrdinal - the record to move to (zero-based)
+     * @return false if the file has fewer records
+     * @throws IOException
+     */
+    public boolean seek(long readOrdinal) throws IOException {
+        if (closed) {
+            throw new IOException("Tried to read from closed file!");
+        }
+        if (readOrdinal < 0) {
+            throw new IOException("Invalid read: "+readOrdinal);
+        }
+
+        SQZChunkIndex index = getIndex();
+        if (channel != null && index != null) {
+            int idx = index.findRead(readOrdinal);
+            if (idx == -1) {
+                return false;
+            }
+            SQZChunkIndex.Entry entry = index.get(idx);
+            if (readOrdinal < readNum || entry.firstRead > readNum) {
+                dcis.seek(new SQZChannelInputStream(channel, entry.offset, channel.size() - sis.getDigestLength()), idx, entry.firstRead);
+                readNum = entry.firstRead;
+            }
+        } else if (readOrdinal < readNum) {
+            throw new IOException("Can't seek backwards without a chunk index!");
+        } else if (dcis.skipToRead(readOrdinal)) {
+            readNum = dcis.getChunkFirstRead();
+        }
+
+        while (readNum < readOrdinal) {
+            if (!skipRead()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads and validates the whole file, without decoding the records into FastqReads. Each
+     * chunk is decrypted, decompressed and checked against its checksum. The chunk index and
+     * the file SHA-1 are checked at the end, and the file is closed.
+     *
+     * If checkRecords is set, the records in each data chunk are also checked: each chunk
+     * must hold exactly the number of records in its header, each with header.seqCount
+     * reads, and nothing else. With more than one thread (setThreads()), chunks are
+     * checked in parallel. v1.1 chunks don't have read counts, so their records are
+     * always checked, in order.
+     *
+     * @return the number of records (fragments) in the file
+     * @throws IOException if the file isn't valid
+     */
+    public long verify(boolean checkRecords) throws IOException {
+        if (closed) {
+            throw new IOException("Tried to read from closed file!");
+        }
+        if (readNum > 0) {
+            throw new IOException("The file must be verified before reading!");
+        }
+        if (header.seqCount < 1) {
+            throw new IOException("Invalid SQZ header! Reads per fragment: "+header.seqCount);
+        }
+
+        long reads;
+        SQZChunkInputStream.ChunkValidator validator = getRecordValidator();
+        if (validator == null) {
+            while (skipRead()) {
+            }
+            reads = readNum;
+        } else {
+            if (checkRecords) {
+                dcis.setValidator(validator);
+            } else if (header.columnar) {
+                // the checksum covers the compressed columns
+                dcis.setColumns(0);
+            }
+            reads = dcis.verifyChunks();
+        }
+        close();
+        readNum = reads;
+        return reads;
+    }
+
+    /**
+     * @return a validator that checks the records in a data chunk (see verify()), or null
+     *         if records can't be checked one chunk at a time
+     */
+    protected SQZChunkInputStream.ChunkValidator getRecordValidator() {
+        return null;
+    }
+
+    /**
+     * @return the number of the next record to be read (zero-based)
+     */
+    public long getReadNum() {
+        return readNum;
+    }
+
+    /**
+     * Number of threads to use for decompressing/decrypting chunks (default: 1).
+     * This must be set before any reads are made.
+     * @param threads
+     * @throws IOException
+     */
+    public void setThreads(int threads) throws IOException {
+        dcis.setThreads(threads);
+    }
+
+    /**
+     * @return the chunk index for this file, or null if the file doesn't have an index (v1.1) or it
+     *         isn't available yet. When the file is read as a stream, the index is only available
+     *         after all chunks have been read.
+     */
+    public SQZChunkIndex getIndex() {
+        return dcis.getIndex();
+    }
+
     public SQZHeader getHeader() {
         return header;
     }
@@ -173,14 +472,48 @@ public abstract class SQZReader implements FastqReader {
     public Set<String> getTextNames() {
         return dcis.getTextNames();
     }
+
+    /**
+     * @return the text annotation (or binary block) as a stream, or null if it isn't
+     *         present. Large annotations are read from the file as the stream is read, so
+     *         this must be done before the reader is closed.
+     */
+    public InputStream openText(String name) throws IOException {
+        return dcis.openText(name);
+    }
+
+    public boolean isBinary(String name) {
+        return dcis.isBinary(name);
+    }
     
     public Exception getException() {
         return exception;
     }
     
+    /**
+     * Reads the text chunks in the file, without decoding any data chunks. If the file has
+     * a chunk index (v1.2+) and was opened from a file, only the text chunks are read.
+     * Otherwise, the chunks are read in order, and the payloads of data chunks are skipped
+     * (files can skip them without reading them).
+     *
+     * This doesn't move the reader, unless it was opened from a stream.
+     */
     public void fetchText() {
         try {
-            dcis.readAllChunks();
+            SQZChunkIndex index = getIndex();
+            if (channel != null && index != null) {
+                for (int i=0; i<index.size(); i++) {
+                    SQZChunkIndex.Entry entry = index.get(i);
+                    if (entry.type != SQZ.CHUNK_DATA) {
+                        // the magic of the next chunk (or the index) is included, for AES-GCM
+                        dcis.readTextChunk(new SQZChannelInputStream(channel, entry.offset, entry.offset + entry.length + SQZ.MAGIC_CHUNK.length), i);
+                    }
+                }
+            } else if (channel != null) {
+                dcis.readTextChunks(new SQZChannelInputStream(channel, sis.getPosition(), channel.size() - sis.getDigestLength()));
+            } else {
+                dcis.readTextChunks(null);
+            }
         } catch (IOException e) {
             this.exception = e;
         }
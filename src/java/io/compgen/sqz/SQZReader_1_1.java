@@ -5,12 +5,26 @@ import io.compgen.common.io.DataIO;
 import io.compgen.ngsutils.fastq.FastqRead;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 
 public class SQZReader_1_1 extends SQZReader {
-    protected SQZReader_1_1(SQZInputStream is, SQZHeader header, boolean includeComments, String password, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
-        super(is, header, includeComments, password, verbose, channel, name);
+    // reused for decoding seq/qual values
+    protected byte[] seqQualBuf = new byte[1024];
+    protected byte[] seqBuf = new byte[1024];
+    protected byte[] qualBuf = new byte[1024];
+
+    // reused for nextRecord(): the current name and comments, as bytes
+    protected byte[] nameBuf = new byte[256];
+    protected byte[] nameBytes = nameBuf;
+    protected int nameLen = 0;
+    protected byte[][] commentBufs = null;
+    protected int[] commentLens = null;
+
+    protected SQZReader_1_1(SQZInputStream is, SQZHeader header, boolean includeComments, SQZKey key, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
+        super(is, header, includeComments, key, verbose, channel, name);
     }
   
     public FastqRead[] nextRead() throws IOException {
@@ -20,7 +34,7 @@ public class SQZReader_1_1 extends SQZReader {
         
         FastqRead[] out = new FastqRead[header.seqCount]; 
         
-        String name = DataIO.readString(dcis);
+        String name = readName(dcis);
         if (name == null) {
             return null;
         }
@@ -40,16 +54,191 @@ public class SQZReader_1_1 extends SQZReader {
         }
 
         for (int i=0; i<header.seqCount; i++) {
-            byte[] sqbuf = DataIO.readByteArray(dcis);
-            
-            String[] sq;
-            if (header.colorspace) {
-                sq = SQZ.splitSeqQualColorspace(sqbuf);
-            } else {
-                sq = SQZ.splitSeqQual(sqbuf);
-            }
-            out[i] = new FastqRead(name, sq[0], sq[1], (comment == null) ? null: comment[i]);
+            int len = readSeqQual(dcis, DataIO.readVarInt(dcis));
+            out[i] = decodeRead(name, (comment == null) ? null: comment[i], len);
         }
+        readNum++;
         return out;
     }
+
+    @Override
+    protected boolean nextRecord(SQZReadSink[] outs) throws IOException {
+        if (closed) {
+            throw new IOException("Tried to read from closed file!");
+        }
+
+        if (!readNameBytes(dcis)) {
+            return false;
+        }
+
+        for (int i=0; i<header.seqCount; i++) {
+            readCommentBytes(header.hasComments ? dcis : null, i);
+        }
+
+        for (int i=0; i<header.seqCount; i++) {
+            int len = readSeqQual(dcis, DataIO.readVarInt(dcis));
+            if (i < outs.length && outs[i] != null) {
+                formatRead(outs[i], i, len);
+            }
+        }
+        readNum++;
+        return true;
+    }
+
+    /**
+     * Reads the next name into nameBytes/nameLen (same encoding as readName()).
+     * @return false at EOF
+     */
+    protected boolean readNameBytes(InputStream in) throws IOException {
+        long len = DataIO.readVarInt(in);
+        if (len <= 0) {
+            // empty names are read as null (EOF)
+            return false;
+        }
+        if (len > nameBuf.length) {
+            nameBuf = new byte[(int) Math.max(len, nameBuf.length * 2)];
+        }
+        readFully(in, nameBuf, (int) len);
+        nameBytes = nameBuf;
+        nameLen = (int) len;
+        return true;
+    }
+
+    /**
+     * Reads the comment for read [i] of the current record into commentBufs/commentLens.
+     * Missing (in == null), empty, and ignored comments all have a length of 0.
+     */
+    protected void readCommentBytes(InputStream in, int i) throws IOException {
+        if (commentBufs == null) {
+            commentBufs = new byte[header.seqCount][];
+            commentLens = new int[header.seqCount];
+        }
+        commentLens[i] = 0;
+        if (in == null) {
+            return;
+        }
+        long len = DataIO.readVarInt(in);
+        if (len <= 0) {
+            return;
+        }
+        if (ignoreComments) {
+            if (in.skip(len) != len) {
+                throw new IOException("Truncated record!");
+            }
+            return;
+        }
+        if (commentBufs[i] == null || len > commentBufs[i].length) {
+            commentBufs[i] = new byte[(int) Math.max(len, 256)];
+        }
+        readFully(in, commentBufs[i], (int) len);
+        commentLens[i] = (int) len;
+    }
+
+    /**
+     * Adds read [i] of the current record to a sink, decoding the seq/qual values in
+     * seqQualBuf.
+     */
+    protected void formatRead(SQZReadSink out, int i, int len) {
+        int qualLen = header.colorspace ? Math.max(0, len - 1) : len;
+        out.addRead(i, nameBytes, nameLen, commentBufs[i], commentLens[i], len, qualLen);
+        if (header.colorspace) {
+            SQZ.decodeSeqQualColorspace(seqQualBuf, 0, len, out.seqBuffer(), out.seqOffset(), out.qualBuffer(), out.qualOffset());
+        } else {
+            SQZ.decodeSeqQual(seqQualBuf, 0, len, out.seqBuffer(), out.seqOffset(), out.qualBuffer(), out.qualOffset());
+        }
+    }
+
+    /**
+     * @return the next read name, or null at EOF
+     */
+    protected String readName(InputStream in) throws IOException {
+        return DataIO.readString(in);
+    }
+
+    /**
+     * @return false at EOF
+     */
+    protected boolean skipName(InputStream in) throws IOException {
+        return DataIO.readString(in) != null;
+    }
+
+    /**
+     * Decodes the seq/qual values in seqQualBuf.
+     */
+    protected FastqRead decodeRead(String name, String comment, int len) {
+        String seq;
+        String qual;
+        if (header.colorspace) {
+            SQZ.decodeSeqQualColorspace(seqQualBuf, 0, len, seqBuf, 0, qualBuf, 0);
+            seq = new String(seqBuf, 0, len, StandardCharsets.ISO_8859_1);
+            qual = new String(qualBuf, 0, Math.max(0, len - 1), StandardCharsets.ISO_8859_1);
+        } else {
+            SQZ.decodeSeqQual(seqQualBuf, 0, len, seqBuf, 0, qualBuf, 0);
+            seq = new String(seqBuf, 0, len, StandardCharsets.ISO_8859_1);
+            qual = new String(qualBuf, 0, len, StandardCharsets.ISO_8859_1);
+        }
+        return new FastqRead(name, seq, qual, comment);
+    }
+
+    /**
+     * Reads a seq/qual array into seqQualBuf.
+     * @param in
+     * @param len - the length of the array
+     * @return the length of the array
+     */
+    protected int readSeqQual(InputStream in, long len) throws IOException {
+        if (len < 0) {
+            // missing (old files), treat it as empty
+            return 0;
+        }
+        ensureCapacity(len);
+        readFully(in, seqQualBuf, (int) len);
+        return (int) len;
+    }
+
+    /**
+     * Grows the seq/qual buffers to hold a read of [len] bases.
+     */
+    protected void ensureCapacity(long len) {
+        if (len > seqQualBuf.length) {
+            int size = (int) Math.max(len, seqQualBuf.length * 2);
+            seqQualBuf = new byte[size];
+            seqBuf = new byte[size];
+            qualBuf = new byte[size];
+        }
+    }
+
+    protected static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int pos = 0;
+        while (pos < len) {
+            int count = in.read(buf, pos, len - pos);
+            if (count == -1) {
+                throw new IOException("Truncated record!");
+            }
+            pos += count;
+        }
+    }
+
+    protected boolean skipRead() throws IOException {
+        if (closed) {
+            throw new IOException("Tried to read from closed file!");
+        }
+
+        if (!skipName(dcis)) {
+            return false;
+        }
+        if (header.hasComments) {
+            for (int i=0; i<header.seqCount; i++) {
+                DataIO.readString(dcis);
+            }
+        }
+        for (int i=0; i<header.seqCount; i++) {
+            long len = DataIO.readVarInt(dcis);
+            if (len < 0 || dcis.skip(len) != len) {
+                throw new IOException("Truncated record!");
+            }
+        }
+        readNum++;
+        return true;
+    }
 }
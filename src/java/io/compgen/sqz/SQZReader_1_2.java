@@ -0,0 +1,455 @@
+package io.compgen.sqz;
+
+import io.compgen.common.io.DataIO;
+import io.compgen.ngsutils.fastq.FastqRead;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * v1.2 files use the same read encoding as v1.1, but chunks include their read
+ * counts and the file ends with a chunk index (see SQZChunkIndex).
+ *
+ * v1.2 files can also be columnar (SQZ.COLUMNAR). Each data chunk then stores the names,
+ * comments, read lengths, and seq/qual values as separately compressed columns. Columns
+ * that aren't needed can be skipped with setColumns().
+ *
+ * Columnar files can also store sequences 2-bit packed (SQZ.PACKED_SEQ). Sequences,
+ * wildcards (N), and quality values are then stored in separate columns, so sequences
+ * can be read without decompressing the quality values.
+ *
+ * Names can be stored as tokens (SQZ.TOKENIZED_NAMES, see SQZNameCodec), in either layout.
+ *
+ */
+public class SQZReader_1_2 extends SQZReader_1_1 {
+    protected SQZChunkIndex index = null;
+    protected SQZNameCodec.Decoder nameDecoder = null;
+
+    protected SQZReader_1_2(SQZInputStream is, SQZHeader header, boolean includeComments, SQZKey key, boolean verbose, FileChannel channel, String name) throws IOException, GeneralSecurityException {
+        super(is, header, includeComments, key, verbose, channel, name);
+        if (channel != null) {
+            index = SQZChunkIndex.load(channel, sis.getDigestLength());
+        }
+        if (header.tokenizedNames) {
+            nameDecoder = new SQZNameCodec.Decoder();
+        }
+    }
+
+    @Override
+    protected String readName(InputStream in) throws IOException {
+        if (nameDecoder != null) {
+            return nameDecoder.decode(in);
+        }
+        return super.readName(in);
+    }
+
+    @Override
+    protected boolean readNameBytes(InputStream in) throws IOException {
+        if (nameDecoder != null) {
+            if (!nameDecoder.skip(in)) {
+                return false;
+            }
+            nameBytes = nameDecoder.nameBytes();
+            nameLen = nameDecoder.nameLength();
+            return true;
+        }
+        return super.readNameBytes(in);
+    }
+
+    @Override
+    protected boolean skipName(InputStream in) throws IOException {
+        if (nameDecoder != null) {
+            return nameDecoder.skip(in);
+        }
+        return super.skipName(in);
+    }
+
+    @Override
+    public SQZChunkIndex getIndex() {
+        if (index != null) {
+            return index;
+        }
+        return super.getIndex();
+    }
+
+    /**
+     * Checks the records in a data chunk, without decoding them. Each chunk starts a new
+     * run of tokenized names, so chunks can be checked on their own (and in parallel).
+     */
+    @Override
+    protected SQZChunkInputStream.ChunkValidator getRecordValidator() {
+        return new SQZChunkInputStream.ChunkValidator() {
+            @Override
+            public void validate(int chunkNum, long readCount, byte[] data, int len, byte[][] columns) throws IOException {
+                if (columns != null) {
+                    validateColumns(chunkNum, readCount, columns);
+                    return;
+                }
+                ByteArrayInputStream in = new ByteArrayInputStream(data, 0, len);
+                SQZNameCodec.Decoder names = header.tokenizedNames ? new SQZNameCodec.Decoder() : null;
+                for (long i=0; i<readCount; i++) {
+                    if (!(names != null ? names.skip(in) : skipBytes(in, DataIO.readVarInt(in)))) {
+                        throw invalidRecord(chunkNum, i, "name");
+                    }
+                    if (header.hasComments) {
+                        for (int j=0; j<header.seqCount; j++) {
+                            if (!skipBytes(in, DataIO.readVarInt(in))) {
+                                throw invalidRecord(chunkNum, i, "comment");
+                            }
+                        }
+                    }
+                    for (int j=0; j<header.seqCount; j++) {
+                        if (!skipBytes(in, DataIO.readVarInt(in))) {
+                            throw invalidRecord(chunkNum, i, "seq/qual");
+                        }
+                    }
+                }
+                if (in.available() > 0) {
+                    throw new IOException("Invalid chunk "+chunkNum+"! Extra data after "+readCount+" records");
+                }
+            }
+        };
+    }
+
+    private void validateColumns(int chunkNum, long readCount, byte[][] columns) throws IOException {
+        int expected = header.packedSeq ? SQZ.COLUMN_COUNT : SQZ.COLUMN_SEQQUAL + 1;
+        if (columns.length != expected) {
+            throw new IOException("Invalid columnar chunk "+chunkNum+"! Expected "+expected+" columns, got "+columns.length);
+        }
+        ByteArrayInputStream[] cols = new ByteArrayInputStream[columns.length];
+        for (int i=0; i<columns.length; i++) {
+            if (columns[i] == null) {
+                throw new IOException("Invalid columnar chunk "+chunkNum+"! Column "+i+" wasn't decoded");
+            }
+            cols[i] = new ByteArrayInputStream(columns[i]);
+        }
+
+        SQZNameCodec.Decoder names = header.tokenizedNames ? new SQZNameCodec.Decoder() : null;
+        InputStream nameCol = cols[SQZ.COLUMN_NAMES];
+        for (long i=0; i<readCount; i++) {
+            if (!(names != null ? names.skip(nameCol) : skipBytes(nameCol, DataIO.readVarInt(nameCol)))) {
+                throw invalidRecord(chunkNum, i, "name");
+            }
+            for (int j=0; j<header.seqCount; j++) {
+                if (header.hasComments && !skipBytes(cols[SQZ.COLUMN_COMMENTS], DataIO.readVarInt(cols[SQZ.COLUMN_COMMENTS]))) {
+                    throw invalidRecord(chunkNum, i, "comment");
+                }
+                long len = DataIO.readVarInt(cols[SQZ.COLUMN_LENGTHS]);
+                if (len < 0 || len > Integer.MAX_VALUE) {
+                    throw invalidRecord(chunkNum, i, "length");
+                }
+                if (!header.packedSeq) {
+                    if (!skipBytes(cols[SQZ.COLUMN_SEQQUAL], len)) {
+                        throw invalidRecord(chunkNum, i, "seq/qual");
+                    }
+                    continue;
+                }
+                if (!skipBytes(cols[SQZ.COLUMN_SEQ], SQZ.packedLength((int) len, header.colorspace))) {
+                    throw invalidRecord(chunkNum, i, "packed sequence");
+                }
+                InputStream wildcards = cols[SQZ.COLUMN_WILDCARDS];
+                long count = DataIO.readVarInt(wildcards);
+                long pos = 0;
+                for (long k=0; k<count; k++) {
+                    pos += DataIO.readVarInt(wildcards);
+                    if (pos < 0 || pos >= len || wildcards.read() == -1) {
+                        throw invalidRecord(chunkNum, i, "wildcard");
+                    }
+                }
+                if (count < 0 || !skipBytes(cols[SQZ.COLUMN_QUAL], header.colorspace ? Math.max(0, len - 1) : len)) {
+                    throw invalidRecord(chunkNum, i, "quality");
+                }
+            }
+        }
+        for (int i=0; i<cols.length; i++) {
+            if (cols[i].available() > 0) {
+                throw new IOException("Invalid columnar chunk "+chunkNum+"! Extra data in column "+i+" after "+readCount+" records");
+            }
+        }
+    }
+
+    /**
+     * @return false if the length is invalid, or there aren't enough bytes left
+     */
+    private static boolean skipBytes(InputStream in, long len) throws IOException {
+        return len >= 0 && in.skip(len) == len;
+    }
+
+    /**
+     * Skips [len] bytes of a column (for skipRead()).
+     */
+    private static void skipColumn(InputStream in, long len) throws IOException {
+        if (!skipBytes(in, len)) {
+            throw new IOException("Truncated chunk column!");
+        }
+    }
+
+    private static IOException invalidRecord(int chunkNum, long record, String field) {
+        return new IOException("Invalid record in chunk "+chunkNum+"! Bad "+field+" for record "+record);
+    }
+
+    @Override
+    public FastqRead[] nextRead() throws IOException {
+        if (!header.columnar) {
+            return super.nextRead();
+        }
+        if (closed) {
+            throw new IOException("Tried to read from closed file!");
+        }
+        if (!dcis.nextRecord()) {
+            return null;
+        }
+
+        InputStream names = dcis.getColumn(SQZ.COLUMN_NAMES);
+        InputStream comments = dcis.getColumn(SQZ.COLUMN_COMMENTS);
+        InputStream lengths = dcis.getColumn(SQZ.COLUMN_LENGTHS);
+        InputStream seqquals = dcis.getColumn(SQZ.COLUMN_SEQQUAL);
+
+        if (header.packedSeq) {
+            seqquals = null;
+        }
+
+        String name = (names == null) ? "" : readName(names);
+        if (name == null) {
+            // empty names are read as null
+            name = "";
+        }
+
+        FastqRead[] out = new FastqRead[header.seqCount];
+        for (int i=0; i<header.seqCount; i++) {
+            String comment = null;
+            if (header.hasComments && comments != null) {
+                comment = DataIO.readString(comments);
+                if (ignoreComments) {
+                    comment = null;
+                }
+            }
+
+            int len = 0;
+            if (lengths != null) {
+                long seqLen = DataIO.readVarInt(lengths);
+                if (seqLen < 0) {
+                    throw new IOException("Truncated record!");
+                }
+                if (header.packedSeq) {
+                    out[i] = readPacked(name, comment, (int) seqLen);
+                    continue;
+                }
+                if (seqquals != null) {
+                    len = readSeqQual(seqquals, seqLen);
+                }
+            }
+            out[i] = decodeRead(name, comment, len);
+        }
+        readNum++;
+        return out;
+    }
+
+    @Override
+    protected boolean nextRecord(SQZReadSink[] outs) throws IOException {
+        if (!header.columnar) {
+            return super.nextRecord(outs);
+        }
+        if (closed) {
+            throw new IOException("Tried to read from closed file!");
+        }
+        if (!dcis.nextRecord()) {
+            return false;
+        }
+
+        InputStream names = dcis.getColumn(SQZ.COLUMN_NAMES);
+        InputStream comments = dcis.getColumn(SQZ.COLUMN_COMMENTS);
+        InputStream lengths = dcis.getColumn(SQZ.COLUMN_LENGTHS);
+        InputStream seqquals = dcis.getColumn(SQZ.COLUMN_SEQQUAL);
+
+        if (header.packedSeq) {
+            seqquals = null;
+        }
+
+        if (names == null || !readNameBytes(names)) {
+            // empty names are read as null
+            nameLen = 0;
+        }
+
+        for (int i=0; i<header.seqCount; i++) {
+            SQZReadSink out = (i < outs.length) ? outs[i] : null;
+            readCommentBytes(header.hasComments ? comments : null, i);
+
+            int len = 0;
+            if (lengths != null) {
+                long seqLen = DataIO.readVarInt(lengths);
+                if (seqLen < 0) {
+                    throw new IOException("Truncated record!");
+                }
+                if (header.packedSeq) {
+                    formatPacked(out, i, (int) seqLen);
+                    continue;
+                }
+                if (seqquals != null) {
+                    len = readSeqQual(seqquals, seqLen);
+                }
+            }
+            if (out != null) {
+                formatRead(out, i, len);
+            }
+        }
+        readNum++;
+        return true;
+    }
+
+    @Override
+    protected boolean skipRead() throws IOException {
+        if (!header.columnar) {
+            return super.skipRead();
+        }
+        if (closed) {
+            throw new IOException("Tried to read from closed file!");
+        }
+        if (!dcis.nextRecord()) {
+            return false;
+        }
+
+        InputStream names = dcis.getColumn(SQZ.COLUMN_NAMES);
+        InputStream comments = dcis.getColumn(SQZ.COLUMN_COMMENTS);
+        InputStream lengths = dcis.getColumn(SQZ.COLUMN_LENGTHS);
+        InputStream seqquals = dcis.getColumn(SQZ.COLUMN_SEQQUAL);
+
+        if (names != null) {
+            skipName(names);
+        }
+        for (int i=0; i<header.seqCount; i++) {
+            if (header.hasComments && comments != null) {
+                skipColumn(comments, DataIO.readVarInt(comments));
+            }
+            if (lengths != null) {
+                long len = DataIO.readVarInt(lengths);
+                if (len < 0) {
+                    throw new IOException("Truncated chunk column!");
+                }
+                if (header.packedSeq) {
+                    skipPacked(len);
+                } else if (seqquals != null) {
+                    skipColumn(seqquals, len);
+                }
+            }
+        }
+        readNum++;
+        return true;
+    }
+
+    /**
+     * Reads a packed sequence (and quality values) from the current columnar chunk.
+     * Columns that weren't decoded are returned as empty strings.
+     */
+    private FastqRead readPacked(String name, String comment, int len) throws IOException {
+        InputStream seqs = dcis.getColumn(SQZ.COLUMN_SEQ);
+        InputStream wildcards = dcis.getColumn(SQZ.COLUMN_WILDCARDS);
+        InputStream quals = dcis.getColumn(SQZ.COLUMN_QUAL);
+
+        ensureCapacity(len);
+
+        String seq = "";
+        if (seqs != null) {
+            readFully(seqs, seqQualBuf, SQZ.packedLength(len, header.colorspace));
+            SQZ.unpackSeq(seqQualBuf, 0, len, header.colorspace, seqBuf, 0);
+            if (wildcards != null) {
+                long count = DataIO.readVarInt(wildcards);
+                long pos = 0;
+                for (long j=0; j<count; j++) {
+                    pos += DataIO.readVarInt(wildcards);
+                    int symbol = wildcards.read();
+                    if (pos < 0 || pos >= len || symbol == -1) {
+                        throw new IOException("Invalid wildcard for read: "+name);
+                    }
+                    seqBuf[(int) pos] = (byte) symbol;
+                }
+            }
+            seq = new String(seqBuf, 0, len, StandardCharsets.ISO_8859_1);
+        }
+
+        String qual = "";
+        if (quals != null) {
+            int qualLen = header.colorspace ? Math.max(0, len - 1) : len;
+            readFully(quals, seqQualBuf, qualLen);
+            SQZ.unpackQual(seqQualBuf, 0, qualLen, qualBuf, 0);
+            qual = new String(qualBuf, 0, qualLen, StandardCharsets.ISO_8859_1);
+        }
+        return new FastqRead(name, seq, qual, comment);
+    }
+
+    /**
+     * Adds a packed sequence (and quality values) from the current columnar chunk to a
+     * sink. Columns that weren't decoded are written as empty lines. The columns
+     * are still read if [out] is null.
+     */
+    private void formatPacked(SQZReadSink out, int i, int len) throws IOException {
+        InputStream seqs = dcis.getColumn(SQZ.COLUMN_SEQ);
+        InputStream wildcards = dcis.getColumn(SQZ.COLUMN_WILDCARDS);
+        InputStream quals = dcis.getColumn(SQZ.COLUMN_QUAL);
+
+        ensureCapacity(len);
+
+        int seqLen = (seqs != null) ? len : 0;
+        int qualLen = (quals != null) ? (header.colorspace ? Math.max(0, len - 1) : len) : 0;
+
+        if (out != null) {
+            out.addRead(i, nameBytes, nameLen, commentBufs[i], commentLens[i], seqLen, qualLen);
+        }
+
+        if (seqs != null) {
+            readFully(seqs, seqQualBuf, SQZ.packedLength(len, header.colorspace));
+            if (out != null) {
+                SQZ.unpackSeq(seqQualBuf, 0, len, header.colorspace, out.seqBuffer(), out.seqOffset());
+            }
+            if (wildcards != null) {
+                long count = DataIO.readVarInt(wildcards);
+                long pos = 0;
+                for (long j=0; j<count; j++) {
+                    pos += DataIO.readVarInt(wildcards);
+                    int symbol = wildcards.read();
+                    if (pos < 0 || pos >= len || symbol == -1) {
+                        throw new IOException("Invalid wildcard for read: "+new String(nameBytes, 0, nameLen, StandardCharsets.UTF_8));
+                    }
+                    if (out != null) {
+                        out.seqBuffer()[out.seqOffset() + (int) pos] = (byte) symbol;
+                    }
+                }
+            }
+        }
+
+        if (quals != null) {
+            readFully(quals, seqQualBuf, qualLen);
+            if (out != null) {
+                SQZ.unpackQual(seqQualBuf, 0, qualLen, out.qualBuffer(), out.qualOffset());
+            }
+        }
+    }
+
+    private void skipPacked(long len) throws IOException {
+        InputStream seqs = dcis.getColumn(SQZ.COLUMN_SEQ);
+        InputStream wildcards = dcis.getColumn(SQZ.COLUMN_WILDCARDS);
+        InputStream quals = dcis.getColumn(SQZ.COLUMN_QUAL);
+
+        if (seqs != null) {
+            skipColumn(seqs, SQZ.packedLength((int) len, header.colorspace));
+        }
+        if (wildcards != null) {
+            long count = DataIO.readVarInt(wildcards);
+            if (count < 0) {
+                throw new IOException("Truncated chunk column!");
+            }
+            for (long j=0; j<count; j++) {
+                if (DataIO.readVarInt(wildcards) < 0 || wildcards.read() == -1) {
+                    throw new IOException("Truncated chunk column!");
+                }
+            }
+        }
+        if (quals != null) {
+            skipColumn(quals, header.colorspace ? Math.max(0, len - 1) : len);
+        }
+    }
+}
@@ -3,71 +3,110 @@ package io.compgen.sqz;
 import io.compgen.common.io.DataIO;
 import io.compgen.ngsutils.fastq.FastqRead;
 
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.security.spec.KeySpec;
 import java.util.List;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class SQZWriter {
     public static final int MAJOR = 1;
-    public static final int MINOR = 1;
+    public static final int MINOR = 2;
+
+    // default target size of a data chunk (uncompressed)
+    public static final long DEFAULT_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    // default number of reads to train the deflate dictionary on (SQZ.DEFLATE_DICT)
+    public static final int DEFAULT_DICT_READS = 10000;
 
     protected MessageDigest md;
     protected OutputStream parent;
     protected SQZChunkOutputStream dcos=null;
     protected boolean closed = false;
     
-    protected int readCount = 0;
-    protected int chunkSize = 10000;
+    protected boolean started = false;
+
+    protected SQZQualityBins qualityBins = null;
+    protected SQZNameCodec.Encoder nameEncoder = null;
+
+    // reused for encoding seq/qual values
+    protected byte[] seqQualBuf = new byte[1024];
+
+    // reused for packed sequences (SQZ.PACKED_SEQ)
+    protected byte[] seqBuf = new byte[1024];
+    protected byte[] qualBuf = new byte[1024];
+    protected int[] wildcardPos = new int[1024];
+    protected byte[] wildcardSymbols = new byte[1024];
     
     public final int flags;
     public final SQZHeader header;
     
-    public SQZWriter(OutputStream parent, int flags, int seqCount, int compressionType, String encryption, String password) throws IOException, GeneralSecurityException {
+    /**
+     * @param parent
+     * @param flags
+     * @param seqCount
+     * @param compressionType
+     * @param checksumType - chunk checksum (SQZChecksum). Anything other than SHA-1 sets SQZ.CHUNK_CHECKSUM.
+     * @param encryption
+     * @param key - the password or key file (SQZKey). A key file sets SQZ.KEY_FILE.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public SQZWriter(OutputStream parent, int flags, int seqCount, int compressionType, int checksumType, String encryption, SQZKey key) throws IOException, GeneralSecurityException {
+        if (encryption != null && key == null) {
+            throw new IOException("Missing password for encrypted file!");
+        }
+        if (encryption != null && key.isKeyFile()) {
+            flags |= SQZ.KEY_FILE;
+        }
+        if (checksumType != SQZChecksum.CHECKSUM_SHA1) {
+            flags |= SQZ.CHUNK_CHECKSUM;
+        }
+        if ((flags & SQZ.PACKED_SEQ) != 0) {
+            // packed sequences are stored as separate columns
+            flags |= SQZ.COLUMNAR;
+        }
+        if (compressionType > SQZ.COMPRESS_BZIP2) {
+            // older readers only know the first codecs, so newer ones are recorded per chunk
+            flags |= SQZ.CHUNK_CODECS;
+        }
         this.parent = parent;
         this.flags = flags;
         
         md = MessageDigest.getInstance("SHA-1");
         OutputStream os = new DigestOutputStream(parent, md);
         
-        header = new SQZHeader(MAJOR, MINOR, flags, seqCount, compressionType, encryption);
-        header.writeHeader(os);
+        header = new SQZHeader(MAJOR, MINOR, flags, seqCount, compressionType, encryption, checksumType);
+        if (header.tokenizedNames) {
+            nameEncoder = new SQZNameCodec.Encoder();
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        header.writeHeader(headerBytes);
+        headerBytes.writeTo(os);
+        long offset = headerBytes.size();
 
         Cipher cipher = null;
         SecretKeySpec secret = null;
       
-        if (encryption != null && (encryption.equals("AES-128") || encryption.equals("AES-256"))) {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-
-            SecureRandom random = new SecureRandom();
-            byte[] salt = random.generateSeed(32);
-            int keysize;
-            if (encryption.equals("AES-128")) {
-                keysize = 128;
-            } else if (encryption.equals("AES-256")) {
-                keysize = 256;
-            } else {
-                throw new IOException("Unknown encryption type: "+encryption);
-
+        if (encryption != null && SQZEncryption.isKnown(encryption)) {
+            if (SQZEncryption.isGCM(encryption) && checksumType != SQZChecksum.CHECKSUM_SHA1) {
+                throw new IOException("AES-GCM chunks are validated by their GCM tag, and can't have a chunk checksum!");
             }
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, keysize);
-            SecretKey tmp = factory.generateSecret(spec);
-            secret = new SecretKeySpec(tmp.getEncoded(), "AES");
+            SecureRandom random = new SecureRandom();
+            byte[] salt = random.generateSeed(SQZEncryption.SALT_LEN);
+            secret = key.derive(encryption, salt);
 
-            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher = SQZEncryption.getCipher(encryption);
             try {
             cipher.init(Cipher.ENCRYPT_MODE, secret);
             } catch (InvalidKeyException e) {
@@ -76,18 +115,39 @@ public class SQZWriter {
             }
 
             os.write(salt);
+            offset += salt.length;
 
         } else if (encryption != null) {
             throw new IOException("Unknown encryption type: "+encryption);
         }
         
-        dcos = new SQZChunkOutputStream(os, compressionType, cipher, secret);
+        dcos = new SQZChunkOutputStream(os, header, cipher, secret, offset);
+        dcos.setMaxChunkSize(DEFAULT_CHUNK_BYTES);
+        if (header.deflateDict) {
+            dcos.setDictionaryTraining(DEFAULT_DICT_READS);
+        }
+    }
+
+    public SQZWriter(OutputStream parent, int flags, int seqCount, int compressionType, int checksumType, String encryption, String password) throws IOException, GeneralSecurityException {
+        this(parent, flags, seqCount, compressionType, checksumType, encryption, SQZKey.fromPassword(password));
+    }
+
+    public SQZWriter(OutputStream parent, int flags, int seqCount, int compressionType, String encryption, String password) throws IOException, GeneralSecurityException {
+        this(parent, flags, seqCount, compressionType, SQZChecksum.CHECKSUM_SHA1, encryption, password);
     }
 
     public SQZWriter(OutputStream out, int flags, int seqCount) throws IOException, GeneralSecurityException {
         this(out, flags, seqCount, SQZ.COMPRESS_DEFLATE, null, null);
     }
 
+    public SQZWriter(String filename, int flags, int seqCount, int compressionType, int checksumType, String encryptionAlgorithm, String password) throws IOException, GeneralSecurityException {
+        this(new FileOutputStream(filename), flags, seqCount, compressionType, checksumType, encryptionAlgorithm, password);
+    }
+
+    public SQZWriter(String filename, int flags, int seqCount, int compressionType, int checksumType, String encryptionAlgorithm, SQZKey key) throws IOException, GeneralSecurityException {
+        this(new FileOutputStream(filename), flags, seqCount, compressionType, checksumType, encryptionAlgorithm, key);
+    }
+
     public SQZWriter(String filename, int flags, int seqCount, int compressionType, String encryptionAlgorithm, String password) throws IOException, GeneralSecurityException {
         this(new FileOutputStream(filename), flags, seqCount, compressionType, encryptionAlgorithm, password);
     }
@@ -98,7 +158,7 @@ public class SQZWriter {
     
     public void close() throws IOException {
         if (!closed) {
-            dcos.flush();
+            dcos.finish();
             
             byte[] digest = md.digest();
             DataIO.writeRawBytes(parent, digest);
@@ -108,8 +168,81 @@ public class SQZWriter {
         }
     }
     
+    /**
+     * Sets the maximum number of reads (records) per chunk (default: no limit).
+     * @param chunkSize - max reads, or 0 for no limit
+     */
     public void setChunkSize(int chunkSize) {
-        this.chunkSize = chunkSize;
+        dcos.setMaxChunkReads(chunkSize);
+    }
+
+    /**
+     * Sets the target uncompressed size of each chunk (default: 4MB). Records are
+     * never split between chunks, so a record larger than this is written to a chunk
+     * by itself.
+     *
+     * @param bytes - target size, or 0 for no limit
+     */
+    public void setChunkBytes(long bytes) {
+        dcos.setMaxChunkSize(bytes);
+    }
+
+    /**
+     * Sets the deflate compression level and strategy (default: level 6, default
+     * strategy). This only applies to files compressed with deflate.
+     *
+     * @param level - 0-9, or Deflater.DEFAULT_COMPRESSION
+     * @param strategy - Deflater.DEFAULT_STRATEGY, FILTERED, or HUFFMAN_ONLY
+     */
+    public void setDeflateOptions(int level, int strategy) {
+        dcos.setDeflateOptions(level, strategy);
+    }
+
+    /**
+     * Sets the number of reads the deflate dictionary is trained on (default: 10000).
+     * The file must have the SQZ.DEFLATE_DICT flag set, and this must be called before
+     * any reads are written. Data chunks are held in memory until these reads have
+     * been written.
+     *
+     * @param reads
+     * @throws IOException
+     */
+    public void setDictionaryReads(int reads) throws IOException {
+        if (!header.deflateDict) {
+            throw new IOException("A deflate dictionary requires the SQZ.DEFLATE_DICT flag!");
+        }
+        if (started) {
+            throw new IOException("The deflate dictionary must be set before writing any reads!");
+        }
+        dcos.setDictionaryTraining(reads);
+    }
+
+    /**
+     * Sets the quality binning scheme. The file must have the SQZ.QUAL_BINNED flag set,
+     * and this must be called before any reads are written. The scheme is written to the
+     * file as a text block (SQZQualityBins.TEXT_NAME).
+     *
+     * @param bins
+     * @throws IOException
+     */
+    public void setQualityBins(SQZQualityBins bins) throws IOException {
+        if (!header.qualBinned) {
+            throw new IOException("Quality binning requires the SQZ.QUAL_BINNED flag!");
+        }
+        if (started || qualityBins != null) {
+            throw new IOException("Quality binning must be set before writing any reads!");
+        }
+        this.qualityBins = bins;
+        dcos.writeTextBlock(SQZQualityBins.TEXT_NAME, bins.toText());
+    }
+
+    /**
+     * Number of threads to use for compressing/encrypting chunks (default: 1)
+     * @param threads
+     * @throws IOException
+     */
+    public void setThreads(int threads) throws IOException {
+        dcos.setThreads(threads);
     }
     
     public void writeReads(List<FastqRead> reads) throws IOException {
@@ -124,54 +257,339 @@ public class SQZWriter {
             throw new IOException("Each record must have " + header.seqCount + " reads!");            
         }
         
-        if (dcos != null) {
-            readCount ++;
-            /* 
-             * TODO: change this so that we don't write X number
-             *       of reads, but rather Y number of raw bytes.
-             *       This should be done at the SQZChunkOutputStream
-             *       level. I still like the idea of writing whole
-             *       sequences in the same chunk, but if we have
-             *       one *really* long read, it should be stored 
-             *       by itself as a chunk of one.
-             */ 
-            if (readCount > chunkSize ) {
-                dcos.flush();
-                readCount = 0;
-            }
-        }
-        
         for (int i=1; i<reads.size(); i++) {
             if (!reads.get(i).getName().equals(reads.get(0).getName())) {
                 throw new IOException("Reads must have the same name!");
             }
         }
 
-        DataIO.writeString(dcos, reads.get(0).getName());
+        long size = reads.get(0).getName().length();
+        for (FastqRead read: reads) {
+            size += rawSize(read.getSeq().length());
+            if (header.hasComments && read.getComment() != null) {
+                size += read.getComment().length();
+            }
+        }
+        startRecord(size);
+
+        if (nameEncoder != null) {
+            nameEncoder.encode(reads.get(0).getName(), column(SQZ.COLUMN_NAMES), dcos.getChunkReadCount() == 0);
+        } else {
+            DataIO.writeString(column(SQZ.COLUMN_NAMES), reads.get(0).getName());
+        }
 
         if (header.hasComments) {
+            OutputStream comments = column(SQZ.COLUMN_COMMENTS);
             for (FastqRead read: reads) {
                 if (read.getComment() == null) {
-                    DataIO.writeString(dcos, "");
+                    DataIO.writeString(comments, "");
                 } else {
-                    DataIO.writeString(dcos, read.getComment());
+                    DataIO.writeString(comments, read.getComment());
                 }
             }
         }
 
         try {
             for (FastqRead read: reads) {
+                String seq = read.getSeq();
+                if (header.packedSeq) {
+                    writePacked(seq, read.getQual());
+                    continue;
+                }
+                if (seq.length() > seqQualBuf.length) {
+                    seqQualBuf = new byte[Math.max(seq.length(), seqQualBuf.length * 2)];
+                }
+                int len;
                 if (header.colorspace) {
-                    DataIO.writeByteArray(dcos, SQZ.combineSeqQualColorspace(read.getSeq(), read.getQual()));
+                    len = SQZ.encodeSeqQualColorspace(seq, read.getQual(), seqQualBuf, 0, qualityBins);
                 } else {
-                    DataIO.writeByteArray(dcos, SQZ.combineSeqQual(read.getSeq(), read.getQual()));
+                    len = SQZ.encodeSeqQual(seq, read.getQual(), seqQualBuf, 0, qualityBins);
                 }
+                writeSeqQual(seqQualBuf, len);
             }
         } catch (SQZException e) {
             throw new IOException(e);
         }
+        dcos.endRead();
     }
     
+    /**
+     * Writes a record directly from FASTQ buffers (see SQZFastqParser). This avoids creating
+     * FastqRead objects (and Strings) for each read.
+     *
+     * @param reads - one record for each sequence (header.seqCount)
+     * @throws IOException
+     */
+    public void writeRecords(SQZFastqRecord[] reads) throws IOException {
+        if (closed) {
+            throw new IOException("Tried to write to closed file!");
+        }
+        
+        if (reads.length != header.seqCount) {
+            throw new IOException("Each record must have " + header.seqCount + " reads!");            
+        }
+
+        for (int i=1; i<reads.length; i++) {
+            if (!reads[i].sameName(reads[0])) {
+                throw new IOException("Reads must have the same name!");
+            }
+        }
+
+        long size = reads[0].nameLen;
+        for (SQZFastqRecord read: reads) {
+            size += rawSize(read.seqLen);
+            if (header.hasComments && read.commentLen > 0) {
+                size += read.commentLen;
+            }
+        }
+        startRecord(size);
+
+        if (nameEncoder != null) {
+            nameEncoder.encode(reads[0].buf, reads[0].nameOff, reads[0].nameLen, column(SQZ.COLUMN_NAMES), dcos.getChunkReadCount() == 0);
+        } else {
+            writeByteArray(column(SQZ.COLUMN_NAMES), reads[0].buf, reads[0].nameOff, reads[0].nameLen);
+        }
+
+        if (header.hasComments) {
+            OutputStream comments = column(SQZ.COLUMN_COMMENTS);
+            for (SQZFastqRecord read: reads) {
+                if (read.commentLen < 0) {
+                    DataIO.writeVarInt(comments, 0);
+                } else {
+                    writeByteArray(comments, read.buf, read.commentOff, read.commentLen);
+                }
+            }
+        }
+
+        for (SQZFastqRecord read: reads) {
+            writeRead(read.buf, read.seqOff, read.seqLen, read.buf, read.qualOff, read.qualLen);
+        }
+        dcos.endRead();
+    }
+
+    /**
+     * Writes a batch of records (see SQZReadBatch). This is the same as writing each
+     * record with writeRecords(), but the values are read straight from the batch arrays.
+     *
+     * @param batch - this must have header.seqCount reads per record
+     * @throws IOException
+     */
+    public void writeBatch(SQZReadBatch batch) throws IOException {
+        if (closed) {
+            throw new IOException("Tried to write to closed file!");
+        }
+
+        if (batch.getSeqCount() != header.seqCount) {
+            throw new IOException("Each record must have " + header.seqCount + " reads!");
+        }
+
+        for (int rec=0; rec<batch.size(); rec++) {
+            int first = rec * header.seqCount;
+
+            long size = batch.nameLength(rec);
+            for (int i=0; i<header.seqCount; i++) {
+                size += rawSize(batch.seqLength(first + i));
+                if (header.hasComments) {
+                    size += batch.commentLength(first + i);
+                }
+            }
+            startRecord(size);
+
+            if (nameEncoder != null) {
+                nameEncoder.encode(batch.names(), batch.nameOffset(rec), batch.nameLength(rec), column(SQZ.COLUMN_NAMES), dcos.getChunkReadCount() == 0);
+            } else {
+                writeByteArray(column(SQZ.COLUMN_NAMES), batch.names(), batch.nameOffset(rec), batch.nameLength(rec));
+            }
+
+            if (header.hasComments) {
+                OutputStream comments = column(SQZ.COLUMN_COMMENTS);
+                for (int i=0; i<header.seqCount; i++) {
+                    writeByteArray(comments, batch.comments(), batch.commentOffset(first + i), batch.commentLength(first + i));
+                }
+            }
+
+            for (int i=0; i<header.seqCount; i++) {
+                int read = first + i;
+                writeRead(batch.seqs(), batch.seqOffset(read), batch.seqLength(read), batch.quals(), batch.qualOffset(read), batch.qualLength(read));
+            }
+            dcos.endRead();
+        }
+    }
+
+    /**
+     * Encodes and writes the seq/qual values for one read (from ASCII buffers).
+     */
+    private void writeRead(byte[] seq, int seqOff, int seqLen, byte[] qual, int qualOff, int qualLen) throws IOException {
+        try {
+            if (seqLen > seqQualBuf.length) {
+                seqQualBuf = new byte[Math.max(seqLen, seqQualBuf.length * 2)];
+            }
+            if (header.colorspace) {
+                if (seqLen != qualLen + 1) {
+                    throw new SQZException("Colorspace seq should include one base prefix not in qual.");
+                }
+                if (header.packedSeq) {
+                    writePacked(seq, seqOff, qual, qualOff, seqLen);
+                    return;
+                }
+                SQZ.encodeSeqQualColorspace(seq, seqOff, qual, qualOff, seqLen, seqQualBuf, 0, qualityBins);
+            } else {
+                if (seqLen != qualLen) {
+                    throw new SQZException("Seq and qual should be the same length!");
+                }
+                if (header.packedSeq) {
+                    writePacked(seq, seqOff, qual, qualOff, seqLen);
+                    return;
+                }
+                SQZ.encodeSeqQual(seq, seqOff, qual, qualOff, seqLen, seqQualBuf, 0, qualityBins);
+            }
+            writeSeqQual(seqQualBuf, seqLen);
+        } catch (SQZException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes a length-prefixed byte array. (DataIO.writeByteArray(os, buf, off, len) writes
+     * [len-off] as the length, so it can only be used with off=0).
+     */
+    private void writeByteArray(OutputStream os, byte[] buf, int off, int len) throws IOException {
+        DataIO.writeVarInt(os, len);
+        os.write(buf, off, len);
+    }
+
+    /**
+     * @return the stream to write a column to. For non-columnar files, all values are
+     *         written to the chunk stream in record order.
+     */
+    private OutputStream column(int col) throws IOException {
+        if (header.columnar) {
+            return dcos.getColumn(col);
+        }
+        return dcos;
+    }
+
+    private void writeSeqQual(byte[] buf, int len) throws IOException {
+        if (header.columnar) {
+            DataIO.writeVarInt(dcos.getColumn(SQZ.COLUMN_LENGTHS), len);
+            dcos.getColumn(SQZ.COLUMN_SEQQUAL).write(buf, 0, len);
+        } else {
+            writeByteArray(dcos, buf, 0, len);
+        }
+    }
+
+    /**
+     * Writes a packed sequence from Strings (see writePacked(byte[], ...)).
+     */
+    private void writePacked(String seq, String qual) throws IOException, SQZException {
+        int len = seq.length();
+        if (header.colorspace ? len != qual.length() + 1 : len != qual.length()) {
+            if (header.colorspace) {
+                throw new SQZException("Colorspace seq should include one base prefix not in qual.");
+            }
+            throw new SQZException("Seq and qual should be the same length!");
+        }
+        if (len > seqBuf.length) {
+            seqBuf = new byte[Math.max(len, seqBuf.length * 2)];
+        }
+        if (qual.length() > qualBuf.length) {
+            qualBuf = new byte[Math.max(qual.length(), qualBuf.length * 2)];
+        }
+
+        int highbits = 0;
+        for (int i=0; i<len; i++) {
+            char c = seq.charAt(i);
+            highbits |= c;
+            seqBuf[i] = (byte) c;
+        }
+        for (int i=0; i<qual.length(); i++) {
+            char c = qual.charAt(i);
+            highbits |= c;
+            qualBuf[i] = (byte) c;
+        }
+        if ((highbits & 0xFF00) != 0) {
+            throw new SQZException("Seq and qual values must be ASCII!");
+        }
+        writePacked(seqBuf, 0, qualBuf, 0, len);
+    }
+
+    /**
+     * Writes a read as a 2-bit packed sequence (COLUMN_SEQ), a list of wildcards
+     * (COLUMN_WILDCARDS), and Phred quality values (COLUMN_QUAL).
+     *
+     * Wildcards are written as a count, followed by the position (as the offset from the
+     * last wildcard) and symbol of each.
+     *
+     * @param len - the length of the sequence. For colorspace, qual has [len-1] values.
+     */
+    private void writePacked(byte[] seq, int seqOff, byte[] qual, int qualOff, int len) throws IOException, SQZException {
+        int qualLen = header.colorspace ? Math.max(0, len - 1) : len;
+        int packedLen = SQZ.packedLength(len, header.colorspace);
+        if (Math.max(packedLen, qualLen) > seqQualBuf.length) {
+            seqQualBuf = new byte[Math.max(Math.max(packedLen, qualLen), seqQualBuf.length * 2)];
+        }
+
+        DataIO.writeVarInt(dcos.getColumn(SQZ.COLUMN_LENGTHS), len);
+
+        boolean hasWildcards = SQZ.packSeq(seq, seqOff, len, header.colorspace, seqQualBuf, 0);
+        dcos.getColumn(SQZ.COLUMN_SEQ).write(seqQualBuf, 0, packedLen);
+
+        int count = 0;
+        if (hasWildcards) {
+            if (len > wildcardPos.length) {
+                wildcardPos = new int[Math.max(len, wildcardPos.length * 2)];
+                wildcardSymbols = new byte[wildcardPos.length];
+            }
+            count = SQZ.findWildcards(seq, seqOff, len, header.colorspace, wildcardPos, wildcardSymbols);
+        }
+
+        OutputStream wildcards = dcos.getColumn(SQZ.COLUMN_WILDCARDS);
+        DataIO.writeVarInt(wildcards, count);
+        int last = 0;
+        for (int i=0; i<count; i++) {
+            DataIO.writeVarInt(wildcards, wildcardPos[i] - last);
+            wildcards.write(wildcardSymbols[i]);
+            last = wildcardPos[i];
+        }
+
+        SQZ.packQual(qual, qualOff, qualLen, seqQualBuf, 0, qualityBins);
+        if (count > 0 && qualityBins != null) {
+            // wildcard quality values aren't binned
+            int shift = header.colorspace ? 1 : 0;
+            for (int i=0; i<count; i++) {
+                SQZ.packQual(qual, qualOff + wildcardPos[i] - shift, 1, seqQualBuf, wildcardPos[i] - shift);
+            }
+        }
+        dcos.getColumn(SQZ.COLUMN_QUAL).write(seqQualBuf, 0, qualLen);
+    }
+
+    /**
+     * @return the approximate uncompressed size of a read's seq/qual values
+     */
+    private long rawSize(int seqLen) {
+        if (header.packedSeq) {
+            return SQZ.packedLength(seqLen, header.colorspace) + seqLen;
+        }
+        return seqLen;
+    }
+
+    /**
+     * Starts a new chunk if the current one is full.
+     *
+     * @param size - the approximate uncompressed size of the record
+     */
+    protected void startRecord(long size) throws IOException {
+        if (!started) {
+            if (header.qualBinned && qualityBins == null) {
+                throw new IOException("Quality binning scheme not set! (see setQualityBins())");
+            }
+            started = true;
+        }
+        if (dcos != null) {
+            dcos.startRead(size);
+        }
+    }
+
     public void writeText(String name, String s) throws IOException {
         dcos.writeTextBlock(name, s);
     }
@@ -180,7 +598,18 @@ public class SQZWriter {
         return dcos.getChunkCount();
     }
 
-    public void writeText(String name, FileInputStream fis) throws IOException {
-        dcos.writeTextBlock(name, fis);
+    /**
+     * Writes a text annotation from a stream. Large annotations are written in parts, so
+     * they don't need to fit in memory.
+     */
+    public void writeText(String name, InputStream is) throws IOException {
+        dcos.writeTextBlock(name, is);
+    }
+
+    /**
+     * Writes a binary annotation from a stream (v1.2+).
+     */
+    public void writeBinary(String name, InputStream is) throws IOException {
+        dcos.writeBlock(name, is, true);
     }
 }
\ No newline at end of file
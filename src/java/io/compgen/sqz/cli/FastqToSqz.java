@@ -13,16 +13,30 @@ import io.compgen.ngsutils.fastq.Fastq;
 import io.compgen.ngsutils.fastq.FastqRead;
 import io.compgen.ngsutils.fastq.FastqReader;
 import io.compgen.sqz.SQZ;
+import io.compgen.sqz.SQZChecksum;
+import io.compgen.sqz.SQZCodec;
+import io.compgen.sqz.SQZCodecs;
+import io.compgen.sqz.SQZDeflateCodec;
+import io.compgen.sqz.SQZEncryption;
+import io.compgen.sqz.SQZException;
+import io.compgen.sqz.SQZFastqParser;
+import io.compgen.sqz.SQZFastqReadAhead;
+import io.compgen.sqz.SQZFastqRecord;
+import io.compgen.sqz.SQZKey;
+import io.compgen.sqz.SQZQualityBins;
 import io.compgen.sqz.SQZWriter;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Deflater;
 
 @Command(name = "convert", desc = "Converts a FASTQ file (or two paired files) into a SQZ file", category="sqz", experimental=true)
 public class FastqToSqz extends AbstractCommand {
@@ -30,31 +44,43 @@ public class FastqToSqz extends AbstractCommand {
         public final String name;
         public final String val;
         public final File file;
-        public AnnotationValue(String name, File f) {
+        public final boolean binary;
+        public AnnotationValue(String name, File f, boolean binary) {
             this.name = name;
             this.file = f;
             this.val = null;
+            this.binary = binary;
         }
 
         public AnnotationValue(String name, String val) {
             this.name = name;
             this.file = null;
             this.val = val;
+            this.binary = false;
         }
     }
 
     private FastqReader[] readers = null;
+    private SQZFastqParser[] parsers = null;
 	private String outputFilename = null;
     private String password = null;
     private String passwordFile = null;
+    private String keyFile = null;
+    private SQZKey key = null;
 
     private boolean useAES256 = false;
+    private boolean useGCM = false;
 	private boolean force = false;
     private boolean comments = false;
     private boolean colorspace = false;
+    private boolean columnar = false;
+    private boolean packedSeq = false;
+    private boolean tokenizedNames = false;
+    private String qualBins = null;
+    private SQZQualityBins qualityBins = null;
 
-    private boolean compressDeflate = true;
-    private boolean compressBzip2 = false;
+    private String codecName = "deflate";
+    private SQZCodec codec = null;
 	private boolean interleaved = false;
 	
 	private List<String> inputFilenames = null;
@@ -62,15 +88,52 @@ public class FastqToSqz extends AbstractCommand {
 	private String curAnnName = null;
     private List<AnnotationValue> annValues = new ArrayList<AnnotationValue>();
 
-	private int chunkSize = 10000;
+	private static final long MIN_CHUNK_BYTES = 64 * 1024;
+
+	private int chunkSize = 0;
+	private String chunkBytesStr = null;
+	private long chunkBytes = SQZWriter.DEFAULT_CHUNK_BYTES;
+	private int threads = 1;
+	private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+	private String deflateStrategyStr = null;
+	private int deflateStrategy = Deflater.DEFAULT_STRATEGY;
+	private int dictReads = 0;
+	private String checksumName = null;
+	private int checksumType = SQZChecksum.CHECKSUM_SHA1;
+	private boolean digestChunks = false;
 	
     @UnnamedArg(name="FILE1 {FILE2}")
     public void setFilenames(List<String> files) {
         if (files.size() > 0) {
             try {
-                this.readers = new FastqReader[files.size()];
+                BufferedInputStream[] ins = new BufferedInputStream[files.size()];
+                FileChannel[] channels = new FileChannel[files.size()];
+                boolean allFastq = true;
                 for (int i=0; i<files.size(); i++) {
-                    this.readers[i] = Fastq.open(files.get(i));
+                    if (files.get(i).equals("-")) {
+                        ins[i] = new BufferedInputStream(System.in, 64 * 1024);
+                    } else {
+                        FileInputStream fis = new FileInputStream(files.get(i));
+                        ins[i] = new BufferedInputStream(fis, 64 * 1024);
+                        channels[i] = fis.getChannel();
+                    }
+                    if (!SQZFastqParser.isFastq(ins[i])) {
+                        allFastq = false;
+                    }
+                }
+
+                // FASTQ files (plain, gzip, bzip2) are parsed directly. Other formats
+                // (BAM) are read using FastqReaders.
+                if (allFastq) {
+                    this.parsers = new SQZFastqParser[files.size()];
+                    for (int i=0; i<files.size(); i++) {
+                        this.parsers[i] = SQZFastqParser.open(ins[i]);
+                    }
+                } else {
+                    this.readers = new FastqReader[files.size()];
+                    for (int i=0; i<files.size(); i++) {
+                        this.readers[i] = Fastq.open(ins[i], null, channels[i], files.get(i).equals("-") ? "<stdin>": new File(files.get(i)).getName());
+                    }
                 }
             } catch(IOException e) {
                 System.err.println(e.getMessage());
@@ -114,7 +177,22 @@ public class FastqToSqz extends AbstractCommand {
             if (!f.exists()) {
                 throw new CommandArgumentException("The text annotation file: "+ textFilename+ " does not exist!");
             }
-            this.annValues.add(new AnnotationValue(curAnnName, f));
+            this.annValues.add(new AnnotationValue(curAnnName, f, false));
+            curAnnName = null;
+        }
+    }
+
+    @Option(desc = "Binary annotation filename (default:none)", name = "ann-bin-file")
+    public void setBinaryFilename(String binFilename) throws CommandArgumentException {
+        if (binFilename != null) {
+            if (curAnnName == null) {
+                curAnnName = "user";
+            }
+            File f = new File(binFilename);
+            if (!f.exists()) {
+                throw new CommandArgumentException("The binary annotation file: "+ binFilename+ " does not exist!");
+            }
+            this.annValues.add(new AnnotationValue(curAnnName, f, true));
             curAnnName = null;
         }
     }
@@ -128,17 +206,65 @@ public class FastqToSqz extends AbstractCommand {
     public void setPasswordFile(String passwordFile) {
         this.passwordFile = passwordFile;
     }
+
+    @Option(desc = "File containing an encryption key (hex or raw bytes, ex: openssl rand -hex 32). Faster than a password.", name = "key-file")
+    public void setKeyFile(String keyFile) {
+        this.keyFile = keyFile;
+    }
     
-    @Option(desc = "Number of reads per compression/encryption block (default: 10000)", name = "block-reads", defaultValue="10000")
-    public void setChunkSize(int val) {
+    @Option(desc = "Maximum number of reads per compression/encryption block; blocks are still limited by --block-size (default: no read limit)", name = "block-reads")
+    public void setChunkSize(int val) throws CommandArgumentException {
+        if (val < 0) {
+            throw new CommandArgumentException("Invalid number of block reads: "+val);
+        }
         this.chunkSize = val;
     }
 
+    @Option(desc = "Target uncompressed size of each compression/encryption block, ex: 512K, 4M; between 64K and 2047M (default: 4M)", name = "block-size")
+    public void setChunkBytes(String val) {
+        this.chunkBytesStr = val;
+    }
+
+    @Option(desc = "Deflate compression level, 1 (fastest) to 9 (smallest) (default: 6)", name = "deflate-level")
+    public void setDeflateLevel(int val) {
+        this.deflateLevel = val;
+    }
+
+    @Option(desc = "Deflate strategy: default, filtered, huffman (default: default)", name = "deflate-strategy")
+    public void setDeflateStrategy(String val) {
+        this.deflateStrategyStr = val;
+    }
+
+    @Option(desc = "Train a preset deflate dictionary on the first N reads (helps with small blocks)", name = "deflate-dict")
+    public void setDictReads(int val) {
+        this.dictReads = val;
+    }
+
+    @Option(desc = "Block checksum: sha1, crc32c, xxhash64, sha256 (default: sha1)", name = "checksum")
+    public void setChecksum(String val) {
+        this.checksumName = val;
+    }
+
+    @Option(desc = "The file SHA-1 only covers block headers/checksums, not the block data (faster to verify)", name = "digest-chunks")
+    public void setDigestChunks(boolean val) {
+        this.digestChunks = val;
+    }
+
+    @Option(desc = "Number of threads to use for compression/encryption (default: 1)", name = "threads", defaultValue="1")
+    public void setThreads(int val) {
+        this.threads = val;
+    }
+
     @Option(desc = "Encrypt with AES-256 bit (may require special Java security policy) (default: AES-128 bit)", name = "aes-256")
     public void setAES256(boolean val) {
         this.useAES256 = val;
     }
 
+    @Option(desc = "Encrypt with AES-GCM (authenticated, much faster)", name = "gcm")
+    public void setGCM(boolean val) {
+        this.useGCM = val;
+    }
+
 
     
     @Option(desc = "Input file is in colorspace", name = "colorspace")
@@ -146,6 +272,26 @@ public class FastqToSqz extends AbstractCommand {
         this.colorspace = val;
     }
 
+    @Option(desc = "Store names, comments, and sequences in separately compressed columns", name = "columnar")
+    public void setColumnar(boolean val) {
+        this.columnar = val;
+    }
+
+    @Option(desc = "Store sequences 2-bit packed, with quality values in a separate column (implies --columnar)", name = "packed-seq")
+    public void setPackedSeq(boolean val) {
+        this.packedSeq = val;
+    }
+
+    @Option(desc = "Store read names as tokens (delta-coded against the previous name)", name = "tokenize-names")
+    public void setTokenizedNames(boolean val) {
+        this.tokenizedNames = val;
+    }
+
+    @Option(desc = "Bin quality values (lossy): illumina8, or Phred ranges, ex: 2-9:6,10-19:15,20-93:30", name = "qual-bins")
+    public void setQualBins(String val) {
+        this.qualBins = val;
+    }
+
     @Option(desc = "Force overwriting output file", name = "force")
     public void setForce(boolean val) {
         this.force = val;
@@ -153,20 +299,27 @@ public class FastqToSqz extends AbstractCommand {
 
     @Option(desc = "Compress file using deflate algorithm (default)", name = "deflate")
     public void setCompressDeflate(boolean val) {
-        this.compressDeflate = val;
-        this.compressBzip2 = !val;
+        this.codecName = "deflate";
     }
     
     @Option(desc = "Compress file using bzip2 algorithm (smaller, slower)", name = "bzip2")
     public void setCompressBzip2(boolean val) {
-        this.compressBzip2 = val;
-        this.compressDeflate = !val;
+        this.codecName = "bzip2";
+    }
+    
+    @Option(desc = "Compress file using a fast LZ algorithm (larger, much faster to read)", name = "lz")
+    public void setCompressLZ(boolean val) {
+        this.codecName = "lz";
+    }
+    
+    @Option(desc = "Compress file using this codec (deflate, bzip2, lz, none, or a plugin codec)", name = "codec")
+    public void setCodec(String val) {
+        this.codecName = val;
     }
     
     @Option(desc = "Don't compress the SQZ file", name = "no-compress")
     public void setNoCompress(boolean val) {
-        this.compressDeflate = !val;
-        this.compressBzip2 = !val;
+        this.codecName = "none";
     }
     
     @Option(desc = "Input FASTQ is interleaved", name = "interleaved")
@@ -181,16 +334,71 @@ public class FastqToSqz extends AbstractCommand {
     
 	@Exec
 	public void exec() throws IOException, GeneralSecurityException, CommandArgumentException {
-	    if (readers == null) {
+	    if (readers == null && parsers == null) {
             throw new CommandArgumentException("You must supply one or two FASTQ files to convert.");
 	    }
-        if (interleaved && readers.length > 1) {
+        if (interleaved && inputFilenames.size() > 1) {
             throw new CommandArgumentException("You may not supply more than one FASTQ file in interleaved mode.");
         }
 
         if (password == null && passwordFile != null) {
             password = StringUtils.strip(new BufferedReader(new FileReader(passwordFile)).readLine());
         }
+        if (keyFile != null && password != null) {
+            throw new CommandArgumentException("You can't use both a password and a key file.");
+        }
+        key = (keyFile != null) ? SQZKey.readKeyFile(keyFile) : SQZKey.fromPassword(password);
+
+        if (chunkBytesStr != null) {
+            chunkBytes = parseSize(chunkBytesStr);
+        }
+
+        codec = SQZCodecs.get(codecName);
+        if (codec == null) {
+            throw new CommandArgumentException("Unknown compression codec: "+codecName);
+        }
+
+        if (deflateLevel != Deflater.DEFAULT_COMPRESSION && (deflateLevel < 0 || deflateLevel > 9)) {
+            throw new CommandArgumentException("Invalid deflate level: "+deflateLevel+" (valid: 0-9)");
+        }
+        if (deflateStrategyStr != null) {
+            try {
+                deflateStrategy = SQZDeflateCodec.parseStrategy(deflateStrategyStr);
+            } catch (SQZException e) {
+                throw new CommandArgumentException(e.getMessage());
+            }
+        }
+        if ((deflateLevel != Deflater.DEFAULT_COMPRESSION || deflateStrategyStr != null) && codec.getId() != SQZ.COMPRESS_DEFLATE) {
+            throw new CommandArgumentException("--deflate-level and --deflate-strategy can only be used with deflate compression.");
+        }
+        if (dictReads < 0) {
+            throw new CommandArgumentException("Invalid number of reads for --deflate-dict: "+dictReads);
+        }
+        if (dictReads > 0 && (codec.getId() != SQZ.COMPRESS_DEFLATE || outputFilename.equals("-"))) {
+            throw new CommandArgumentException("--deflate-dict can only be used with deflate compression (and not with stdout).");
+        }
+
+        if (useGCM && key == null) {
+            throw new CommandArgumentException("--gcm requires a password or key file.");
+        }
+        if (useGCM && checksumName != null) {
+            throw new CommandArgumentException("AES-GCM blocks are validated by their GCM tag, so --checksum can't be used with --gcm.");
+        }
+        if (checksumName != null) {
+            try {
+                checksumType = SQZChecksum.parse(checksumName);
+            } catch (SQZException e) {
+                throw new CommandArgumentException(e.getMessage());
+            }
+        }
+
+        if (qualBins != null) {
+            try {
+                qualityBins = SQZQualityBins.parse(qualBins);
+            } catch (SQZException e) {
+                throw new CommandArgumentException(e.getMessage());
+            }
+        }
         
         if (verbose) {
             for (String fname: inputFilenames) {
@@ -202,8 +410,24 @@ public class FastqToSqz extends AbstractCommand {
             if (colorspace) {
                 System.err.println("Input in colorspace");
             }
-            if (readers.length > 1) {
-                System.err.println("Paired inputs ("+readers.length+")");
+            if (columnar) {
+                System.err.println("Columnar chunks");
+            }
+            if (packedSeq) {
+                System.err.println("Packed sequences");
+            }
+            if (tokenizedNames) {
+                System.err.println("Tokenized names");
+            }
+            System.err.println("Block checksum: "+SQZChecksum.getName(checksumType) + (digestChunks ? " (file SHA-1 of block checksums)": ""));
+            if (dictReads > 0) {
+                System.err.println("Deflate dictionary: first "+dictReads+" reads");
+            }
+            if (qualityBins != null) {
+                System.err.println("Quality bins: "+qualityBins.name+" ("+qualityBins.getRanges()+")");
+            }
+            if (inputFilenames.size() > 1) {
+                System.err.println("Paired inputs ("+inputFilenames.size()+")");
             } else if (interleaved) {
                 System.err.println("Interleaved input file");
             }
@@ -216,6 +440,41 @@ public class FastqToSqz extends AbstractCommand {
         if (colorspace) {
             flags |= SQZ.COLORSPACE;
         }
+        if (columnar) {
+            flags |= SQZ.COLUMNAR;
+        }
+        if (packedSeq) {
+            flags |= SQZ.PACKED_SEQ | SQZ.COLUMNAR;
+        }
+        if (qualityBins != null) {
+            flags |= SQZ.QUAL_BINNED;
+        }
+        if (tokenizedNames) {
+            flags |= SQZ.TOKENIZED_NAMES;
+        }
+        if (dictReads > 0) {
+            flags |= SQZ.DEFLATE_DICT;
+        }
+        if (digestChunks) {
+            flags |= SQZ.DIGEST_CHUNKS;
+        }
+
+        if (parsers != null) {
+            SQZWriter out;
+            if (interleaved) {
+                out = writeInterleaved(flags);
+            } else {
+                out = writePaired(flags);
+            }
+            out.close();
+            if (verbose) {
+                System.err.println("Data chunks: "+out.getChunkCount());
+            }
+            for (SQZFastqParser parser: parsers) {
+                parser.close();
+            }
+            return;
+        }
 
         if (interleaved) {
             SQZWriter out = null;
@@ -251,22 +510,6 @@ public class FastqToSqz extends AbstractCommand {
                 buffer.clear();
             }
             
-            if (annValues.size()>0) {
-                for (AnnotationValue ann: annValues) {
-                    if (ann.val!=null) {
-                        out.writeText(ann.name, ann.val);
-                        if (verbose) {
-                            System.err.println("Adding text annotation: [" + ann.name+"] " + ann.val);
-                        }
-                    } else if (ann.file!=null) {
-                        out.writeText(ann.name, new FileInputStream(ann.file));
-                        if (verbose) {
-                            System.err.println("Adding text annotation:  [" + ann.name+"] " + ann.file.getName());
-                        }
-                    }                        
-                }
-            }
-            
             out.close();
             if (verbose) {
                 System.err.println("Data chunks: "+out.getChunkCount());
@@ -290,21 +533,6 @@ public class FastqToSqz extends AbstractCommand {
                     }
                 }
             });
-            if (annValues.size()>0) {
-                for (AnnotationValue ann: annValues) {
-                    if (ann.val!=null) {
-                        out.writeText(ann.name, ann.val);
-                        if (verbose) {
-                            System.err.println("Adding text annotation: [" + ann.name+"] " + ann.val);
-                        }
-                    } else if (ann.file!=null) {
-                        out.writeText(ann.name, new FileInputStream(ann.file));
-                        if (verbose) {
-                            System.err.println("Adding text annotation:  [" + ann.name+"] " + ann.file.getName());
-                        }
-                    }                        
-                }
-            }
             out.close();
             if (verbose) {
                 System.err.println("Data blocks: "+out.getChunkCount());
@@ -315,44 +543,189 @@ public class FastqToSqz extends AbstractCommand {
         }
 	}
 
+	/**
+	 * Reads from an interleaved FASTQ file (parsed directly). Consecutive reads with the same name
+	 * are written as one record.
+	 */
+	private SQZWriter writeInterleaved(int flags) throws IOException, GeneralSecurityException, CommandArgumentException {
+	    SQZFastqParser parser = parsers[0];
+	    SQZWriter out = null;
+
+	    List<SQZFastqRecord> buffer = new ArrayList<SQZFastqRecord>();
+	    List<SQZFastqRecord> spare = new ArrayList<SQZFastqRecord>();
+	    SQZFastqRecord[] record = null;
+
+	    SQZFastqRecord read = new SQZFastqRecord();
+	    while (parser.next(read)) {
+	        if (buffer.size() > 0 && !read.sameName(buffer.get(0))) {
+	            if (out == null) {
+	                out = buildSQZ(flags, buffer.size());
+	            }
+	            if (record == null || record.length != buffer.size()) {
+	                record = new SQZFastqRecord[buffer.size()];
+	            }
+	            out.writeRecords(buffer.toArray(record));
+	            parser.release(1);
+	            spare.addAll(buffer);
+	            buffer.clear();
+	        }
+	        buffer.add(read);
+	        read = spare.size() > 0 ? spare.remove(spare.size() - 1) : new SQZFastqRecord();
+	    }
+	    if (buffer.size() > 0) {
+	        if (out == null) {
+	            out = buildSQZ(flags, buffer.size());
+	        }
+	        out.writeRecords(buffer.toArray(new SQZFastqRecord[buffer.size()]));
+	        parser.release();
+	    }
+	    return out;
+	}
+
+	/**
+	 * Reads from one or more FASTQ files (parsed directly) in parallel. The n-th read from each
+	 * file are written as one record. Each file is read (and decompressed) on its own thread
+	 * (see SQZFastqReadAhead), so writing the records is the only serial step.
+	 */
+	private SQZWriter writePaired(int flags) throws IOException, GeneralSecurityException, CommandArgumentException {
+	    SQZWriter out = buildSQZ(flags, parsers.length);
+
+	    SQZFastqReadAhead[] inputs = new SQZFastqReadAhead[parsers.length];
+	    SQZFastqRecord[] record = new SQZFastqRecord[parsers.length];
+	    for (int i=0; i<record.length; i++) {
+	        inputs[i] = new SQZFastqReadAhead(parsers[i], SQZFastqReadAhead.DEFAULT_QUEUE_DEPTH, "sqz-fastq-reader-"+(i+1));
+	        record[i] = new SQZFastqRecord();
+	    }
+
+	    try {
+	        long count = 0;
+	        while (true) {
+	            for (int i=0; i<inputs.length; i++) {
+	                if (!inputs[i].next(record[i])) {
+	                    return out;
+	                }
+	            }
+	            count++;
+	            if (verbose && count % 100000 == 0) {
+	                System.err.println("Read: " + count);
+	            }
+	            out.writeRecords(record);
+	        }
+	    } finally {
+	        for (SQZFastqReadAhead input: inputs) {
+	            input.close();
+	        }
+	    }
+	}
+
+	private void writeAnnotations(SQZWriter out) throws IOException {
+	    for (AnnotationValue ann: annValues) {
+	        if (ann.val!=null) {
+	            out.writeText(ann.name, ann.val);
+	            if (verbose) {
+	                System.err.println("Adding text annotation: [" + ann.name+"] " + ann.val);
+	            }
+	        } else if (ann.file!=null && ann.binary) {
+	            out.writeBinary(ann.name, new FileInputStream(ann.file));
+	            if (verbose) {
+	                System.err.println("Adding binary annotation:  [" + ann.name+"] " + ann.file.getName());
+	            }
+	        } else if (ann.file!=null) {
+	            out.writeText(ann.name, new FileInputStream(ann.file));
+	            if (verbose) {
+	                System.err.println("Adding text annotation:  [" + ann.name+"] " + ann.file.getName());
+	            }
+	        }
+	    }
+	}
+
+	/**
+	 * Parses a block size in bytes, with an optional K, M, or G suffix. Blocks are
+	 * buffered in memory before they are written, so the size must be between
+	 * MIN_CHUNK_BYTES and Integer.MAX_VALUE.
+	 */
+	private static long parseSize(String val) throws CommandArgumentException {
+	    String s = val.trim().toUpperCase();
+	    long mult = 1;
+	    if (s.endsWith("K")) {
+	        mult = 1024;
+	    } else if (s.endsWith("M")) {
+	        mult = 1024 * 1024;
+	    } else if (s.endsWith("G")) {
+	        mult = 1024 * 1024 * 1024;
+	    }
+	    if (mult > 1) {
+	        s = s.substring(0, s.length() - 1);
+	    }
+	    try {
+	        long size = Long.parseLong(s);
+	        if (size > Integer.MAX_VALUE / mult || size * mult < MIN_CHUNK_BYTES) {
+	            throw new CommandArgumentException("Invalid block size: "+val+" (must be between 64K and 2047M)");
+	        }
+	        return size * mult;
+	    } catch (NumberFormatException e) {
+	        throw new CommandArgumentException("Invalid block size: "+val);
+	    }
+	}
+
+	/**
+	 * @return the encryption type (SQZEncryption), or null if there isn't a password/key
+	 */
+	private String getEncryption() {
+	    if (key == null) {
+	        return null;
+	    }
+	    if (useGCM) {
+	        return useAES256 ? SQZEncryption.AES_256_GCM : SQZEncryption.AES_128_GCM;
+	    }
+	    return useAES256 ? SQZEncryption.AES_256 : SQZEncryption.AES_128;
+	}
+
 	private SQZWriter buildSQZ(int flags, int readCount) throws IOException, GeneralSecurityException, CommandArgumentException {
 	    SQZWriter out=null;
 	    
         if (outputFilename.equals("-")) {
-            out = new SQZWriter(System.out, flags, readCount, SQZ.COMPRESS_NONE, password == null ? null: (useAES256 ? "AES-256": "AES-128"), password);
+            out = new SQZWriter(System.out, flags, readCount, SQZ.COMPRESS_NONE, checksumType, getEncryption(), key);
             if (verbose) {
                 System.err.println("Output: stdout (uncompressed)");
-                System.err.println("Encryption: " + (password == null ? "no": (useAES256 ? "AES-256": "AES-128")));
+                System.err.println("Encryption: " + (key == null ? "no": getEncryption() + (key.isKeyFile() ? " (key file)" : "")));
             }
         } else {
             if (new File(outputFilename).exists() && !force) {
                 throw new CommandArgumentException("The output file: "+outputFilename+" exists! Use --force to overwrite.");
             }
-            int compressionType;
-            
-            if (compressDeflate) {
-                compressionType = SQZ.COMPRESS_DEFLATE;
-            } else if (compressBzip2) {
-                compressionType = SQZ.COMPRESS_BZIP2;
-            } else {
-                compressionType = SQZ.COMPRESS_NONE;
-            }
-            out = new SQZWriter(outputFilename, flags, readCount, compressionType, password == null ? null: (useAES256 ? "AES-256": "AES-128"), password);
+            out = new SQZWriter(outputFilename, flags, readCount, codec.getId(), checksumType, getEncryption(), key);
 
             if (verbose) {
                 System.err.println("Output: "+outputFilename);
-                System.err.println("Encryption: " + (password == null ? "no": (useAES256 ? "AES-256": "AES-128")));
-                System.err.println("Compression: " +compressionType);
+                System.err.println("Encryption: " + (key == null ? "no": getEncryption() + (key.isKeyFile() ? " (key file)" : "")));
+                System.err.println("Compression: " +codec.getName());
             }
         }
         
         out.setChunkSize(chunkSize);
+        out.setChunkBytes(chunkBytes);
+        out.setThreads(threads);
+        out.setDeflateOptions(deflateLevel, deflateStrategy);
+        if (dictReads > 0) {
+            out.setDictionaryReads(dictReads);
+        }
         
         if (verbose) {
-            System.err.println("Reads per block: "+chunkSize);
+            System.err.println("Block size: "+chunkBytes);
+            if (chunkSize > 0) {
+                System.err.println("Max reads per block: "+chunkSize);
+            }
+            System.err.println("Threads: "+threads);
         }
 
         out.writeText("SQZ", "{ \"version\": \"" + NGSUtils.getVersion()+ "\", \"cmdline\":\"" + NGSUtils.getArgs()+"\"}");
+        // text blocks go first, so they can be found without reading the data
+        writeAnnotations(out);
+
+        if (qualityBins != null) {
+            out.setQualityBins(qualityBins);
+        }
         
         return out;
 
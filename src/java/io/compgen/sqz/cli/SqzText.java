@@ -7,11 +7,13 @@ import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractCommand;
 import io.compgen.common.StringUtils;
+import io.compgen.sqz.SQZKey;
 import io.compgen.sqz.SQZReader;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
 
 @Command(name="text", desc="Extract text annotation from SQZ file.", category="sqz", experimental=true)
@@ -20,6 +22,7 @@ public class SqzText extends AbstractCommand {
     private String filename = null;
     private String password = null;
     private String passwordFile = null;
+    private String keyFile = null;
     private boolean listOnly = false;
 
     private String textName = null;
@@ -49,6 +52,11 @@ public class SqzText extends AbstractCommand {
         this.passwordFile = passwordFile;
     }
 
+    @Option(desc = "File containing the decryption key (see: convert --key-file)", name = "key-file")
+    public void setKeyFile(String keyFile) {
+        this.keyFile = keyFile;
+    }
+
     @Exec
     public void exec() throws CommandArgumentException, IOException, GeneralSecurityException  {        
         if (filename == null) {
@@ -57,42 +65,74 @@ public class SqzText extends AbstractCommand {
         if (password == null && passwordFile != null) {
             password = StringUtils.strip(new BufferedReader(new FileReader(passwordFile)).readLine());
         }
+        if (keyFile != null && password != null) {
+            throw new CommandArgumentException("You can't use both a password and a key file.");
+        }
+        SQZKey key = (keyFile != null) ? SQZKey.readKeyFile(keyFile) : SQZKey.fromPassword(password);
 
         SQZReader reader;
         if (filename.equals("-")) {
-            reader = SQZReader.open(System.in, false, password, verbose);
+            reader = SQZReader.open(System.in, false, key, verbose);
             if (verbose) {
                 System.err.println("Input: stdin");
             }
         } else {
-            reader = SQZReader.open(filename, false, password, verbose);
+            reader = SQZReader.open(filename, false, key, verbose);
             if (verbose) {
                 System.err.println("Input: " + filename);
             }
         }
         
         reader.fetchText();
-        reader.close();
         
         if (reader.getException() != null) {
+            reader.close();
             System.err.println(reader.getException().getMessage());
             System.err.println((filename.equals("-") ? "stdin": filename) + " is not valid!");
             System.exit(1);
         }
 
-        if (reader.getTextNames().size() > 0) {
-            if (listOnly) {
-                for (String name: reader.getTextNames()) {
-                    System.out.println(name);
-                }
-            } else if (textName == null) {
-                for (String name: reader.getTextNames()) {
-                    System.out.println("["+name+"]");
-                    System.out.println(reader.getText(name));
+        // large annotations are streamed from the file, so the reader is closed at the end
+        try {
+            if (reader.getTextNames().size() > 0) {
+                if (listOnly) {
+                    for (String name: reader.getTextNames()) {
+                        System.out.println(name);
+                    }
+                } else if (textName == null) {
+                    for (String name: reader.getTextNames()) {
+                        if (reader.isBinary(name)) {
+                            System.out.println("["+name+"] (binary)");
+                        } else {
+                            System.out.println("["+name+"]");
+                            writeText(reader, name);
+                        }
+                    }
+                } else if (reader.getTextNames().contains(textName)) {
+                    writeText(reader, textName);
+                } else {
+                    System.out.println(reader.getText(textName));
                 }
-            } else {
-                System.out.println(reader.getText(textName));
             }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copies an annotation to stdout (with a trailing newline for text)
+     */
+    private void writeText(SQZReader reader, String name) throws IOException {
+        InputStream is = reader.openText(name);
+        byte[] buf = new byte[64*1024];
+        int count;
+        while ((count = is.read(buf)) > -1) {
+            System.out.write(buf, 0, count);
+        }
+        is.close();
+        if (!reader.isBinary(name)) {
+            System.out.println();
         }
+        System.out.flush();
     }    
 }
@@ -7,7 +7,8 @@ import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractCommand;
 import io.compgen.common.StringUtils;
-import io.compgen.ngsutils.fastq.FastqRead;
+import io.compgen.sqz.SQZGzipOutputStream;
+import io.compgen.sqz.SQZKey;
 import io.compgen.sqz.SQZReader;
 
 import java.io.BufferedOutputStream;
@@ -18,7 +19,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 @Command(name="export", desc="Export the read sequences from an SQZ file to FASTQ format", category="sqz", experimental=true)
 public class SqzToFastq extends AbstractCommand {
@@ -27,6 +28,12 @@ public class SqzToFastq extends AbstractCommand {
     private String outTemplate=null;
     private String password = null;
     private String passwordFile = null;
+    private String keyFile = null;
+    private int threads = 1;
+    private int gzLevel = Deflater.DEFAULT_COMPRESSION;
+    private int gzThreads = -1;
+    private long start = 0;
+    private long count = -1;
 
     private boolean split = false;
     private boolean compress = false;
@@ -55,17 +62,53 @@ public class SqzToFastq extends AbstractCommand {
     public void setPasswordFile(String passwordFile) {
         this.passwordFile = passwordFile;
     }
+
+    @Option(desc = "File containing the decryption key (see: convert --key-file)", name = "key-file")
+    public void setKeyFile(String keyFile) {
+        this.keyFile = keyFile;
+    }
+
+    @Option(desc = "Number of threads to use for decompression/decryption (default: 1)", name = "threads", defaultValue="1")
+    public void setThreads(int val) {
+        this.threads = val;
+    }
     
+    @Option(desc = "Start exporting at this record (zero-based, default: 0)", name = "start", defaultValue="0")
+    public void setStart(long val) {
+        this.start = val;
+    }
+
+    @Option(desc = "Number of records to export (default: all)", name = "count")
+    public void setCount(long val) {
+        this.count = val;
+    }
+
     @Option(desc = "Force overwriting output", name="force")
     public void setForce(boolean val) {
         this.force = val;
     }
 
-    @Option(desc = "Compress output", name="gz")
+    @Option(desc = "Compress output (block gzip)", name="gz")
     public void setCompress(boolean val) {
         this.compress = val;
     }
 
+    @Option(desc = "Gzip compression level (1-9, default: 6)", name="gz-level")
+    public void setGzLevel(int val) throws CommandArgumentException {
+        if (val < 1 || val > 9) {
+            throw new CommandArgumentException("--gz-level must be between 1 and 9!");
+        }
+        this.gzLevel = val;
+    }
+
+    @Option(desc = "Number of threads to use for gzip compression (default: same as --threads)", name="gz-threads")
+    public void setGzThreads(int val) throws CommandArgumentException {
+        if (val < 1) {
+            throw new CommandArgumentException("--gz-threads must be >= 1!");
+        }
+        this.gzThreads = val;
+    }
+
     @Option(desc = "Split output into paired files (default: interleaved)", name="split")
     public void setSplit(boolean val) {
         this.split = val;
@@ -102,27 +145,40 @@ public class SqzToFastq extends AbstractCommand {
         if (split && (first || second)) {
             throw new CommandArgumentException("You can not use --split and --first or --second at the same time!");
         }
+
+        if (start < 0) {
+            throw new CommandArgumentException("--start must be >= 0!");
+        }
         try{
             if (password == null && passwordFile != null) {
                     password = StringUtils.strip(new BufferedReader(new FileReader(passwordFile)).readLine());
             }
+            if (keyFile != null && password != null) {
+                throw new CommandArgumentException("You can't use both a password and a key file.");
+            }
+            SQZKey key = (keyFile != null) ? SQZKey.readKeyFile(keyFile) : SQZKey.fromPassword(password);
             
             SQZReader reader;
             if (filename.equals("-")) {
-                reader = SQZReader.open(System.in, ignoreComments, password, verbose);
+                reader = SQZReader.open(System.in, ignoreComments, key, verbose);
                 if (verbose) {
                     System.err.println("Input: stdin");
                 }
             } else {
-                reader = SQZReader.open(filename, ignoreComments, password, verbose);
+                reader = SQZReader.open(filename, ignoreComments, key, verbose);
                 if (verbose) {
                     System.err.println("Input: " + filename);
                 }
             }
+            reader.setThreads(threads);
+            if (start > 0 && !reader.seek(start)) {
+                // past the end of the file
+                count = 0;
+            }
     
             OutputStream[] outs;
             if (outTemplate==null || outTemplate.equals("-")) {
-                outs = new OutputStream[] { new BufferedOutputStream(System.out) };
+                outs = new OutputStream[] { openOutput(System.out) };
                 if (verbose) {
                     System.err.println("Output: stdout");
                 }
@@ -148,11 +204,7 @@ public class SqzToFastq extends AbstractCommand {
                 if (verbose) {
                     System.err.println("Output: " + outFilename);
                 }
-                if (compress) {
-                    outs = new OutputStream[] { new GZIPOutputStream(new FileOutputStream(outFilename)) };
-                } else {
-                    outs = new OutputStream[] { new BufferedOutputStream(new FileOutputStream(outFilename)) };
-                }
+                outs = new OutputStream[] { openOutput(new FileOutputStream(outFilename)) };
             } else if (outTemplate != null && split) {
                 String[] outFilenames;
                 if (compress) {
@@ -171,13 +223,8 @@ public class SqzToFastq extends AbstractCommand {
                 }
     
                 outs = new OutputStream[2];
-                if (compress) {
-                    outs[0] = new GZIPOutputStream(new FileOutputStream(outFilenames[0]));
-                    outs[1] = new GZIPOutputStream(new FileOutputStream(outFilenames[1]));                
-                } else {
-                    outs[0] = new BufferedOutputStream(new FileOutputStream(outFilenames[0]));
-                    outs[1] = new BufferedOutputStream(new FileOutputStream(outFilenames[1]));                
-                }
+                outs[0] = openOutput(new FileOutputStream(outFilenames[0]));
+                outs[1] = openOutput(new FileOutputStream(outFilenames[1]));
             } else {
                 String outFilename;
                 if (compress) {
@@ -192,29 +239,22 @@ public class SqzToFastq extends AbstractCommand {
                 if (verbose) {
                     System.err.println("Output: " + outFilename);
                 }
-                if (compress) {
-                    outs = new OutputStream[] { new GZIPOutputStream(new FileOutputStream(outFilename)) };
-                } else {
-                    outs = new OutputStream[] { new BufferedOutputStream(new FileOutputStream(outFilename)) };
-                }
+                outs = new OutputStream[] { openOutput(new FileOutputStream(outFilename)) };
             }
     
-            String lastName = null;
-    
-            for (FastqRead read: reader) {
-                if (split && read.getName().equals(lastName)) {
-                    read.write(outs[1]);
-                } else {
-                    if (
-                            (first && !read.getName().equals(lastName)) || 
-                            (second && read.getName().equals(lastName)) || 
-                            (!first && !second)
-                        ) {
-                        read.write(outs[0]);
-                    }
+            // the output for each read in a record
+            int seqCount = reader.getHeader().seqCount;
+            OutputStream[] readOuts = new OutputStream[seqCount];
+            for (int i=0; i<seqCount; i++) {
+                if (split) {
+                    readOuts[i] = (i == 0) ? outs[0] : outs[1];
+                } else if ((first && i == 0) || (second && i > 0) || (!first && !second)) {
+                    readOuts[i] = outs[0];
                 }
-                lastName = read.getName();
             }
+
+            reader.writeFastq(readOuts, count);
+
             for (OutputStream out: outs) {
                 out.close();
             }
@@ -226,5 +266,16 @@ public class SqzToFastq extends AbstractCommand {
             }
             System.exit(1);
         }
-    }    
+    }
+
+    /**
+     * Output is compressed as block gzip, so that it can be compressed in parallel. Each
+     * output gets its own compression threads.
+     */
+    private OutputStream openOutput(OutputStream out) throws IOException {
+        if (compress) {
+            return new SQZGzipOutputStream(new BufferedOutputStream(out), gzLevel, (gzThreads > 0) ? gzThreads : threads);
+        }
+        return new BufferedOutputStream(out);
+    }
 }
@@ -7,7 +7,10 @@ import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractCommand;
 import io.compgen.common.StringUtils;
-import io.compgen.ngsutils.fastq.FastqRead;
+import io.compgen.sqz.SQZChecksum;
+import io.compgen.sqz.SQZCodec;
+import io.compgen.sqz.SQZCodecs;
+import io.compgen.sqz.SQZKey;
 import io.compgen.sqz.SQZReader;
 
 import java.io.BufferedReader;
@@ -15,7 +18,6 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Date;
-import java.util.Iterator;
 
 @Command(name="verify", desc="Verify that the SQZ file is valid.", category="sqz", experimental=true)
 public class SqzVerify extends AbstractCommand {
@@ -23,6 +25,9 @@ public class SqzVerify extends AbstractCommand {
     private String filename = null;
     private String password = null;
     private String passwordFile = null;
+    private String keyFile = null;
+    private int threads = 1;
+    private boolean checkRecords = false;
 
     @UnnamedArg(name = "INFILE")
     public void setFilename(String filename) {
@@ -39,6 +44,21 @@ public class SqzVerify extends AbstractCommand {
         this.passwordFile = passwordFile;
     }
 
+    @Option(desc = "File containing the decryption key (see: convert --key-file)", name = "key-file")
+    public void setKeyFile(String keyFile) {
+        this.keyFile = keyFile;
+    }
+
+    @Option(desc = "Number of threads to use for decompression/decryption (default: 1)", name = "threads", defaultValue="1")
+    public void setThreads(int val) {
+        this.threads = val;
+    }
+
+    @Option(desc = "Also check the structure of each record (slower, but still doesn't decode reads)", name = "records")
+    public void setCheckRecords(boolean val) {
+        this.checkRecords = val;
+    }
+
     @Exec
     public void exec() throws CommandArgumentException {        
         try {
@@ -48,80 +68,62 @@ public class SqzVerify extends AbstractCommand {
             if (password == null && passwordFile != null) {
                     password = StringUtils.strip(new BufferedReader(new FileReader(passwordFile)).readLine());
             }
+            if (keyFile != null && password != null) {
+                throw new CommandArgumentException("You can't use both a password and a key file.");
+            }
+            SQZKey key = (keyFile != null) ? SQZKey.readKeyFile(keyFile) : SQZKey.fromPassword(password);
     
             SQZReader reader;
             if (filename.equals("-")) {
-                reader = SQZReader.open(System.in, false, password, verbose);
+                reader = SQZReader.open(System.in, false, key, verbose);
                 if (verbose) {
                     System.err.println("Input: stdin");
                 }
             } else {
-                reader = SQZReader.open(filename, false, password, verbose);
+                reader = SQZReader.open(filename, false, key, verbose);
                 if (verbose) {
                     System.err.println("Input: " + filename);
                 }
             }
+            reader.setThreads(threads);
             
             if (verbose) {
                 System.err.println("SQZ version: "+reader.getHeader().major+"."+reader.getHeader().minor);
                 System.err.println("Encrypted: "+(reader.getHeader().encryption == null ? "no" : reader.getHeader().encryption));
                 System.err.println("Includes comments: "+(reader.getHeader().hasComments ? "yes" : "no"));
                 System.err.println("Space: "+(reader.getHeader().colorspace ? "color" : "base")+"-space");
-                switch (reader.getHeader().compressionType) {
-                case 0:
-                    System.err.println("Compression: none");
-                    break;
-                case 1:
-                    System.err.println("Compression: deflate");
-                    break;
-                case 2:
-                    System.err.println("Compression: bzip2");
-                    break;
-                default:
-                    System.err.println("Compression: unknown!");
-                    break;
-                }
+                SQZCodec codec = SQZCodecs.get(reader.getHeader().compressionType);
+                System.err.println("Compression: "+codec.getName()+(reader.getHeader().chunkCodecs ? " (per-chunk)" : ""));
+                System.err.println("Block checksum: "+SQZChecksum.getName(reader.getHeader().checksumType)+(reader.getHeader().digestChunks ? " (file SHA-1 of block checksums)" : ""));
                 System.err.println("Reads per fragment: " + reader.getHeader().seqCount);
                 System.err.println("Date created: " + new Date(reader.getHeader().timestamp*1000));
             }
             
-            long i=0;
-    
-            Iterator<FastqRead>it = reader.iterator();
-            while (it.hasNext()) {
-                if (verbose) {
-                    i++;
-                    if (i % 100000 == 0) {
-                        System.err.println("Read: " + i);
-                    }
-                    
-                }
-                it.next();                
-            }
-    
-            reader.close();
-            
-            if (reader.getException() != null) {
-                System.err.println(reader.getException().getMessage());
-                System.err.println((filename.equals("-") ? "stdin": filename) + " is not valid!");
-                System.exit(1);
-            }
+            // checksums, chunk index, and file SHA-1 (the file is closed)
+            long fragments = reader.verify(checkRecords);
     
             if (verbose) {
-                System.err.println("Reads: "+i);
+                System.err.println("Reads: "+(fragments * reader.getHeader().seqCount));
                 System.err.println("Data chunks: "+reader.getChunkCount());                
+                if (reader.getIndex() != null) {
+                    System.err.println("Chunk index: "+reader.getIndex().size()+" chunks, "+reader.getIndex().getReadCount()+" reads");
+                }
                 if (reader.getTextNames().size() > 0) {
                     System.err.println("[Text data]");
                     for (String name: reader.getTextNames()) {
                         System.err.println("["+name+"]");
-                        System.err.println(reader.getText(name));
+                        if (reader.getText(name) != null) {
+                            System.err.println(reader.getText(name));
+                        } else {
+                            // annotation blocks aren't kept in memory
+                            System.err.println(reader.isBinary(name) ? "(binary block)" : "(text block)");
+                        }
                     }
                 }
                 System.err.println("File SHA-1: "+StringUtils.byteArrayToString(reader.getDigest()));                
                 
             }
-            
-            // TODO: Actually check for validity... 
+
             System.err.println((filename.equals("-") ? "stdin": filename) + " is valid");
         } catch (IOException | GeneralSecurityException | RuntimeException e) {
             System.err.println("ERROR: " + e.getMessage());